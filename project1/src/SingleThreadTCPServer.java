@@ -17,8 +17,14 @@ import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
 
 public class SingleThreadTCPServer implements Runnable{
 
@@ -29,6 +35,14 @@ public class SingleThreadTCPServer implements Runnable{
     protected Thread        runningThread = null;
 //    private static final int timeout_length = 60000; // 1 minute
     private Map<String, String> store = new HashMap<>();
+    // ordered index of the keys in the store, used by scan and prefix.
+    private NavigableSet<String> orderedKeys = new ConcurrentSkipListSet<>();
+    private static final int MAX_SCAN_LIMIT = 1000;
+    // latest changes of the store in commit order, each {key, value} with a null value for a delete.
+    // The first one has seq nextSeq - changes.size(); the oldest are dropped past MAX_CHANGES.
+    private ArrayDeque<String[]> changes = new ArrayDeque<>();
+    private long nextSeq = 1;
+    private static final int MAX_CHANGES = 10000;
 
     // constructor
     public SingleThreadTCPServer(int port){
@@ -100,6 +114,14 @@ public class SingleThreadTCPServer implements Runnable{
      * For example, get apple, delete apple.
      * Client should follow the format: <operation> <parameter> <parameter> for put.
      * For example, put apple 10.
+     * Client should follow the format: scan <startKey> <endKey> <limit> [cursor] for a range scan,
+     * and prefix <prefix> <limit> [cursor] for a prefix scan. "-" stands for an unbounded start or end key.
+     * The reply ends with "next cursor: <key>" if there are more keys; send the cursor back to get the next page.
+     * Client should follow the format: multiget <key1> <key2> ..., multiput <key1> <value1> <key2> <value2> ...
+     * and multidelete <key1> <key2> ... for a batch. The reply is one line with the result of each key.
+     * Client should follow the format: changes <key> <fromSeq> [limit] to read the changes committed since a seq,
+     * where the key may be a prefix ending with "*", or "*" for every key. The reply ends with "next seq: <seq>";
+     * send it back to read the changes that follow, each change is read once.
      * @param writer socket stream for sending message to client.
      * @param requestArr String[] client's request sentence.
      * @param clientAddress InetAddress client's IP address.
@@ -139,6 +161,8 @@ public class SingleThreadTCPServer implements Runnable{
                 }
                 else{
                     store.remove(key);
+                    orderedKeys.remove(key);
+                    changed(key, null);
                     writer.println("Delete " + key + " succeed. " + "at time " + System.currentTimeMillis());
                 }
                 break;
@@ -146,6 +170,8 @@ public class SingleThreadTCPServer implements Runnable{
                 if (requestArr.length == 3) {
                     if (isNumeric(requestArr[2])){
                         store.put(key, requestArr[2]);
+                        orderedKeys.add(key);
+                        changed(key, requestArr[2]);
                         writer.println("Put [" + key + ", " + requestArr[2] + "] in store succeed. " + "at time " + System.currentTimeMillis());
                     }
                     else{
@@ -160,6 +186,56 @@ public class SingleThreadTCPServer implements Runnable{
                     writer.println(errMsg + " at time: " + System.currentTimeMillis());
                 }
                 break;
+            case "scan":
+                if (requestArr.length == 4 || requestArr.length == 5) {
+                    String start = requestArr[1].equals("-") ? null : requestArr[1];
+                    String end = requestArr[2].equals("-") ? null : requestArr[2];
+                    scan(writer, start, end, requestArr[3], requestArr.length == 5 ? requestArr[4] : null);
+                }
+                else{
+                    String errMsg = "Malformed Request from [IP: " + clientAddress + ", Port: "+ clientPort + "]." +
+                            "Syntax of scan: <operation> <startKey> <endKey> <limit> [cursor]. For example: scan apple pear 10.";
+                    System.err.println(errMsg + " at time " + System.currentTimeMillis());
+                    writer.println(errMsg + " at time: " + System.currentTimeMillis());
+                }
+                break;
+            case "prefix":
+                if (requestArr.length == 3 || requestArr.length == 4) {
+                    scan(writer, key, prefixEnd(key), requestArr[2], requestArr.length == 4 ? requestArr[3] : null);
+                }
+                else{
+                    String errMsg = "Malformed Request from [IP: " + clientAddress + ", Port: "+ clientPort + "]." +
+                            "Syntax of prefix: <operation> <prefix> <limit> [cursor]. For example: prefix app 10.";
+                    System.err.println(errMsg + " at time " + System.currentTimeMillis());
+                    writer.println(errMsg + " at time: " + System.currentTimeMillis());
+                }
+                break;
+            case "multiget":
+            case "multidelete":
+                batch(writer, action.toLowerCase(), requestArr);
+                break;
+            case "multiput":
+                if (requestArr.length % 2 == 1) {
+                    batch(writer, "multiput", requestArr);
+                }
+                else{
+                    String errMsg = "Malformed Request from [IP: " + clientAddress + ", Port: "+ clientPort + "]." +
+                            "Syntax of multiput: <operation> <key1> <value1> <key2> <value2> ... For example: multiput apple 10 pear 5.";
+                    System.err.println(errMsg + " at time " + System.currentTimeMillis());
+                    writer.println(errMsg + " at time: " + System.currentTimeMillis());
+                }
+                break;
+            case "changes":
+                if ((requestArr.length == 3 || requestArr.length == 4) && isNumeric(requestArr[2])) {
+                    changes(writer, key, Long.parseLong(requestArr[2]), requestArr.length == 4 ? requestArr[3] : String.valueOf(MAX_SCAN_LIMIT));
+                }
+                else{
+                    String errMsg = "Malformed Request from [IP: " + clientAddress + ", Port: "+ clientPort + "]." +
+                            "Syntax of changes: <operation> <key> <fromSeq> [limit]. For example: changes app* 1 10.";
+                    System.err.println(errMsg + " at time " + System.currentTimeMillis());
+                    writer.println(errMsg + " at time: " + System.currentTimeMillis());
+                }
+                break;
             default:
                 String errMsg = "Malformed Request from [IP: " + clientAddress + ", Port: "+ clientPort + " ]. " +
                         "Syntax: <operation> <key>...";
@@ -168,6 +244,160 @@ public class SingleThreadTCPServer implements Runnable{
         }
     }
 
+    /**
+     * scan() writes one page of the keys in [start, end) with their values, in key order.
+     * @param writer socket stream for sending message to client.
+     * @param start first key, inclusive. null means from the first key.
+     * @param end last key, exclusive. null means up to the last key.
+     * @param limit String maximum number of entries in the page.
+     * @param cursor last key of the previous page, null for the first page.
+     */
+    private void scan(PrintWriter writer, String start, String end, String limit, String cursor){
+        if (!isNumeric(limit) || Integer.parseInt(limit) <= 0 || Integer.parseInt(limit) > MAX_SCAN_LIMIT){
+            writer.println("Limit should be between 1 and " + MAX_SCAN_LIMIT + " at time: " + System.currentTimeMillis());
+            return;
+        }
+        int max = Integer.parseInt(limit);
+        String from = cursor != null ? cursor : start;
+        if (from != null && end != null && from.compareTo(end) >= 0){
+            // an empty range, or a cursor past its end: a sub set of the index would throw.
+            writer.println("Scan result: [] at time " + System.currentTimeMillis());
+            return;
+        }
+        NavigableSet<String> range = orderedKeys;
+        if (cursor != null){
+            range = range.tailSet(cursor, false);
+        } else if (start != null){
+            range = range.tailSet(start, true);
+        }
+        if (end != null){
+            range = range.headSet(end, false);
+        }
+        List<String> entries = new ArrayList<>();
+        String lastKey = null;
+        String nextCursor = null;
+        for (String key : range){
+            if (entries.size() == max){
+                // more keys left, the cursor is the last key returned.
+                nextCursor = lastKey;
+                break;
+            }
+            entries.add(key + "=" + store.get(key));
+            lastKey = key;
+        }
+        String msg = "Scan result: " + entries;
+        if (nextCursor != null){
+            msg += " next cursor: " + nextCursor;
+        }
+        writer.println(msg + " at time " + System.currentTimeMillis());
+    }
+
+    /**
+     * batch() serves many keys in one request and writes the result of each key on one line,
+     * so that a client loading or reading many keys pays one round trip instead of one per key.
+     * @param writer socket stream for sending message to client.
+     * @param action multiget, multiput or multidelete.
+     * @param requestArr String[] client's request: the keys, each followed by its value for multiput.
+     */
+    private void batch(PrintWriter writer, String action, String[] requestArr){
+        Map<String, String> results = new LinkedHashMap<>();
+        int step = action.equals("multiput") ? 2 : 1;
+        for (int i = 1; i + step - 1 < requestArr.length; i += step){
+            String key = requestArr[i];
+            switch (action){
+                case "multiget":
+                    results.put(key, store.containsKey(key) ? store.get(key) : "not found");
+                    break;
+                case "multidelete":
+                    if (store.remove(key) != null){
+                        orderedKeys.remove(key);
+                        changed(key, null);
+                        results.put(key, "deleted");
+                    } else{
+                        results.put(key, "not found");
+                    }
+                    break;
+                default:
+                    if (isNumeric(requestArr[i + 1])){
+                        store.put(key, requestArr[i + 1]);
+                        orderedKeys.add(key);
+                        changed(key, requestArr[i + 1]);
+                        results.put(key, "put " + requestArr[i + 1]);
+                    } else{
+                        results.put(key, "value should be numeric");
+                    }
+            }
+        }
+        writer.println("Batch result: " + results + " at time " + System.currentTimeMillis());
+    }
+
+    /**
+     * changed() records a change of the store for "changes".
+     * @param value the new value, null for a delete.
+     */
+    private void changed(String key, String value){
+        changes.addLast(new String[]{key, value});
+        nextSeq++;
+        if (changes.size() > MAX_CHANGES){
+            changes.removeFirst();
+        }
+    }
+
+    /**
+     * changes() writes the changes of the keys matching the pattern from fromSeq on, in commit order, and the seq to read from next.
+     * If changes were dropped since fromSeq, or fromSeq is after the last change, the reply says so:
+     * the client should read the keys again.
+     * @param writer socket stream for sending message to client.
+     * @param pattern a key, a prefix ending with "*", or "*" for every key.
+     * @param fromSeq first change to read.
+     * @param limit String maximum number of changes in the reply.
+     */
+    private void changes(PrintWriter writer, String pattern, long fromSeq, String limit){
+        if (!isNumeric(limit) || Integer.parseInt(limit) <= 0 || Integer.parseInt(limit) > MAX_SCAN_LIMIT){
+            writer.println("Limit should be between 1 and " + MAX_SCAN_LIMIT + " at time: " + System.currentTimeMillis());
+            return;
+        }
+        int max = Integer.parseInt(limit);
+        long seq = nextSeq - changes.size();
+        String msg = "";
+        if (fromSeq > nextSeq){
+            // not a seq of this server, e.g. one from before it restarted: read from the oldest change kept.
+            msg = "No change has seq " + fromSeq + " yet, changes may have been lost. ";
+            fromSeq = seq;
+        } else if (fromSeq < seq && seq > 1){
+            msg = "Changes dropped before seq " + seq + ". ";
+        }
+        List<String> entries = new ArrayList<>();
+        for (String[] change : changes){
+            if (entries.size() == max){
+                break;
+            }
+            if (seq >= fromSeq){
+                String key = change[0];
+                boolean matches = pattern.endsWith("*") ? key.startsWith(pattern.substring(0, pattern.length() - 1)) : key.equals(pattern);
+                if (matches){
+                    entries.add("#" + seq + " " + (change[1] == null ? "DELETE " + key : "PUT " + key + " = " + change[1]));
+                }
+            }
+            seq++;
+        }
+        writer.println(msg + "Changes: " + entries + " next seq: " + Math.max(seq, fromSeq) + " at time " + System.currentTimeMillis());
+    }
+
+    /**
+     * prefixEnd() returns the smallest key greater than all keys starting with prefix,
+     * or null if there is none.
+     */
+    private static String prefixEnd(String prefix){
+        for (int i = prefix.length() - 1; i >= 0; i--){
+            char c = prefix.charAt(i);
+            if (c != Character.MAX_VALUE){
+                return prefix.substring(0, i) + (char) (c + 1);
+            }
+        }
+        return null;
+    }
+
     private synchronized boolean isStopped(){
         return this.isStopped;
     }
@@ -0,0 +1,370 @@
+package client;
+
+import keyValService.HashRing;
+import keyValService.InvalidationListener;
+import keyValService.KeyValStoreInterface;
+
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * AsyncClient sends requests to the key-value store without waiting for their replies:
+ * each operation returns a CompletableFuture of its result.
+ *
+ * At most maxInFlight requests are sent at a time; the next ones wait in a queue, without blocking the caller.
+ * A keyed request goes to one of the replicas of its key (any server without a ring), and a batch to any server,
+ * which forwards the keys it does not hold. The ReplicaSelector picks the replica from the latency and the load
+ * of each one, and ejects the replicas whose calls fail until a probe finds them back.
+ * A request that fails in transit is sent to the next replica with the same messageID, so a write is applied once.
+ *
+ * With enableNearCache, the replies of the gets are kept in a NearCache, which the servers invalidate
+ * when the keys change: a hot key is then read from memory, and the future of its get is already complete.
+ *
+ * The calls run on the calls executor, a pool of maxInFlight threads by default. The futures complete on
+ * the callbacks executor, the common pool by default, so that the callbacks never hold up a call;
+ * pass e.g. a virtual thread executor or the scheduler of a reactive pipeline instead.
+ */
+public class AsyncClient implements AutoCloseable {
+    private final int[] ports;
+    private final KeyValStoreInterface[] stubs;
+    private final HashRing ring;
+    private final int maxInFlight;
+    private final Executor calls;
+    private final Executor callbacks;
+    // the calls pool, if the client created it.
+    private final ExecutorService ownCalls;
+    private final ConcurrentLinkedQueue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final ReplicaSelector selector;
+    private final int[] allServers;
+    private volatile NearCache nearCache;
+    // the near cache exported for the callbacks of the servers, and the servers it subscribed to.
+    private InvalidationListener nearCacheStub;
+    private final List<Integer> subscribed = new ArrayList<>();
+
+    /**
+     * AsyncClient connects to the servers on the given ports of the local host.
+     * @param maxInFlight most requests sent at a time.
+     */
+    public AsyncClient(int[] ports, int maxInFlight) throws RemoteException, NotBoundException{
+        this(ports, lookup(ports), maxInFlight, null, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param stubs the stubs of the servers, in the order of the ports.
+     * @param calls runs the calls to the servers, null for a pool of maxInFlight threads.
+     * @param callbacks completes the futures.
+     */
+    public AsyncClient(int[] ports, KeyValStoreInterface[] stubs, int maxInFlight, Executor calls, Executor callbacks) throws RemoteException{
+        if (ports.length == 0 || ports.length != stubs.length){
+            throw new IllegalArgumentException("One stub needed for each port.");
+        }
+        if (maxInFlight <= 0){
+            throw new IllegalArgumentException("Max in-flight requests should be positive.");
+        }
+        this.ports = ports.clone();
+        this.stubs = stubs.clone();
+        this.ring = fetchRing(stubs);
+        this.selector = new ReplicaSelector(stubs.length);
+        this.allServers = new int[stubs.length];
+        for (int i = 0; i < stubs.length; i++){
+            allServers[i] = i;
+        }
+        this.maxInFlight = maxInFlight;
+        this.ownCalls = calls == null ? Executors.newFixedThreadPool(maxInFlight, daemonThreads()) : null;
+        this.calls = calls == null ? ownCalls : calls;
+        this.callbacks = callbacks;
+    }
+
+    public CompletableFuture<String> get(String key){
+        return request("get", key, "", 0);
+    }
+
+    public CompletableFuture<String> put(String key, String value){
+        return request("put", key, value, 0);
+    }
+
+    /**
+     * put with a time-to-live in milliseconds.
+     */
+    public CompletableFuture<String> put(String key, String value, long ttlMillis){
+        return request("put", key, value, ttlMillis);
+    }
+
+    public CompletableFuture<String> delete(String key){
+        return request("delete", key, "", 0);
+    }
+
+    /**
+     * request sends one operation to the replicas of its key.
+     * @return the reply of the server, e.g. "+++++ Succeed: ...", or a future failed with the RemoteException of the last replica.
+     */
+    public CompletableFuture<String> request(String op, String key, String value, long ttlMillis){
+        UUID messageID = UUID.randomUUID();
+        NearCache cache = nearCache;
+        if (cache == null){
+            return submit(replicasOf(key), stub -> stub.clientInputKeyValue(messageID, op, key, value, ttlMillis));
+        }
+        if (!op.equals("get")){
+            // the client reads its own writes at once, without waiting for the invalidation of the servers.
+            return submit(replicasOf(key), stub -> {
+                try{
+                    return stub.clientInputKeyValue(messageID, op, key, value, ttlMillis);
+                } finally{
+                    cache.invalidate(key);
+                }
+            });
+        }
+        String cached = cache.get(key);
+        if (cached != null){
+            return CompletableFuture.completedFuture(cached);
+        }
+        Object token = cache.startFetch(key);
+        return submit(replicasOf(key), stub -> {
+            String reply = stub.clientInputKeyValue(messageID, op, key, value, ttlMillis);
+            if (reply.startsWith("+++++ Succeed: GET") || reply.startsWith("----- Fail: GET. Key does not exist")){
+                cache.put(key, reply, token);
+            }
+            return reply;
+        });
+    }
+
+    /**
+     * enableNearCache keeps the replies of the gets in a NearCache, and subscribes it to the invalidations of the servers.
+     * A server that cannot be reached is skipped: the keys it changes are still invalidated by their other replicas,
+     * or expire after ttlMs.
+     * @param maxEntries most replies kept.
+     * @param ttlMs how long a reply is kept at most.
+     * @throws RemoteException if no server could be subscribed to.
+     */
+    public synchronized void enableNearCache(int maxEntries, long ttlMs) throws RemoteException{
+        if (nearCache != null){
+            throw new IllegalStateException("Near cache is already enabled.");
+        }
+        NearCache cache = new NearCache(maxEntries, ttlMs);
+        InvalidationListener stub = (InvalidationListener) UnicastRemoteObject.exportObject(cache, 0);
+        RemoteException failure = null;
+        for (int i = 0; i < stubs.length; i++){
+            try{
+                stubs[i].subscribeInvalidations(stub);
+                subscribed.add(i);
+            } catch (RemoteException e){
+                failure = e;
+            }
+        }
+        if (subscribed.isEmpty()){
+            UnicastRemoteObject.unexportObject(cache, true);
+            throw failure;
+        }
+        nearCacheStub = stub;
+        nearCache = cache;
+    }
+
+    /**
+     * nearCacheStats returns the hits, misses and invalidations of the near cache, empty if it is not enabled.
+     */
+    public Map<String, Number> nearCacheStats(){
+        NearCache cache = nearCache;
+        return cache == null ? Collections.emptyMap() : cache.stats();
+    }
+
+    public CompletableFuture<Map<String, String>> multiGet(List<String> keys){
+        return submit(allServers, stub -> stub.multiGet(keys));
+    }
+
+    public CompletableFuture<Map<String, String>> multiPut(Map<String, String> entries){
+        UUID messageID = UUID.randomUUID();
+        return submit(allServers, stub -> stub.multiPut(messageID, entries));
+    }
+
+    public CompletableFuture<Map<String, String>> multiDelete(List<String> keys){
+        UUID messageID = UUID.randomUUID();
+        return submit(allServers, stub -> stub.multiDelete(messageID, keys));
+    }
+
+    /**
+     * inFlight returns the number of requests sent and not answered yet.
+     */
+    public int inFlight(){
+        return inFlight.get();
+    }
+
+    /**
+     * replicaStats returns the latency, the load and the circuit breaker of each server, by port.
+     */
+    public Map<Integer, String> replicaStats(){
+        Map<Integer, String> stats = new LinkedHashMap<>();
+        for (Map.Entry<Integer, String> replica : selector.stats().entrySet()){
+            stats.put(ports[replica.getKey()], replica.getValue());
+        }
+        return stats;
+    }
+
+    /**
+     * queued returns the number of requests waiting for one in flight to complete.
+     */
+    public int queued(){
+        return waiting.size();
+    }
+
+    /**
+     * close unsubscribes the near cache, and stops the calls pool of the client once the requests sent are answered.
+     */
+    @Override
+    public synchronized void close(){
+        if (nearCache != null){
+            for (int i : subscribed){
+                try{
+                    stubs[i].unsubscribeInvalidations(nearCacheStub);
+                } catch (RemoteException e){
+                    // the server drops the listener by itself once its callbacks fail.
+                }
+            }
+            try{
+                UnicastRemoteObject.unexportObject(nearCache, true);
+            } catch (NoSuchObjectException e){
+                // already unexported.
+            }
+            nearCache = null;
+        }
+        if (ownCalls != null){
+            ownCalls.shutdown();
+        }
+    }
+
+    /**
+     * submit queues a request to the candidate servers. The replica is chosen when the request is sent,
+     * from the latest latencies and loads.
+     * @param candidates indexes of the servers that can serve the request.
+     */
+    private <T> CompletableFuture<T> submit(int[] candidates, StubCall<T> call){
+        CompletableFuture<T> result = new CompletableFuture<>();
+        waiting.add(() -> {
+            Exception failure = null;
+            for (int replica : selector.order(candidates)){
+                long begin = selector.begin(replica);
+                try{
+                    T reply = call.call(stubs[replica]);
+                    selector.succeeded(replica, begin);
+                    callbacks.execute(() -> result.complete(reply));
+                    return;
+                } catch (RemoteException e){
+                    selector.failed(replica);
+                    failure = e;
+                } catch (RuntimeException e){
+                    // the server answered, with an error of the request itself.
+                    selector.succeeded(replica, begin);
+                    failure = e;
+                    break;
+                }
+            }
+            Exception cause = failure;
+            callbacks.execute(() -> result.completeExceptionally(cause));
+        });
+        dispatch();
+        return result;
+    }
+
+    /**
+     * dispatch sends the waiting requests while fewer than maxInFlight are in flight.
+     */
+    private void dispatch(){
+        while (!waiting.isEmpty()){
+            int sent = inFlight.get();
+            if (sent >= maxInFlight){
+                return;
+            }
+            if (!inFlight.compareAndSet(sent, sent + 1)){
+                continue;
+            }
+            Runnable next = waiting.poll();
+            if (next == null){
+                inFlight.decrementAndGet();
+                continue;
+            }
+            calls.execute(() -> {
+                try{
+                    next.run();
+                } finally{
+                    inFlight.decrementAndGet();
+                    dispatch();
+                }
+            });
+        }
+    }
+
+    private int[] replicasOf(String key){
+        if (ring == null){
+            return allServers;
+        }
+        int[] owners = ring.owners(key);
+        int[] replicas = new int[owners.length];
+        for (int i = 0; i < owners.length; i++){
+            replicas[i] = indexOf(owners[i]);
+        }
+        return replicas;
+    }
+
+    private int indexOf(int port){
+        for (int i = 0; i < ports.length; i++){
+            if (ports[i] == port){
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Owner " + port + " is not in the server list.");
+    }
+
+    /**
+     * fetchRing asks the servers in turn for the ring of the cluster, so that one server down does not matter.
+     */
+    private static HashRing fetchRing(KeyValStoreInterface[] stubs) throws RemoteException{
+        RemoteException failure = null;
+        for (KeyValStoreInterface stub : stubs){
+            try{
+                return stub.getRing();
+            } catch (RemoteException e){
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    private static KeyValStoreInterface[] lookup(int[] ports) throws RemoteException, NotBoundException{
+        KeyValStoreInterface[] stubs = new KeyValStoreInterface[ports.length];
+        for (int i = 0; i < ports.length; i++){
+            stubs[i] = (KeyValStoreInterface) LocateRegistry.getRegistry("Localhost", ports[i])
+                    .lookup("keyValService.KeyValStoreInterface");
+        }
+        return stubs;
+    }
+
+    private static ThreadFactory daemonThreads(){
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, "async-client-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    private interface StubCall<T>{
+        T call(KeyValStoreInterface stub) throws RemoteException;
+    }
+}
@@ -0,0 +1,120 @@
+package client;
+
+import keyValService.Change;
+import keyValService.ChangeBatch;
+import keyValService.ChangeListener;
+import keyValService.KeyValStoreInterface;
+
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * ChangeWatcher follows the changes committed on a server whose keys match a pattern,
+ * and hands them to a consumer in commit order, each change once.
+ *
+ * The consumer runs on the thread of the call back, and the server sends the next batch only once it returns:
+ * a slow consumer slows down its own stream, and the server keeps nothing for it but its position in the log.
+ * getNextSeq tells where the stream is; resume watches again from there, e.g. after the server dropped the watch.
+ * If the server restarted in the meantime, its seq numbers start again: the first batch of its new incarnation
+ * is handed over as a gap.
+ */
+public class ChangeWatcher implements ChangeListener, AutoCloseable {
+    private final KeyValStoreInterface server;
+    private final String pattern;
+    private final Consumer<ChangeBatch> consumer;
+    private final ChangeListener stub;
+    private long watchId;
+    private long nextSeq;
+    // incarnation of the server that numbered nextSeq, 0 if no batch came yet.
+    private long incarnation;
+
+    /**
+     * @param pattern a key, a prefix ending with "*", or "*" for every key.
+     * @param fromSeq first change to receive, or 0 for the changes committed from now on.
+     * @param consumer gets the batches; a batch with isGap() set follows changes the server no longer had.
+     */
+    public ChangeWatcher(KeyValStoreInterface server, String pattern, long fromSeq, Consumer<ChangeBatch> consumer) throws RemoteException{
+        this.server = server;
+        this.pattern = pattern;
+        this.consumer = consumer;
+        this.stub = (ChangeListener) UnicastRemoteObject.exportObject(this, 0);
+        synchronized (this){
+            this.nextSeq = fromSeq;
+            try{
+                this.watchId = server.watch(pattern, fromSeq, stub);
+            } catch (RemoteException | RuntimeException e){
+                UnicastRemoteObject.unexportObject(this, true);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * changes is called by the server. A batch sent again, because the reply to the call was lost, is skipped.
+     * After a gap or a restart of the server, the stream goes on from the seq of the batch, even if it is lower.
+     */
+    @Override
+    public synchronized void changes(long watchId, ChangeBatch batch){
+        if (watchId != this.watchId){
+            return;
+        }
+        boolean restarted = incarnation != 0 && batch.getIncarnation() != incarnation;
+        incarnation = batch.getIncarnation();
+        if (batch.isGap() || restarted){
+            consumer.accept(new ChangeBatch(batch.getChanges(), batch.getNextSeq(), true, incarnation));
+            nextSeq = batch.getNextSeq();
+            return;
+        }
+        List<Change> fresh = new ArrayList<>();
+        for (Change c : batch.getChanges()){
+            if (c.seq >= nextSeq){
+                fresh.add(c);
+            }
+        }
+        if (!fresh.isEmpty()){
+            consumer.accept(new ChangeBatch(fresh, batch.getNextSeq(), false, incarnation));
+        }
+        nextSeq = Math.max(nextSeq, batch.getNextSeq());
+    }
+
+    /**
+     * getNextSeq returns the seq of the next change to receive, 0 if no batch came yet from a watch started from now.
+     */
+    public synchronized long getNextSeq(){
+        return nextSeq;
+    }
+
+    /**
+     * resume watches again from the next change to receive, e.g. on a server that restarted or dropped the watch.
+     */
+    public synchronized void resume() throws RemoteException{
+        try{
+            server.unwatch(watchId);
+        } catch (RemoteException e){
+            // the old watch is gone with the server, or is dropped once its calls fail.
+        }
+        watchId = server.watch(pattern, nextSeq, stub);
+    }
+
+    @Override
+    public void close() throws RemoteException{
+        long id;
+        synchronized (this){
+            id = watchId;
+            watchId = -1;
+        }
+        try{
+            server.unwatch(id);
+        } finally{
+            try{
+                UnicastRemoteObject.unexportObject(this, true);
+            } catch (NoSuchObjectException e){
+                // already unexported.
+            }
+        }
+    }
+}
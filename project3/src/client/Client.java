@@ -13,11 +13,14 @@
  * The client-side runtime receives, deserializes, and returns the result to the caller.
  */
 package client;
+import keyValService.Consistency;
+import keyValService.HashRing;
 import keyValService.KeyValStoreInterface;
 
 import java.io.File;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.util.Arrays;
 import java.util.Scanner;
 import java.util.UUID;
 
@@ -38,20 +41,60 @@ public class Client {
                 registries[i] = LocateRegistry.getRegistry("Localhost", clientHelper.serverPorts[i]);
                 stubs[i] = (KeyValStoreInterface) registries[i].lookup("keyValService.KeyValStoreInterface");
             }
+            // with a partitioned cluster, each request goes straight to an owner of its key.
+            HashRing ring = stubs[0].getRing();
             for (int i = 0; i < numOfPorts; i++){
                 Scanner clientScanner = new Scanner(new File(args[0])); // "./src/client/ClientRequest.txt"
 
                 while(clientScanner.hasNext()){
                     String[] requestArr = clientScanner.nextLine().trim().split(" ");
+                    // a last argument such as @ONE, @QUORUM or @ALL sets the consistency level of the request.
+                    Consistency level = null;
+                    if (requestArr.length > 2 && requestArr[requestArr.length - 1].startsWith("@")){
+                        level = Consistency.valueOf(requestArr[requestArr.length - 1].substring(1).toUpperCase());
+                        requestArr = Arrays.copyOf(requestArr, requestArr.length - 1);
+                    }
+
+                    KeyValStoreInterface target = stubs[i];
+                    if (ring != null && requestArr.length > 1){
+                        target = clientHelper.ownerStubs(ring, stubs, requestArr[1])[0];
+                    }
 
                     String msg;
-                    if (requestArr.length < 2){
+                    if (requestArr[0].equalsIgnoreCase("metrics")){
+                        clientHelper.log("Metrics: " + stubs[i].getMetrics());
+                    } else if ((requestArr[0].equalsIgnoreCase("join") || requestArr[0].equalsIgnoreCase("leave")) && requestArr.length == 2){
+                        // join <port> OR leave <port> changes the servers of the cluster.
+                        clientHelper.log(stubs[i].changeMembership(requestArr[0], Integer.parseInt(requestArr[1])));
+                    } else if (requestArr[0].equalsIgnoreCase("mget")){
+                        // mget <key1> <key2> ... reads the keys from one snapshot.
+                        clientHelper.log("Consistent GET: " + stubs[i].consistentGet(Arrays.asList(requestArr).subList(1, requestArr.length)));
+                    } else if (requestArr[0].equalsIgnoreCase("multiget") || requestArr[0].equalsIgnoreCase("multiput")
+                            || requestArr[0].equalsIgnoreCase("multidelete")){
+                        clientHelper.batch(stubs[i], requestArr);
+                    } else if (requestArr[0].equalsIgnoreCase("changes")){
+                        // changes <key|prefix*|*> <fromSeq> reads the changes committed on the server since that seq.
+                        clientHelper.changes(stubs[i], requestArr);
+                    } else if (requestArr[0].equalsIgnoreCase("scan") || requestArr[0].equalsIgnoreCase("prefix")){
+                        clientHelper.scan(stubs[i], requestArr);
+                    } else if (requestArr[0].equalsIgnoreCase("read") && requestArr.length == 3){
+                        // read <key> <max staleness in milliseconds> is served by the best replica that is fresh enough.
+                        clientHelper.log(clientHelper.followerRead(stubs, clientHelper.ownerIndexes(ring, requestArr[1]), requestArr[1], Long.parseLong(requestArr[2])));
+                    } else if (requestArr.length < 2){
                         msg = "----- Error: At least 2 argument needed. Syntax: <operation> <key> OR <operation> <key> <value>. For example: get apple";
                         clientHelper.log(msg);
+                    } else if (level != null) {
+                        // <operation> <key> [<value> [<ttl in milliseconds>]] @<level>
+                        String value = requestArr.length > 2 ? requestArr[2] : "";
+                        long ttl = requestArr.length > 3 ? Long.parseLong(requestArr[3]) : 0;
+                        clientHelper.log(target.clientInputKeyValue(UUID.randomUUID(), requestArr[0], requestArr[1], value, ttl, level));
                     } else if(requestArr.length == 2) {
-                        clientHelper.log(stubs[i].clientInputKeyValue(UUID.randomUUID(), requestArr[0], requestArr[1], ""));
+                        clientHelper.log(clientHelper.sessionRequest(target, requestArr[0], requestArr[1], ""));
                     } else if (requestArr.length == 3) {
-                        clientHelper.log(stubs[i].clientInputKeyValue(UUID.randomUUID(), requestArr[0], requestArr[1], requestArr[2]));
+                        clientHelper.log(clientHelper.sessionRequest(target, requestArr[0], requestArr[1], requestArr[2]));
+                    } else if (requestArr.length == 4) {
+                        // put <key> <value> <ttl in milliseconds>
+                        clientHelper.log(target.clientInputKeyValue(UUID.randomUUID(), requestArr[0], requestArr[1], requestArr[2], Long.parseLong(requestArr[3])));
                     }
                 }
             }
@@ -1,10 +1,28 @@
 package client;
 
+import keyValService.ChangeBatch;
+import keyValService.HashRing;
+import keyValService.KeyValStoreInterface;
+import keyValService.ScanResult;
+import keyValService.SessionReply;
+
+import java.rmi.RemoteException;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 
 public class ClientHelper {
+    private static final int REQUEST_RETRIES = 2;
+    private static final int CHANGES_PAGE = 100;
     public int[] serverPorts;
+    // token of the latest reply, so that the client reads its own writes on any replica.
+    private long sessionToken = 0;
+    // picks the replica of a follower read.
+    private ReplicaSelector selector;
 
     public void ParseClientArgsToPorts(String[] args) throws Exception{
         if (args[0].equalsIgnoreCase("quit")){
@@ -24,6 +42,187 @@ public class ClientHelper {
 
     public void setServerPorts(String[] args){
         serverPorts = new int[args.length - 1];
+        selector = new ReplicaSelector(serverPorts.length);
+    }
+
+    /**
+     * scan pages through a range or prefix scan and logs every page.
+     * Syntax: scan <startKey> <endKey> <limit> OR prefix <prefix> <limit>. Use "-" for an unbounded start or end key.
+     * @param stub the server to scan.
+     * @param requestArr the client's request.
+     */
+    public void scan(KeyValStoreInterface stub, String[] requestArr) throws RemoteException{
+        boolean isPrefix = requestArr[0].equalsIgnoreCase("prefix");
+        if ((isPrefix && requestArr.length != 3) || (!isPrefix && requestArr.length != 4)){
+            log("----- Error: Syntax: scan <startKey> <endKey> <limit> OR prefix <prefix> <limit>. For example: prefix app 10");
+            return;
+        }
+        int limit = Integer.parseInt(requestArr[requestArr.length - 1]);
+        String cursor = null;
+        do{
+            ScanResult page = isPrefix
+                    ? stub.scanPrefix(requestArr[1], cursor, limit)
+                    : stub.scan(unbounded(requestArr[1]), unbounded(requestArr[2]), cursor, limit);
+            log(page.toString());
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+    }
+
+    /**
+     * batch sends many keys in one call, and logs the result of each key.
+     * Syntax: multiget <key1> <key2> ... OR multiput <key1> <value1> <key2> <value2> ... OR multidelete <key1> <key2> ...
+     * @param stub any server: it forwards the keys it does not hold to their owners.
+     * @param requestArr the client's request.
+     */
+    public void batch(KeyValStoreInterface stub, String[] requestArr) throws RemoteException{
+        List<String> args = Arrays.asList(requestArr).subList(1, requestArr.length);
+        String op = requestArr[0].toLowerCase();
+        if (args.isEmpty() || (op.equals("multiput") && args.size() % 2 != 0)){
+            log("----- Error: Syntax: multiget <key1> <key2> ... OR multiput <key1> <value1> <key2> <value2> ... OR multidelete <key1> <key2> ...");
+            return;
+        }
+        Map<String, String> results;
+        if (op.equals("multiget")){
+            results = stub.multiGet(args);
+        } else if (op.equals("multidelete")){
+            results = stub.multiDelete(UUID.randomUUID(), args);
+        } else{
+            Map<String, String> entries = new LinkedHashMap<>();
+            for (int i = 0; i < args.size(); i += 2){
+                entries.put(args.get(i), args.get(i + 1));
+            }
+            results = stub.multiPut(UUID.randomUUID(), entries);
+        }
+        for (Map.Entry<String, String> result : results.entrySet()){
+            log(result.getKey() + ": " + result.getValue());
+        }
+    }
+
+    /**
+     * changes reads the changes committed on a server since a seq, page by page, and logs them with the seq to resume from.
+     * Syntax: changes <key> <fromSeq>, where the key may be a prefix ending with "*", or "*" for every key.
+     * @param stub the server whose changes are read: each server numbers its own changes.
+     * @param requestArr the client's request.
+     */
+    public void changes(KeyValStoreInterface stub, String[] requestArr) throws RemoteException{
+        if (requestArr.length != 3){
+            log("----- Error: Syntax: changes <key> <fromSeq>. For example: changes price* 1");
+            return;
+        }
+        long fromSeq = Long.parseLong(requestArr[2]);
+        long previous;
+        do{
+            ChangeBatch batch = stub.pollChanges(requestArr[1], fromSeq, CHANGES_PAGE, 0);
+            if (!batch.getChanges().isEmpty() || batch.isGap()){
+                log(batch.toString());
+            }
+            previous = fromSeq;
+            fromSeq = batch.getNextSeq();
+            // a gap may resume before fromSeq, at the oldest change the server keeps.
+        } while (fromSeq != previous);
+        log("Changes read up to seq " + fromSeq);
+    }
+
+    /**
+     * ownerStubs returns the stubs of the servers that hold the key, the preferred coordinator first.
+     * @param ring the ring of the cluster, null if every server holds every key.
+     * @param stubs the stubs of serverPorts, in the same order.
+     */
+    public KeyValStoreInterface[] ownerStubs(HashRing ring, KeyValStoreInterface[] stubs, String key){
+        if (ring == null){
+            return stubs;
+        }
+        int[] owners = ring.owners(key);
+        KeyValStoreInterface[] ownerStubs = new KeyValStoreInterface[owners.length];
+        for (int i = 0; i < owners.length; i++){
+            for (int j = 0; j < serverPorts.length; j++){
+                if (serverPorts[j] == owners[i]){
+                    ownerStubs[i] = stubs[j];
+                }
+            }
+            if (ownerStubs[i] == null){
+                throw new IllegalArgumentException("Owner " + owners[i] + " of key " + key + " is not in the server list.");
+            }
+        }
+        return ownerStubs;
+    }
+
+    /**
+     * sessionRequest sends a request within the session of the client.
+     * A request that fails in transit is sent again with the same messageID, so that a write is applied once.
+     */
+    public String sessionRequest(KeyValStoreInterface stub, String op, String key, String value) throws RemoteException{
+        UUID messageID = UUID.randomUUID();
+        SessionReply reply;
+        for (int attempt = 0; ; attempt++){
+            try{
+                reply = stub.sessionRequest(messageID, op, key, value, 0, sessionToken, -1);
+                break;
+            } catch (RemoteException e){
+                if (attempt == REQUEST_RETRIES){
+                    throw e;
+                }
+                log("Request " + messageID + " fail: " + e.getMessage() + ". Sending it again.");
+            }
+        }
+        sessionToken = Math.max(sessionToken, reply.getSessionToken());
+        return reply.toString();
+    }
+
+    /**
+     * ownerIndexes returns the indexes in serverPorts of the servers that hold the key.
+     * @param ring the ring of the cluster, null if every server holds every key.
+     */
+    public int[] ownerIndexes(HashRing ring, String key){
+        int[] owners = ring == null ? serverPorts : ring.owners(key);
+        int[] indexes = new int[owners.length];
+        for (int i = 0; i < owners.length; i++){
+            indexes[i] = -1;
+            for (int j = 0; j < serverPorts.length; j++){
+                if (serverPorts[j] == owners[i]){
+                    indexes[i] = j;
+                }
+            }
+            if (indexes[i] < 0){
+                throw new IllegalArgumentException("Owner " + owners[i] + " of key " + key + " is not in the server list.");
+            }
+        }
+        return indexes;
+    }
+
+    /**
+     * followerRead reads a key from a replica picked by the ReplicaSelector, so that the reads go to the fastest,
+     * least loaded replicas, and not to the ones that failed.
+     * A replica that is too stale for the bound or the session, or that fails, is skipped for the next one.
+     * Syntax: read <key> <max staleness in milliseconds>.
+     * @param stubs the stubs of serverPorts, in the same order.
+     * @param replicas indexes of the replicas of the key.
+     */
+    public String followerRead(KeyValStoreInterface[] stubs, int[] replicas, String key, long maxStalenessMs) throws RemoteException{
+        SessionReply reply = null;
+        RemoteException failure = null;
+        for (int replica : selector.order(replicas)){
+            long begin = selector.begin(replica);
+            try{
+                reply = stubs[replica].sessionRequest(UUID.randomUUID(), "get", key, "", 0, sessionToken, maxStalenessMs);
+            } catch (RemoteException e){
+                selector.failed(replica);
+                failure = e;
+                continue;
+            }
+            selector.succeeded(replica, begin);
+            if (!reply.isStale()){
+                break;
+            }
+        }
+        if (reply == null){
+            throw failure;
+        }
+        return reply.toString();
+    }
+
+    private static String unbounded(String key){
+        return key.equals("-") ? null : key;
     }
 
     public static String currentTime(){
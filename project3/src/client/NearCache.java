@@ -0,0 +1,128 @@
+package client;
+
+import keyValService.InvalidationListener;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * NearCache keeps the replies of recent gets in the client, so that a hot key is read from memory
+ * instead of from a server.
+ *
+ * The servers call it back with the keys that change (see InvalidationListener), and their cached replies are dropped.
+ * A reply is only cached if no invalidation of its key came while it was fetched, since it may be older than that change.
+ * Each reply is also kept at most ttlMs, which bounds how stale a read can be if an invalidation is lost,
+ * e.g. when a server restarts; and at most maxEntries replies are kept, the least recently read go first.
+ */
+public class NearCache implements InvalidationListener {
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // keys being fetched, with a token of the fetch. An invalidation removes the token, and the reply is then not cached.
+    private final ConcurrentHashMap<String, Object> fetching = new ConcurrentHashMap<>();
+    private final int maxEntries;
+    private final long ttlMs;
+    private long hits;
+    private long misses;
+    private long invalidations;
+    private long evictions;
+
+    /**
+     * @param maxEntries most replies kept.
+     * @param ttlMs how long a reply is kept at most, i.e. how stale a read can be when an invalidation is lost.
+     */
+    public NearCache(int maxEntries, long ttlMs){
+        if (maxEntries <= 0 || ttlMs <= 0){
+            throw new IllegalArgumentException("Near cache size and TTL should be positive.");
+        }
+        this.maxEntries = maxEntries;
+        this.ttlMs = ttlMs;
+    }
+
+    /**
+     * @return the cached reply to a get of the key, or null if there is none.
+     */
+    public synchronized String get(String key){
+        Entry e = entries.get(key);
+        if (e == null || e.expireAt <= System.currentTimeMillis()){
+            if (e != null){
+                entries.remove(key);
+            }
+            misses++;
+            return null;
+        }
+        hits++;
+        return e.reply;
+    }
+
+    /**
+     * startFetch is called before a get of the key is sent.
+     * @return the token to pass to put with the reply.
+     */
+    public Object startFetch(String key){
+        Object token = new Object();
+        fetching.put(key, token);
+        return token;
+    }
+
+    /**
+     * put caches the reply of a get, unless the key was invalidated since its startFetch.
+     */
+    public synchronized void put(String key, String reply, Object token){
+        if (!fetching.remove(key, token)){
+            return;
+        }
+        entries.put(key, new Entry(reply, System.currentTimeMillis() + ttlMs));
+        if (entries.size() > maxEntries){
+            entries.remove(entries.keySet().iterator().next());
+            evictions++;
+        }
+    }
+
+    /**
+     * invalidate drops the cached reply of a key, e.g. once the client wrote it.
+     */
+    public synchronized void invalidate(String key){
+        fetching.remove(key);
+        if (entries.remove(key) != null){
+            invalidations++;
+        }
+    }
+
+    @Override
+    public void invalidate(List<String> keys){
+        for (String key : keys){
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public synchronized void invalidateAll(){
+        fetching.clear();
+        invalidations += entries.size();
+        entries.clear();
+    }
+
+    /**
+     * stats returns the entries, hits, misses, invalidations and evictions of the cache.
+     */
+    public synchronized Map<String, Number> stats(){
+        Map<String, Number> stats = new LinkedHashMap<>();
+        stats.put("nearCache.entries", entries.size());
+        stats.put("nearCache.hits", hits);
+        stats.put("nearCache.misses", misses);
+        stats.put("nearCache.invalidations", invalidations);
+        stats.put("nearCache.evictions", evictions);
+        return stats;
+    }
+
+    private static final class Entry{
+        final String reply;
+        final long expireAt;
+
+        Entry(String reply, long expireAt){
+            this.reply = reply;
+            this.expireAt = expireAt;
+        }
+    }
+}
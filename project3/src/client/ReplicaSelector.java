@@ -0,0 +1,169 @@
+package client;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * ReplicaSelector picks the replica a request is sent to, from how the replicas answered so far.
+ *
+ * Each replica has an EWMA of its latency and a count of its outstanding requests; its cost is
+ * latency * (outstanding + 1). Two of the candidates are drawn at random and the cheaper one is tried first
+ * (power of two choices), so that slow or busy replicas get less load without every client rushing to the same one.
+ * A replica whose call fails is ejected by a circuit breaker for EJECT_MS, doubled on each failed probe
+ * up to MAX_EJECT_MS. Once that time is over, a single request probes it: the breaker closes if the probe succeeds,
+ * and opens again if it fails. Ejected replicas are still tried last, when no other replica answered.
+ */
+public class ReplicaSelector {
+    private static final double ALPHA = 0.2;
+    private static final double INITIAL_LATENCY_NANOS = 1_000_000;
+    private static final long EJECT_MS = 500;
+    private static final long MAX_EJECT_MS = 30000;
+
+    private final Replica[] replicas;
+
+    /**
+     * @param replicas number of replicas, chosen by their index.
+     */
+    public ReplicaSelector(int replicas){
+        this.replicas = new Replica[replicas];
+        for (int i = 0; i < replicas; i++){
+            this.replicas[i] = new Replica();
+        }
+    }
+
+    /**
+     * order returns the candidates in the order to try them: a replica due for a probe,
+     * then the power-of-two choice, then the other available replicas by cost, and the ejected ones last.
+     */
+    public int[] order(int[] candidates){
+        long now = System.currentTimeMillis();
+        List<Integer> available = new ArrayList<>();
+        List<Integer> ejected = new ArrayList<>();
+        int probe = -1;
+        for (int c : candidates){
+            Replica r = replicas[c];
+            if (r.isClosed()){
+                available.add(c);
+            } else if (probe < 0 && r.claimProbe(now)){
+                probe = c;
+            } else{
+                ejected.add(c);
+            }
+        }
+        available.sort(Comparator.comparingDouble(c -> replicas[c].cost()));
+        if (available.size() >= 2){
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int a = random.nextInt(available.size());
+            int b = random.nextInt(available.size() - 1);
+            b = b >= a ? b + 1 : b;
+            // available is sorted by cost, so the smaller index of the two is the cheaper one.
+            available.add(0, available.remove(Math.min(a, b)));
+        }
+        int[] order = new int[candidates.length];
+        int n = 0;
+        if (probe >= 0){
+            order[n++] = probe;
+        }
+        for (int c : available){
+            order[n++] = c;
+        }
+        for (int c : ejected){
+            order[n++] = c;
+        }
+        return order;
+    }
+
+    /**
+     * begin counts a request sent to the replica.
+     * @return the start time of the request, for succeeded.
+     */
+    public long begin(int replica){
+        replicas[replica].begin();
+        return System.nanoTime();
+    }
+
+    /**
+     * succeeded records that the replica answered, and how long it took.
+     */
+    public void succeeded(int replica, long begin){
+        replicas[replica].succeeded(System.nanoTime() - begin);
+    }
+
+    /**
+     * failed records that the call to the replica failed, and ejects it.
+     */
+    public void failed(int replica){
+        replicas[replica].failed(System.currentTimeMillis());
+    }
+
+    /**
+     * stats returns the state of each replica, e.g. "2.1 ms, 3 outstanding" or "ejected for 1000 ms".
+     */
+    public Map<Integer, String> stats(){
+        Map<Integer, String> stats = new LinkedHashMap<>();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < replicas.length; i++){
+            stats.put(i, replicas[i].toString(now));
+        }
+        return stats;
+    }
+
+    private static final class Replica{
+        private double latencyNanos = INITIAL_LATENCY_NANOS;
+        private int outstanding;
+        // failures in a row; the breaker is open while it is above 0.
+        private int failures;
+        private long ejectedUntil;
+        private boolean probing;
+
+        synchronized boolean isClosed(){
+            return failures == 0;
+        }
+
+        synchronized boolean claimProbe(long now){
+            if (probing || now < ejectedUntil){
+                return false;
+            }
+            probing = true;
+            return true;
+        }
+
+        synchronized double cost(){
+            return latencyNanos * (outstanding + 1);
+        }
+
+        synchronized void begin(){
+            outstanding++;
+        }
+
+        synchronized void succeeded(long nanos){
+            outstanding--;
+            latencyNanos += ALPHA * (nanos - latencyNanos);
+            failures = 0;
+            probing = false;
+        }
+
+        synchronized void failed(long now){
+            outstanding--;
+            // the requests already in flight when the replica was ejected do not eject it longer.
+            if (failures > 0 && now < ejectedUntil){
+                return;
+            }
+            probing = false;
+            failures++;
+            ejectedUntil = now + Math.min(MAX_EJECT_MS, EJECT_MS << Math.min(failures - 1, 16));
+        }
+
+        synchronized String toString(long now){
+            String state = String.format("%.1f ms, %d outstanding", latencyNanos / 1e6, outstanding);
+            if (failures > 0){
+                state += now < ejectedUntil ? ", ejected for " + (ejectedUntil - now) + " ms" : ", probing";
+            }
+            return state;
+        }
+    }
+}
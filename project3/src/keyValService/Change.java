@@ -0,0 +1,29 @@
+package keyValService;
+
+import java.io.Serializable;
+
+/**
+ * Change is a write committed on a server: a key put to a value, or deleted (value null).
+ * seq numbers the changes of one server in the order they were committed, from 1, without holes.
+ */
+public class Change implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public final long seq;
+    public final String key;
+    // the new value, null if the key was deleted or expired.
+    public final String value;
+    public final long committedAt;
+
+    public Change(long seq, String key, String value, long committedAt){
+        this.seq = seq;
+        this.key = key;
+        this.value = value;
+        this.committedAt = committedAt;
+    }
+
+    @Override
+    public String toString(){
+        return "#" + seq + " " + (value == null ? "DELETE " + key : "PUT " + key + " = " + value);
+    }
+}
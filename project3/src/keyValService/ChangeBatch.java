@@ -0,0 +1,64 @@
+package keyValService;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * ChangeBatch is the next part of a change stream (see KeyValStoreInterface.watch and pollChanges):
+ * the matching changes in commit order, and the sequence number to resume from.
+ * The seq numbers are only meaningful within one incarnation of the server: a server that restarts numbers
+ * its changes from 1 again, under a new incarnation.
+ */
+public class ChangeBatch implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final List<Change> changes;
+    private final long nextSeq;
+    private final boolean gap;
+    private final long incarnation;
+
+    /**
+     * @param nextSeq sequence number of the first change not read yet.
+     * @param gap true if changes were dropped from the log of the server before they were read,
+     *            or if the seq read from was not one of the server.
+     * @param incarnation id of the run of the server that numbered the changes.
+     */
+    public ChangeBatch(List<Change> changes, long nextSeq, boolean gap, long incarnation){
+        this.changes = changes;
+        this.nextSeq = nextSeq;
+        this.gap = gap;
+        this.incarnation = incarnation;
+    }
+
+    public List<Change> getChanges(){
+        return changes;
+    }
+
+    /**
+     * getNextSeq returns where to resume the stream, e.g. with a watch or a poll after a disconnection.
+     */
+    public long getNextSeq(){
+        return nextSeq;
+    }
+
+    /**
+     * isGap is true if the stream skipped changes that the server no longer keeps:
+     * the reader should read the keys again, e.g. with a scan, before it applies the changes.
+     */
+    public boolean isGap(){
+        return gap;
+    }
+
+    /**
+     * getIncarnation returns the id of the run of the server that numbered the changes.
+     * A reader that resumes a stream and gets another incarnation than before missed changes, as for a gap.
+     */
+    public long getIncarnation(){
+        return incarnation;
+    }
+
+    @Override
+    public String toString(){
+        return (gap ? "Changes were dropped before " : "") + changes + ", next seq " + nextSeq;
+    }
+}
@@ -0,0 +1,13 @@
+package keyValService;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * ChangeListener is called back by a server with the changes of a watch (see KeyValStoreInterface.watch).
+ * The server sends the next batch only once the call returns, so a listener that takes its time
+ * slows down its own stream, and nothing else.
+ */
+public interface ChangeListener extends Remote {
+    void changes(long watchId, ChangeBatch batch) throws RemoteException;
+}
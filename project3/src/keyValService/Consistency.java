@@ -0,0 +1,25 @@
+package keyValService;
+
+/**
+ * Consistency is the number of replicas a request waits for in the quorum mode.
+ * Reads and writes at QUORUM always overlap in at least one replica, so a QUORUM read
+ * sees the latest QUORUM write. ONE is the fastest and may read a stale value.
+ */
+public enum Consistency {
+    ONE, QUORUM, ALL;
+
+    /**
+     * @param replicas number of replicas that hold the key.
+     * @return number of replies the request waits for, the local replica included.
+     */
+    public int required(int replicas){
+        switch (this){
+            case ONE:
+                return 1;
+            case QUORUM:
+                return replicas / 2 + 1;
+            default:
+                return replicas;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package keyValService;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * HashRing partitions the keys across the servers with consistent hashing.
+ *
+ * Each server is placed on the ring at virtualNodes points, so that the keys are spread evenly
+ * and a server that joins or leaves only moves the keys next to its points.
+ * The owners of a key are the first replicationFactor distinct servers found walking the ring
+ * clockwise from the hash of the key; the first owner is the preferred coordinator of the key.
+ * A key range [startKey, endKey) may have its own replication factor, e.g. to keep more copies of hot keys.
+ */
+public class HashRing implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final int[] servers;
+    private final int virtualNodes;
+    private final int replicationFactor;
+    // point on the ring -> server.
+    private final TreeMap<Long, Integer> points = new TreeMap<>();
+    // start key of a range -> the range.
+    private final TreeMap<String, Range> ranges = new TreeMap<>();
+
+    /**
+     * @param servers ports of the servers.
+     * @param virtualNodes number of points of each server on the ring.
+     * @param replicationFactor number of servers that hold each key.
+     */
+    public HashRing(int[] servers, int virtualNodes, int replicationFactor){
+        if (servers.length == 0 || virtualNodes <= 0){
+            throw new IllegalArgumentException("A ring needs servers and a positive number of virtual nodes.");
+        }
+        checkReplicationFactor(replicationFactor, servers.length);
+        this.servers = servers.clone();
+        this.virtualNodes = virtualNodes;
+        this.replicationFactor = replicationFactor;
+        for (int server : servers){
+            for (int i = 0; i < virtualNodes; i++){
+                points.put(hash(server + "#" + i), server);
+            }
+        }
+    }
+
+    /**
+     * setRangeReplication gives the keys in [startKey, endKey) their own replication factor.
+     * Ranges should not overlap.
+     */
+    public void setRangeReplication(String startKey, String endKey, int replicationFactor){
+        if (startKey.compareTo(endKey) >= 0){
+            throw new IllegalArgumentException("Range start key should be before its end key.");
+        }
+        checkReplicationFactor(replicationFactor, servers.length);
+        ranges.put(startKey, new Range(endKey, replicationFactor));
+    }
+
+    /**
+     * withServers returns a ring of other servers, with the same virtual nodes and replication factors.
+     * Only the keys next to the points of the added or removed servers change owners.
+     */
+    public HashRing withServers(int[] servers){
+        HashRing next = new HashRing(servers, virtualNodes, replicationFactor);
+        for (Map.Entry<String, Range> range : ranges.entrySet()){
+            next.setRangeReplication(range.getKey(), range.getValue().endKey, range.getValue().replicationFactor);
+        }
+        return next;
+    }
+
+    /**
+     * @return the servers that hold the key, the preferred coordinator first.
+     */
+    public int[] owners(String key){
+        int count = replicationFactor(key);
+        int[] owners = new int[count];
+        int found = 0;
+        long h = hash(key);
+        for (Map<Long, Integer> part : Arrays.asList(points.tailMap(h), points.headMap(h))){
+            for (int server : part.values()){
+                if (!contains(owners, found, server)){
+                    owners[found++] = server;
+                    if (found == count){
+                        return owners;
+                    }
+                }
+            }
+        }
+        return owners;
+    }
+
+    public boolean isOwner(String key, int server){
+        int[] owners = owners(key);
+        return contains(owners, owners.length, server);
+    }
+
+    public int replicationFactor(String key){
+        Map.Entry<String, Range> range = ranges.floorEntry(key);
+        if (range != null && key.compareTo(range.getValue().endKey) < 0){
+            return range.getValue().replicationFactor;
+        }
+        return replicationFactor;
+    }
+
+    public int[] getServers(){
+        return servers.clone();
+    }
+
+    public int getVirtualNodes(){
+        return virtualNodes;
+    }
+
+    public int getReplicationFactor(){
+        return replicationFactor;
+    }
+
+    @Override
+    public String toString(){
+        return "Ring of " + Arrays.toString(servers) + ", " + virtualNodes + " virtual nodes, replication factor "
+                + replicationFactor + (ranges.isEmpty() ? "" : ", " + ranges.size() + " ranges with their own factor");
+    }
+
+    private static boolean contains(int[] owners, int found, int server){
+        for (int i = 0; i < found; i++){
+            if (owners[i] == server){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void checkReplicationFactor(int replicationFactor, int servers){
+        if (replicationFactor <= 0 || replicationFactor > servers){
+            throw new IllegalArgumentException("Replication factor should be between 1 and the number of servers.");
+        }
+    }
+
+    private static class Range implements Serializable {
+        private static final long serialVersionUID = 1L;
+        final String endKey;
+        final int replicationFactor;
+
+        Range(String endKey, int replicationFactor){
+            this.endKey = endKey;
+            this.replicationFactor = replicationFactor;
+        }
+    }
+
+    /**
+     * hash is a 64-bit FNV-1a of the UTF-8 bytes, mixed with the MurmurHash3 finalizer
+     * so that close strings (e.g. "13001#1", "13001#2") land far apart on the ring.
+     */
+    public static long hash(String s){
+        long h = 0xcbf29ce484222325L;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)){
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,21 @@
+package keyValService;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.List;
+
+/**
+ * InvalidationListener is called back by the servers a client subscribed to
+ * (see KeyValStoreInterface.subscribeInvalidations) when keys change, so that the client can drop its cached copies.
+ */
+public interface InvalidationListener extends Remote {
+    /**
+     * invalidate tells that the keys were written, deleted, expired or moved away since the last call.
+     */
+    void invalidate(List<String> keys) throws RemoteException;
+
+    /**
+     * invalidateAll tells that keys changed but the server does not know which any more, e.g. after a lost call.
+     */
+    void invalidateAll() throws RemoteException;
+}
@@ -8,14 +8,58 @@ package keyValService;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import server.ACKType;
+import server.KeyValOp;
+import server.RaftNode;
+import server.Versioned;
 
 public interface KeyValStoreInterface extends Remote {
     // declare the methods prototypes.
     String clientInputKeyValue(UUID messageID, String op, String key, String value) throws RemoteException;
+    String clientInputKeyValue(UUID messageID, String op, String key, String value, long ttlMillis) throws RemoteException;
+    String clientInputKeyValue(UUID messageID, String op, String key, String value, long ttlMillis, Consistency level) throws RemoteException;
+    SessionReply sessionRequest(UUID messageID, String op, String key, String value, long ttlMillis,
+                                long sessionToken, long maxStalenessMs) throws RemoteException;
+    ScanResult scan(String startKey, String endKey, String cursor, int limit) throws RemoteException;
+    ScanResult scanPrefix(String prefix, String cursor, int limit) throws RemoteException;
+    long openSnapshot() throws RemoteException;
+    void closeSnapshot(long snapshot) throws RemoteException;
+    Map<String, String> getAtSnapshot(List<String> keys, long snapshot) throws RemoteException;
+    Map<String, String> consistentGet(List<String> keys) throws RemoteException;
+    Map<String, String> multiGet(List<String> keys) throws RemoteException;
+    Map<String, String> multiPut(UUID messageID, Map<String, String> entries) throws RemoteException;
+    Map<String, String> multiDelete(UUID messageID, List<String> keys) throws RemoteException;
+    Map<String, Number> getMetrics() throws RemoteException;
+    HashRing getRing() throws RemoteException;
+    void subscribeInvalidations(InvalidationListener listener) throws RemoteException;
+    void unsubscribeInvalidations(InvalidationListener listener) throws RemoteException;
+    long watch(String pattern, long fromSeq, ChangeListener listener) throws RemoteException;
+    void unwatch(long watchId) throws RemoteException;
+    ChangeBatch pollChanges(String pattern, long fromSeq, int limit, long waitMs) throws RemoteException;
     void ackMe(UUID messageID, int callBackServer, ACKType type) throws RemoteException;
     void go(UUID messageID, int callBackServer) throws RemoteException;
     void prepareKeyValue(UUID messageID, String op, String key, String value, int callBackServer) throws RemoteException;
+    void prepareKeyValue(UUID messageID, KeyValOp[] ops, int callBackServer) throws RemoteException;
+    boolean prepareKeyValueVote(UUID messageID, KeyValOp[] ops, int callBackServer) throws RemoteException;
+    boolean goAck(UUID messageID) throws RemoteException;
+    void abort(UUID messageID) throws RemoteException;
+    Boolean txnCommitted(UUID messageID) throws RemoteException;
     void setServerInfo(int[] otherServerPorts, int yourPorts) throws RemoteException;
+    String changeMembership(String op, int server) throws RemoteException;
+    void setMembership(long epoch, int[] servers, int[] previousServers, HashRing ring, int rebalanceCoordinator) throws RemoteException;
+    int receiveKeys(Map<String, Versioned> entries) throws RemoteException;
+    void rebalanced(long epoch, int server) throws RemoteException;
+    long[] merkleTree(int peer) throws RemoteException;
+    Map<String, Versioned> merkleRange(int peer, int[] leaves) throws RemoteException;
+    int repairKeys(Map<String, Versioned> entries) throws RemoteException;
+    RaftNode.VoteReply requestVote(long term, int candidateId, long lastLogIndex, long lastLogTerm) throws RemoteException;
+    RaftNode.AppendReply appendEntries(long term, int leaderId, long prevLogIndex, long prevLogTerm,
+                                       RaftNode.LogEntry[] entries, long leaderCommit, long leaderTime) throws RemoteException;
+    Versioned replicaRead(String key) throws RemoteException;
+    boolean replicaWrite(String key, Versioned version) throws RemoteException;
+    boolean replicaWrite(String key, Versioned version, UUID messageID, String result) throws RemoteException;
+    long installSnapshot(long term, int leaderId, RaftNode.Snapshot snapshot) throws RemoteException;
 }
@@ -0,0 +1,34 @@
+package keyValService;
+
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * ScanResult is one page of a range or prefix scan.
+ * The entries are in key order. nextCursor is passed back to the next scan call
+ * to get the following page, and is null when the scan is complete.
+ */
+public class ScanResult implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final Map<String, String> entries;
+    private final String nextCursor;
+
+    public ScanResult(Map<String, String> entries, String nextCursor){
+        this.entries = entries;
+        this.nextCursor = nextCursor;
+    }
+
+    public Map<String, String> getEntries(){
+        return entries;
+    }
+
+    public String getNextCursor(){
+        return nextCursor;
+    }
+
+    @Override
+    public String toString(){
+        return "Scan result: " + entries + (nextCursor == null ? "" : " next cursor: " + nextCursor);
+    }
+}
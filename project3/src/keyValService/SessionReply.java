@@ -0,0 +1,56 @@
+package keyValService;
+
+import java.io.Serializable;
+
+/**
+ * SessionReply is the reply of a request made within a client session.
+ * The client passes sessionToken to its next request: a replica serves a read only once it
+ * has applied every write acknowledged before the token, so the client reads its own writes
+ * on whichever replica it asks.
+ */
+public class SessionReply implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String message;
+    private final long sessionToken;
+    private final int server;
+    private final boolean stale;
+
+    public SessionReply(String message, long sessionToken, int server){
+        this(message, sessionToken, server, false);
+    }
+
+    /**
+     * @param stale true if the server refused a read because its data is not fresh enough.
+     */
+    public SessionReply(String message, long sessionToken, int server, boolean stale){
+        this.message = message;
+        this.sessionToken = sessionToken;
+        this.server = server;
+        this.stale = stale;
+    }
+
+    public String getMessage(){
+        return message;
+    }
+
+    public long getSessionToken(){
+        return sessionToken;
+    }
+
+    /**
+     * @return port of the server that served the request.
+     */
+    public int getServer(){
+        return server;
+    }
+
+    public boolean isStale(){
+        return stale;
+    }
+
+    @Override
+    public String toString(){
+        return message + " (server " + server + ")";
+    }
+}
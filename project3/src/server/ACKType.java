@@ -1,5 +1,5 @@
 package server;
 
 public enum ACKType {
-    AckPrepare, AckGo
+    AckPrepare, AckGo, NackPrepare
 }
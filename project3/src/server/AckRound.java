@@ -0,0 +1,63 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * AckRound tracks the ACKs of one 2PC phase. The last ACK completes the round
+ * and wakes up the master server waiting in await.
+ */
+class AckRound{
+    private final Set<Integer> waiting = ConcurrentHashMap.newKeySet();
+    private final CompletableFuture<Boolean> done = new CompletableFuture<>();
+
+    AckRound(List<Integer> servers){
+        waiting.addAll(servers);
+        if (waiting.isEmpty()){
+            done.complete(true);
+        }
+    }
+
+    void ack(int server){
+        if (waiting.remove(server) && waiting.isEmpty()){
+            done.complete(true);
+        }
+    }
+
+    /**
+     * reject ends the round at once: a server voted no.
+     */
+    void reject(){
+        done.complete(false);
+    }
+
+    boolean isRejected(){
+        return done.isDone() && !done.join();
+    }
+
+    /**
+     * @return true if every server acked within the timeout.
+     */
+    boolean await(long timeoutMs){
+        try{
+            return done.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e){
+            return false;
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e){
+            return false;
+        }
+    }
+
+    List<Integer> laggards(){
+        return new ArrayList<>(waiting);
+    }
+}
@@ -0,0 +1,419 @@
+package server;
+
+import keyValService.Consistency;
+import keyValService.KeyValStoreInterface;
+import keyValService.ScanResult;
+import keyValService.SessionReply;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * BinaryCodec encodes the calls of KeyValStoreInterface for the NIO transport.
+ *
+ * A frame is [length][call id][body]. The body of a request is [method id][arguments],
+ * the body of a reply is [status][result or exception].
+ * Every value starts with a one-byte tag. Integers and lengths are varints, strings are UTF-8,
+ * and the types of the frequent calls (operations, replies, log entries) are written field by field.
+ * Any other Serializable value, e.g. a Raft snapshot or an exception, falls back to Java serialization.
+ */
+final class BinaryCodec {
+    static final byte OK = 0;
+    static final byte ERROR = 1;
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte INT = 2;
+    private static final byte LONG = 3;
+    private static final byte TRUE = 4;
+    private static final byte FALSE = 5;
+    private static final byte DOUBLE = 6;
+    private static final byte UUID_TAG = 7;
+    private static final byte ACK_TYPE = 8;
+    private static final byte CONSISTENCY = 9;
+    private static final byte OPS = 10;
+    private static final byte INTS = 11;
+    private static final byte LIST = 12;
+    private static final byte MAP = 13;
+    private static final byte SESSION_REPLY = 14;
+    private static final byte VERSIONED = 15;
+    private static final byte LOG_ENTRIES = 16;
+    private static final byte APPEND_REPLY = 17;
+    private static final byte VOTE_REPLY = 18;
+    private static final byte SCAN_RESULT = 19;
+    private static final byte LONGS = 20;
+    private static final byte SERIALIZED = 127;
+
+    // the methods of the interface in a fixed order: a method id is its index.
+    static final Method[] METHODS = methods();
+
+    private BinaryCodec(){
+    }
+
+    private static Method[] methods(){
+        Method[] methods = KeyValStoreInterface.class.getMethods();
+        Arrays.sort(methods, Comparator.comparing(m -> m.getName() + Arrays.toString(m.getParameterTypes())));
+        return methods;
+    }
+
+    static int methodId(Method method){
+        for (int i = 0; i < METHODS.length; i++){
+            if (METHODS[i].equals(method)){
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Not a method of KeyValStoreInterface: " + method);
+    }
+
+    static ByteBuffer request(int callId, int methodId, Object[] args) throws IOException{
+        Frame frame = new Frame(callId);
+        frame.out.writeShort(methodId);
+        int argc = args == null ? 0 : args.length;
+        for (int i = 0; i < argc; i++){
+            write(frame.out, args[i]);
+        }
+        return frame.toBuffer();
+    }
+
+    static ByteBuffer reply(int callId, byte status, Object value) throws IOException{
+        Frame frame = new Frame(callId);
+        frame.out.writeByte(status);
+        write(frame.out, value);
+        return frame.toBuffer();
+    }
+
+    // ----- values -----
+
+    static void write(DataOutputStream out, Object v) throws IOException{
+        if (v == null){
+            out.writeByte(NULL);
+        } else if (v instanceof String){
+            out.writeByte(STRING);
+            writeString(out, (String) v);
+        } else if (v instanceof Integer){
+            out.writeByte(INT);
+            writeVarLong(out, (Integer) v);
+        } else if (v instanceof Long){
+            out.writeByte(LONG);
+            writeVarLong(out, (Long) v);
+        } else if (v instanceof Boolean){
+            out.writeByte((Boolean) v ? TRUE : FALSE);
+        } else if (v instanceof Double){
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) v);
+        } else if (v instanceof UUID){
+            out.writeByte(UUID_TAG);
+            out.writeLong(((UUID) v).getMostSignificantBits());
+            out.writeLong(((UUID) v).getLeastSignificantBits());
+        } else if (v instanceof ACKType){
+            out.writeByte(ACK_TYPE);
+            out.writeByte(((ACKType) v).ordinal());
+        } else if (v instanceof Consistency){
+            out.writeByte(CONSISTENCY);
+            out.writeByte(((Consistency) v).ordinal());
+        } else if (v instanceof KeyValOp[]){
+            out.writeByte(OPS);
+            writeOps(out, (KeyValOp[]) v);
+        } else if (v instanceof int[]){
+            out.writeByte(INTS);
+            int[] ints = (int[]) v;
+            writeVarLong(out, ints.length);
+            for (int i : ints){
+                writeVarLong(out, i);
+            }
+        } else if (v instanceof long[]){
+            // hashes, e.g. a Merkle tree: fixed 8 bytes, as a varint would be longer.
+            out.writeByte(LONGS);
+            long[] longs = (long[]) v;
+            writeVarLong(out, longs.length);
+            for (long l : longs){
+                out.writeLong(l);
+            }
+        } else if (v instanceof List){
+            out.writeByte(LIST);
+            List<?> list = (List<?>) v;
+            writeVarLong(out, list.size());
+            for (Object e : list){
+                write(out, e);
+            }
+        } else if (v instanceof Map){
+            out.writeByte(MAP);
+            writeMap(out, (Map<?, ?>) v);
+        } else if (v instanceof SessionReply){
+            SessionReply r = (SessionReply) v;
+            out.writeByte(SESSION_REPLY);
+            writeNullableString(out, r.getMessage());
+            writeVarLong(out, r.getSessionToken());
+            writeVarLong(out, r.getServer());
+            out.writeBoolean(r.isStale());
+        } else if (v instanceof Versioned){
+            Versioned ver = (Versioned) v;
+            out.writeByte(VERSIONED);
+            writeNullableString(out, ver.value);
+            writeVarLong(out, ver.timestamp);
+            writeVarLong(out, ver.origin);
+            writeVarLong(out, ver.expireAt);
+        } else if (v instanceof RaftNode.LogEntry[]){
+            RaftNode.LogEntry[] entries = (RaftNode.LogEntry[]) v;
+            out.writeByte(LOG_ENTRIES);
+            writeVarLong(out, entries.length);
+            for (RaftNode.LogEntry e : entries){
+                writeVarLong(out, e.term);
+                writeOps(out, e.ops);
+            }
+        } else if (v instanceof RaftNode.AppendReply){
+            RaftNode.AppendReply r = (RaftNode.AppendReply) v;
+            out.writeByte(APPEND_REPLY);
+            writeVarLong(out, r.term);
+            out.writeBoolean(r.success);
+            writeVarLong(out, r.lastLogIndex);
+        } else if (v instanceof RaftNode.VoteReply){
+            RaftNode.VoteReply r = (RaftNode.VoteReply) v;
+            out.writeByte(VOTE_REPLY);
+            writeVarLong(out, r.term);
+            out.writeBoolean(r.granted);
+        } else if (v instanceof ScanResult){
+            ScanResult r = (ScanResult) v;
+            out.writeByte(SCAN_RESULT);
+            writeMap(out, r.getEntries());
+            writeNullableString(out, r.getNextCursor());
+        } else if (v instanceof Serializable){
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream objects = new ObjectOutputStream(bytes)){
+                objects.writeObject(v);
+            }
+            out.writeByte(SERIALIZED);
+            writeVarLong(out, bytes.size());
+            bytes.writeTo(out);
+        } else{
+            throw new IOException("Cannot encode " + v.getClass().getName());
+        }
+    }
+
+    static Object read(ByteBuffer in) throws IOException{
+        byte tag = in.get();
+        switch (tag){
+            case NULL:
+                return null;
+            case STRING:
+                return readString(in);
+            case INT:
+                return (int) readVarLong(in);
+            case LONG:
+                return readVarLong(in);
+            case TRUE:
+                return true;
+            case FALSE:
+                return false;
+            case DOUBLE:
+                return in.getDouble();
+            case UUID_TAG:
+                return new UUID(in.getLong(), in.getLong());
+            case ACK_TYPE:
+                return ACKType.values()[in.get()];
+            case CONSISTENCY:
+                return Consistency.values()[in.get()];
+            case OPS:
+                return readOps(in);
+            case INTS:{
+                int[] ints = new int[(int) readVarLong(in)];
+                for (int i = 0; i < ints.length; i++){
+                    ints[i] = (int) readVarLong(in);
+                }
+                return ints;
+            }
+            case LONGS:{
+                long[] longs = new long[(int) readVarLong(in)];
+                for (int i = 0; i < longs.length; i++){
+                    longs[i] = in.getLong();
+                }
+                return longs;
+            }
+            case LIST:{
+                int size = (int) readVarLong(in);
+                List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++){
+                    list.add(read(in));
+                }
+                return list;
+            }
+            case MAP:
+                return readMap(in);
+            case SESSION_REPLY:
+                return new SessionReply(readNullableString(in), readVarLong(in), (int) readVarLong(in), in.get() != 0);
+            case VERSIONED:
+                return new Versioned(readNullableString(in), readVarLong(in), (int) readVarLong(in), readVarLong(in));
+            case LOG_ENTRIES:{
+                RaftNode.LogEntry[] entries = new RaftNode.LogEntry[(int) readVarLong(in)];
+                for (int i = 0; i < entries.length; i++){
+                    entries[i] = new RaftNode.LogEntry(readVarLong(in), readOps(in));
+                }
+                return entries;
+            }
+            case APPEND_REPLY:
+                return new RaftNode.AppendReply(readVarLong(in), in.get() != 0, readVarLong(in));
+            case VOTE_REPLY:
+                return new RaftNode.VoteReply(readVarLong(in), in.get() != 0);
+            case SCAN_RESULT:{
+                Map<String, String> entries = new LinkedHashMap<>();
+                for (Map.Entry<Object, Object> e : readMap(in).entrySet()){
+                    entries.put((String) e.getKey(), (String) e.getValue());
+                }
+                return new ScanResult(entries, readNullableString(in));
+            }
+            case SERIALIZED:{
+                byte[] bytes = new byte[(int) readVarLong(in)];
+                in.get(bytes);
+                try (ObjectInputStream objects = new ObjectInputStream(new ByteArrayInputStream(bytes))){
+                    return objects.readObject();
+                } catch (ClassNotFoundException e){
+                    throw new IOException("Cannot decode " + e.getMessage(), e);
+                }
+            }
+            default:
+                throw new IOException("Unknown tag " + tag);
+        }
+    }
+
+    private static void writeOps(DataOutputStream out, KeyValOp[] ops) throws IOException{
+        writeVarLong(out, ops.length);
+        for (KeyValOp op : ops){
+            writeString(out, op.operation);
+            writeString(out, op.key);
+            writeNullableString(out, op.value);
+            writeVarLong(out, op.expireAt);
+            writeVarLong(out, op.timestamp);
+            writeVarLong(out, op.origin);
+            writeVarLong(out, op.proposedAt);
+            out.writeBoolean(op.messageID != null);
+            if (op.messageID != null){
+                out.writeLong(op.messageID.getMostSignificantBits());
+                out.writeLong(op.messageID.getLeastSignificantBits());
+            }
+        }
+    }
+
+    private static KeyValOp[] readOps(ByteBuffer in){
+        KeyValOp[] ops = new KeyValOp[(int) readVarLong(in)];
+        for (int i = 0; i < ops.length; i++){
+            ops[i] = new KeyValOp(readString(in), readString(in), readNullableString(in), readVarLong(in));
+            ops[i].timestamp = readVarLong(in);
+            ops[i].origin = (int) readVarLong(in);
+            ops[i].proposedAt = readVarLong(in);
+            if (in.get() != 0){
+                ops[i].messageID = new UUID(in.getLong(), in.getLong());
+            }
+        }
+        return ops;
+    }
+
+    private static void writeMap(DataOutputStream out, Map<?, ?> map) throws IOException{
+        writeVarLong(out, map.size());
+        for (Map.Entry<?, ?> e : map.entrySet()){
+            write(out, e.getKey());
+            write(out, e.getValue());
+        }
+    }
+
+    private static Map<Object, Object> readMap(ByteBuffer in) throws IOException{
+        int size = (int) readVarLong(in);
+        Map<Object, Object> map = new LinkedHashMap<>();
+        for (int i = 0; i < size; i++){
+            map.put(read(in), read(in));
+        }
+        return map;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException{
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in){
+        byte[] bytes = new byte[(int) readVarLong(in)];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * writeNullableString writes the length plus one, 0 for null.
+     */
+    private static void writeNullableString(DataOutputStream out, String s) throws IOException{
+        if (s == null){
+            writeVarLong(out, 0);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, bytes.length + 1);
+        out.write(bytes);
+    }
+
+    private static String readNullableString(ByteBuffer in){
+        int length = (int) readVarLong(in) - 1;
+        if (length < 0){
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * writeVarLong writes a zigzag varint: 7 bits per byte, small values of either sign take one byte.
+     */
+    private static void writeVarLong(DataOutputStream out, long v) throws IOException{
+        long zigzag = (v << 1) ^ (v >> 63);
+        while ((zigzag & ~0x7FL) != 0){
+            out.writeByte((int) ((zigzag & 0x7F) | 0x80));
+            zigzag >>>= 7;
+        }
+        out.writeByte((int) zigzag);
+    }
+
+    private static long readVarLong(ByteBuffer in){
+        long zigzag = 0;
+        for (int shift = 0; ; shift += 7){
+            byte b = in.get();
+            zigzag |= (long) (b & 0x7F) << shift;
+            if (b >= 0){
+                break;
+            }
+        }
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    /**
+     * Frame collects the body of a frame, then prefixes it with its length.
+     */
+    private static class Frame{
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        final DataOutputStream out = new DataOutputStream(bytes);
+
+        Frame(int callId) throws IOException{
+            out.writeInt(0); // length, set in toBuffer.
+            out.writeInt(callId);
+        }
+
+        ByteBuffer toBuffer(){
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            buffer.putInt(0, buffer.limit() - 4);
+            return buffer;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package server;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * CachingStore keeps a bounded TinyLfuCache in front of a FileBackingStore.
+ * Reads that miss the cache read through to the backing store and offer the value to the cache;
+ * writes go to the backing store first and then update the cache.
+ * A read through that raced with a write of its key may hold the value from before the write:
+ * it is not offered to the cache, which would otherwise keep a stale value after the write updated it.
+ * A write holds the lock of the stripe of its key while it changes the backing store and the cache,
+ * and a read through only offers its value under that lock, if no write of the stripe started since its read.
+ */
+public class CachingStore implements ValueStore {
+    private static final int WRITE_STRIPES = 64;
+
+    private final TinyLfuCache cache;
+    private final FileBackingStore backing;
+    private final Object[] stripeLocks = new Object[WRITE_STRIPES];
+    // number of writes of the keys of each stripe, under its lock, to tell a read through that a write came in between.
+    private final long[] writes = new long[WRITE_STRIPES];
+
+    public CachingStore(TinyLfuCache cache, FileBackingStore backing){
+        this.cache = cache;
+        this.backing = backing;
+        for (int i = 0; i < WRITE_STRIPES; i++){
+            stripeLocks[i] = new Object();
+        }
+    }
+
+    public String get(String key){
+        String value = cache.get(key);
+        if (value == null){
+            int stripe = stripe(key);
+            long writesBefore;
+            synchronized (stripeLocks[stripe]){
+                writesBefore = writes[stripe];
+            }
+            value = backing.get(key);
+            if (value != null){
+                synchronized (stripeLocks[stripe]){
+                    if (writes[stripe] == writesBefore){
+                        cache.put(key, value);
+                    }
+                }
+            }
+        }
+        return value;
+    }
+
+    public String putIfAbsent(String key, String value){
+        String existing = cache.peek(key);
+        if (existing == null){
+            existing = backing.get(key);
+        }
+        if (existing == null){
+            put(key, value);
+        }
+        return existing;
+    }
+
+    public String put(String key, String value){
+        int stripe = stripe(key);
+        synchronized (stripeLocks[stripe]){
+            writes[stripe]++;
+            String existing = backing.get(key);
+            backing.put(key, value);
+            cache.put(key, value);
+            return existing;
+        }
+    }
+
+    public String remove(String key){
+        int stripe = stripe(key);
+        synchronized (stripeLocks[stripe]){
+            writes[stripe]++;
+            String existing = backing.get(key);
+            backing.remove(key);
+            cache.invalidate(key);
+            return existing;
+        }
+    }
+
+    private static int stripe(String key){
+        return (key.hashCode() & 0x7fffffff) % WRITE_STRIPES;
+    }
+
+    public Set<String> keySet(){
+        return backing.keySet();
+    }
+
+    public void addMetrics(Map<String, Number> metrics){
+        cache.addMetrics(metrics);
+        metrics.put("store.keys", backing.keySet().size());
+    }
+}
@@ -0,0 +1,240 @@
+package server;
+
+import keyValService.Change;
+import keyValService.ChangeBatch;
+import keyValService.ChangeListener;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ChangeLog keeps the last maxEntries changes committed on the server, numbered in commit order,
+ * and streams them to the watches of the clients.
+ *
+ * A watch is only a pattern and a cursor into the log: each change is kept once, whatever the number of watches,
+ * and sent once to each watch that matches it. A watch has at most one call in flight, and its cursor only moves
+ * when the call returns, so a slow watcher falls behind without holding up the writes or the other watchers.
+ * If it falls further behind than the log keeps, its next batch is marked as a gap, and it resumes at the oldest change kept.
+ * A watch whose calls fail MAX_FAILURES times in a row is removed; its client can watch again from its last seq.
+ * A seq after the last change, e.g. one numbered before the server restarted, is read as a gap from the oldest change kept.
+ * Each batch carries the incarnation of the log, so that a client can tell that the server restarted.
+ *
+ * A pattern is a key, a prefix ending with "*", or "*" for every key.
+ */
+class ChangeLog {
+    private static final int MAX_BATCH = 256;
+    private static final int MAX_FAILURES = 3;
+
+    private final Change[] log;
+    // sequence number of the next change.
+    private long nextSeq = 1;
+    // id of this run of the server, which numbers its changes from 1.
+    private final long incarnation = System.currentTimeMillis();
+    private final ConcurrentHashMap<Long, Watch> watches = new ConcurrentHashMap<>();
+    private final AtomicLong nextWatchId = new AtomicLong(1);
+    private final Executor executor;
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong gaps = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param maxEntries most changes kept, i.e. how far behind a watcher can fall without missing changes.
+     * @param executor runs the calls to the watchers.
+     */
+    ChangeLog(int maxEntries, Executor executor){
+        if (maxEntries <= 0){
+            throw new IllegalArgumentException("Change log size should be positive.");
+        }
+        this.log = new Change[maxEntries];
+        this.executor = executor;
+    }
+
+    /**
+     * append adds a committed change, and wakes up the watches and polls waiting for it.
+     * The caller holds the write lock, so the changes are appended in commit order.
+     * @param value the new value, null for a delete.
+     */
+    void append(String key, String value){
+        List<Watch> toFlush = new ArrayList<>();
+        synchronized (this){
+            long seq = nextSeq++;
+            log[(int) (seq % log.length)] = new Change(seq, key, value, System.currentTimeMillis());
+            for (Watch w : watches.values()){
+                if (w.flushing){
+                    continue;
+                }
+                if (w.matches(key)){
+                    w.flushing = true;
+                    toFlush.add(w);
+                } else{
+                    // an idle watch is caught up: it skips the change, so that it never falls behind on changes it does not want.
+                    w.cursor = seq + 1;
+                }
+            }
+            notifyAll();
+        }
+        for (Watch w : toFlush){
+            executor.execute(() -> flush(w));
+        }
+    }
+
+    /**
+     * watch streams the changes matching the pattern to the listener, from fromSeq on.
+     * @param fromSeq first change to send, or 0 for the changes committed from now on.
+     * @return the id of the watch, for unwatch.
+     */
+    long watch(String pattern, long fromSeq, ChangeListener listener){
+        checkPattern(pattern);
+        Watch w = new Watch(nextWatchId.getAndIncrement(), pattern, listener);
+        synchronized (this){
+            w.cursor = fromSeq <= 0 ? nextSeq : fromSeq;
+            watches.put(w.id, w);
+            if (w.cursor != nextSeq){
+                w.flushing = true;
+                executor.execute(() -> flush(w));
+            }
+        }
+        return w.id;
+    }
+
+    boolean unwatch(long watchId){
+        return watches.remove(watchId) != null;
+    }
+
+    /**
+     * poll returns the changes matching the pattern from fromSeq on, and waits at most waitMs for one if there is none yet.
+     * @param fromSeq first change to return, or 0 for the changes committed from now on.
+     */
+    ChangeBatch poll(String pattern, long fromSeq, int limit, long waitMs) throws InterruptedException{
+        checkPattern(pattern);
+        if (limit <= 0){
+            throw new IllegalArgumentException("Limit should be positive.");
+        }
+        long deadline = System.currentTimeMillis() + Math.max(0, waitMs);
+        synchronized (this){
+            long from = fromSeq <= 0 ? nextSeq : fromSeq;
+            while (true){
+                ChangeBatch batch = read(pattern, from, limit);
+                long left = deadline - System.currentTimeMillis();
+                if (!batch.getChanges().isEmpty() || batch.isGap() || left <= 0){
+                    return batch;
+                }
+                // the changes read did not match: skip them while waiting for the next ones.
+                from = batch.getNextSeq();
+                wait(left);
+            }
+        }
+    }
+
+    synchronized long lastSeq(){
+        return nextSeq - 1;
+    }
+
+    long incarnation(){
+        return incarnation;
+    }
+
+    void addMetrics(Map<String, Number> metrics){
+        metrics.put("changes.lastSeq", lastSeq());
+        metrics.put("changes.watches", watches.size());
+        metrics.put("changes.calls", calls.get());
+        metrics.put("changes.sent", sent.get());
+        metrics.put("changes.gaps", gaps.get());
+        metrics.put("changes.droppedWatches", dropped.get());
+    }
+
+    /**
+     * flush sends the changes after the cursor of the watch until it has caught up with the log.
+     * Only one flush of a watch runs at a time: the one that set its flushing flag.
+     * A listener that throws counts as a failed call, so that the flush still ends.
+     */
+    private void flush(Watch w){
+        while (watches.get(w.id) == w){
+            ChangeBatch batch;
+            synchronized (this){
+                if (w.cursor == nextSeq){
+                    w.flushing = false;
+                    return;
+                }
+                batch = read(w.pattern, w.cursor, MAX_BATCH);
+                if (batch.getChanges().isEmpty() && !batch.isGap()){
+                    w.cursor = batch.getNextSeq();
+                    continue;
+                }
+            }
+            try{
+                w.listener.changes(w.id, batch);
+                calls.incrementAndGet();
+                sent.addAndGet(batch.getChanges().size());
+                if (batch.isGap()){
+                    gaps.incrementAndGet();
+                }
+                w.cursor = batch.getNextSeq();
+                w.failures = 0;
+            } catch (RemoteException | RuntimeException e){
+                if (++w.failures >= MAX_FAILURES && watches.remove(w.id, w)){
+                    dropped.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * read returns up to limit changes matching the pattern from fromSeq on. The caller holds the lock of the log.
+     * A fromSeq that was dropped, or that is after the last change, is a gap: the changes are read from the oldest one kept.
+     */
+    private ChangeBatch read(String pattern, long fromSeq, int limit){
+        long oldest = Math.max(1, nextSeq - log.length);
+        boolean gap = fromSeq < oldest || fromSeq > nextSeq;
+        long seq = gap ? oldest : fromSeq;
+        List<Change> changes = new ArrayList<>();
+        // a pattern that rarely matches should not scan the whole log at once.
+        long end = Math.min(nextSeq, seq + (long) limit * 16);
+        for (; seq < end && changes.size() < limit; seq++){
+            Change c = log[(int) (seq % log.length)];
+            if (matches(pattern, c.key)){
+                changes.add(c);
+            }
+        }
+        return new ChangeBatch(changes, seq, gap, incarnation);
+    }
+
+    private static boolean matches(String pattern, String key){
+        if (pattern.endsWith("*")){
+            return key.startsWith(pattern.substring(0, pattern.length() - 1));
+        }
+        return pattern.equals(key);
+    }
+
+    private static void checkPattern(String pattern){
+        if (pattern == null || pattern.isEmpty()){
+            throw new IllegalArgumentException("Pattern should be a key, a prefix ending with *, or *.");
+        }
+    }
+
+    private static final class Watch{
+        final long id;
+        final String pattern;
+        final ChangeListener listener;
+        // next change to send, and whether a flush is queued or running. Both under the lock of the log.
+        long cursor;
+        boolean flushing;
+        int failures;
+
+        Watch(long id, String pattern, ChangeListener listener){
+            this.id = id;
+            this.pattern = pattern;
+            this.listener = listener;
+        }
+
+        boolean matches(String key){
+            return ChangeLog.matches(pattern, key);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package server;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * CompactHashMap is an open-addressing hash table of UTF-8 encoded keys and values.
+ * Each slot is three array cells (hash, key, value): there is no node object per entry,
+ * and the hash of the key is computed once and kept, so probing compares ints before bytes.
+ * A replaced value keeps the key array already in the table, so each key is stored once.
+ *
+ * Reads share a read lock and writes take the write lock.
+ */
+public class CompactHashMap {
+    private static final int INITIAL_CAPACITY = 16;
+    // a deleted slot, so that probing goes on past it.
+    private static final byte[] TOMBSTONE = new byte[0];
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private int[] hashes = new int[INITIAL_CAPACITY];
+    private byte[][] keys = new byte[INITIAL_CAPACITY][];
+    private byte[][] values = new byte[INITIAL_CAPACITY][];
+    private int size;
+    private int used; // live and deleted slots
+
+    public String get(String key){
+        byte[] k = CompactKeys.encode(key);
+        int hash = CompactKeys.hash(k);
+        lock.readLock().lock();
+        try{
+            int slot = find(k, hash);
+            return slot < 0 ? null : CompactKeys.decode(values[slot]);
+        } finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * intern returns the key array held by the table, so that other indexes can share it,
+     * or a new encoded array if the key is not in the table.
+     */
+    public byte[] intern(String key){
+        byte[] k = CompactKeys.encode(key);
+        int hash = CompactKeys.hash(k);
+        lock.readLock().lock();
+        try{
+            int slot = find(k, hash);
+            return slot < 0 ? k : keys[slot];
+        } finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * put adds or replaces a value.
+     * @param onlyIfAbsent keep the existing value if the key is present.
+     * @return the previous value, or null.
+     */
+    public String put(String key, String value, boolean onlyIfAbsent){
+        byte[] k = CompactKeys.encode(key);
+        int hash = CompactKeys.hash(k);
+        lock.writeLock().lock();
+        try{
+            int slot = find(k, hash);
+            if (slot >= 0){
+                String previous = CompactKeys.decode(values[slot]);
+                if (!onlyIfAbsent){
+                    values[slot] = CompactKeys.encode(value);
+                }
+                return previous;
+            }
+            if ((used + 1) * 4L > keys.length * 3L){
+                resize(size + 1 > keys.length / 2 ? keys.length * 2 : keys.length);
+            }
+            slot = freeSlot(hash);
+            if (keys[slot] == null){
+                used++;
+            }
+            hashes[slot] = hash;
+            keys[slot] = k;
+            values[slot] = CompactKeys.encode(value);
+            size++;
+            return null;
+        } finally{
+            lock.writeLock().unlock();
+        }
+    }
+
+    public String remove(String key){
+        byte[] k = CompactKeys.encode(key);
+        int hash = CompactKeys.hash(k);
+        lock.writeLock().lock();
+        try{
+            int slot = find(k, hash);
+            if (slot < 0){
+                return null;
+            }
+            String previous = CompactKeys.decode(values[slot]);
+            keys[slot] = TOMBSTONE;
+            values[slot] = null;
+            size--;
+            return previous;
+        } finally{
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size(){
+        lock.readLock().lock();
+        try{
+            return size;
+        } finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    public Set<String> keySet(){
+        lock.readLock().lock();
+        try{
+            Set<String> result = new HashSet<>(size * 2);
+            for (byte[] k : keys){
+                if (k != null && k != TOMBSTONE){
+                    result.add(CompactKeys.decode(k));
+                }
+            }
+            return result;
+        } finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    private int find(byte[] k, int hash){
+        int mask = keys.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask){
+            byte[] candidate = keys[slot];
+            if (candidate == null){
+                return -1;
+            }
+            if (candidate != TOMBSTONE && hashes[slot] == hash && CompactKeys.compare(candidate, k) == 0){
+                return slot;
+            }
+        }
+    }
+
+    private int freeSlot(int hash){
+        int mask = keys.length - 1;
+        int slot = hash & mask;
+        while (keys[slot] != null && keys[slot] != TOMBSTONE){
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * resize rehashes the live entries into a table of the given capacity, dropping the tombstones.
+     */
+    private void resize(int capacity){
+        int[] oldHashes = hashes;
+        byte[][] oldKeys = keys;
+        byte[][] oldValues = values;
+        hashes = new int[capacity];
+        keys = new byte[capacity][];
+        values = new byte[capacity][];
+        used = size;
+        for (int i = 0; i < oldKeys.length; i++){
+            if (oldKeys[i] != null && oldKeys[i] != TOMBSTONE){
+                int slot = freeSlot(oldHashes[i]);
+                hashes[slot] = oldHashes[i];
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+}
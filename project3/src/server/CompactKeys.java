@@ -0,0 +1,78 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * CompactKeys encodes keys and values as UTF-8 byte arrays instead of java.lang.String,
+ * so that an entry costs one array (16 bytes of header) instead of a String object plus its array.
+ * Encoded keys compare byte by byte as unsigned values, which is the code point order of the keys.
+ */
+final class CompactKeys {
+
+    private CompactKeys(){
+    }
+
+    static byte[] encode(String s){
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    static String decode(byte[] bytes){
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static int compare(byte[] a, byte[] b){
+        return Arrays.compareUnsigned(a, b);
+    }
+
+    /**
+     * prefixEnd returns the smallest encoded key greater than every encoded key starting with prefix,
+     * or null if there is none (empty prefix, or a prefix made of 0xff bytes only).
+     * It works on the bytes, as the index compares them: any character, surrogate pairs included, has an end.
+     */
+    static byte[] prefixEnd(byte[] prefix){
+        for (int i = prefix.length - 1; i >= 0; i--){
+            if (prefix[i] != (byte) 0xff){
+                byte[] end = Arrays.copyOf(prefix, i + 1);
+                end[i]++;
+                return end;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * hash is the 32-bit MurmurHash3 of the bytes. Unlike String.hashCode,
+     * it spreads short keys that differ in one character over the whole table.
+     */
+    static int hash(byte[] bytes){
+        int h = 0x9747b28c;
+        int i = 0;
+        for (; i + 4 <= bytes.length; i += 4){
+            int k = (bytes[i] & 0xff) | (bytes[i + 1] & 0xff) << 8 | (bytes[i + 2] & 0xff) << 16 | (bytes[i + 3] & 0xff) << 24;
+            h ^= mixK(k);
+            h = Integer.rotateLeft(h, 13) * 5 + 0xe6546b64;
+        }
+        if (i < bytes.length){
+            // the last 1 to 3 bytes, little-endian as the blocks.
+            int k = 0;
+            for (int j = bytes.length - 1; j >= i; j--){
+                k = k << 8 | (bytes[j] & 0xff);
+            }
+            h ^= mixK(k);
+        }
+        h ^= bytes.length;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static int mixK(int k){
+        k *= 0xcc9e2d51;
+        k = Integer.rotateLeft(k, 15);
+        return k * 0x1b873593;
+    }
+}
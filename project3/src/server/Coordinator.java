@@ -2,32 +2,55 @@
  * This project is inspired by
  * https://github.com/ronak14329/Replicated-using-2-Phase-Commit-Multi-threaded-Key-Value-Store-using-RPC.
  *
- * The Coordinator class instantiates 5 servers.
+ * The Coordinator class instantiates one server per port given.
+ * With --join, the servers are added one by one to a running cluster instead of forming a new one.
  * For each server, it does not extend UnicastRemoteObject.
  * Instead, it implements the remote interface and call UnicastRemoteObject.exportObject() to export the remote object.
  */
 package server;
 
+import keyValService.HashRing;
 import keyValService.KeyValStoreInterface;
 
+import java.nio.file.Paths;
 import java.rmi.AccessException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Coordinator extends Thread{
     private static ServerHelper serverHelper = new ServerHelper();
-    private static Server[] servers = new Server[5];
+    private static final long JOIN_RETRY_MS = 200;
+    private static Server[] servers;
 
     public static void main(String args[]) throws Exception{
         serverHelper.ParseServerArgsToPorts(args);
+        servers = new Server[serverHelper.serverPortNumbers.length];
+        // joining servers get the ring of the cluster when they join.
+        HashRing ring = serverHelper.joinPort > 0 ? null : createRing();
 
         for (int i = 0; i < serverHelper.serverPortNumbers.length; i++){
             try{
                 // server needs to create the remote object that provides the service.
-                servers[i] = new Server();
+                servers[i] = createServer(serverHelper.serverPortNumbers[i]);
+                servers[i].setAckTimeout(serverHelper.ackTimeoutMs);
+                servers[i].setAsyncAcks(serverHelper.asyncAcks);
+                servers[i].setGroupCommit(serverHelper.batchSize, serverHelper.batchWindowMs, serverHelper.commitThreads);
+                servers[i].setLockWait(serverHelper.lockWaitMs);
+                servers[i].setRaft(serverHelper.consensus.equals("raft"), serverHelper.raftPipelineDepth, serverHelper.raftSnapshotEntries,
+                        serverHelper.dataDir == null ? null : Paths.get(serverHelper.dataDir));
+                servers[i].setQuorum(serverHelper.consensus.equals("quorum"), serverHelper.consistency);
+                servers[i].setNioTransport(serverHelper.nioTransport);
+                servers[i].setRing(ring);
+                servers[i].setRebalanceRate(serverHelper.rebalanceKeysPerSec);
+                servers[i].setAntiEntropy(serverHelper.antiEntropyMs);
+                servers[i].setTransactionLimits(serverHelper.maxTransactions, serverHelper.txnTimeoutMs);
+                servers[i].setDedup(serverHelper.dedupEntries, serverHelper.dedupWindowMs);
+                servers[i].setChangeLog(serverHelper.changeLogEntries);
                 // Additionally, the remote object must be exported to the Java RMI runtime so that it may receive incoming remote calls.
                 // The static method UnicastRemoteObject.exportObject exports the supplied remote object
                 // to receive incoming remote method invocations on an anonymous TCP port
@@ -42,6 +65,9 @@ public class Coordinator extends Thread{
                 // Creates and exports a Registry instance on the local host that accepts requests on the specified port.
                 Registry registry = LocateRegistry.createRegistry(port);
                 registry.rebind("keyValService.KeyValStoreInterface", stub);
+                if (serverHelper.nioTransport){
+                    new NioRpcServer(servers[i], port + NioRpcServer.PORT_OFFSET, daemonThreads("nio-" + port));
+                }
                 registerServerInfo(serverHelper.serverPortNumbers, port);
                 serverHelper.log("Server " + i + " is running at port " + port);
             } catch (RemoteException e) {
@@ -50,8 +76,68 @@ public class Coordinator extends Thread{
             Thread serverThread = new Thread();
             serverThread.start();
         }
+        if (serverHelper.joinPort > 0){
+            joinCluster(serverHelper.joinPort);
+        }
+    }
+
+    /**
+     * joinCluster asks a server of a running cluster to add the servers, one at a time:
+     * a join is refused while the keys of the previous change are moving, and tried again.
+     * @param port port of a server of the cluster.
+     */
+    private static void joinCluster(int port) throws Exception{
+        KeyValStoreInterface member = (KeyValStoreInterface) LocateRegistry.getRegistry(port).lookup("keyValService.KeyValStoreInterface");
+        for (int server : serverHelper.serverPortNumbers){
+            String msg = member.changeMembership("join", server);
+            while (msg.contains("still moving")){
+                Thread.sleep(JOIN_RETRY_MS);
+                msg = member.changeMembership("join", server);
+            }
+            serverHelper.log(msg);
+        }
+    }
+
+
+    /**
+     * createServer keeps every key in memory, unless a cache size is given:
+     * then the server keeps at most that many bytes in a W-TinyLFU cache
+     * and reads the misses from its own file in the data directory.
+     * @param port
+     * @return
+     */
+    private static Server createServer(int port) throws Exception{
+        if (serverHelper.cacheBytes <= 0){
+            return new Server();
+        }
+        FileBackingStore backing = new FileBackingStore(Paths.get(serverHelper.dataDir == null ? "." : serverHelper.dataDir, "server-" + port + ".log"));
+        return new Server(new CachingStore(new TinyLfuCache(serverHelper.cacheBytes), backing));
     }
 
+    /**
+     * createRing places the servers on a consistent-hash ring when a replication factor is given.
+     * @return null if every server keeps every key.
+     */
+    private static HashRing createRing(){
+        if (serverHelper.replicationFactor <= 0){
+            return null;
+        }
+        HashRing ring = new HashRing(serverHelper.serverPortNumbers, serverHelper.virtualNodes, serverHelper.replicationFactor);
+        for (String[] range : serverHelper.rangeReplication){
+            ring.setRangeReplication(range[0], range[1], Integer.parseInt(range[2]));
+        }
+        serverHelper.log(ring.toString());
+        return ring;
+    }
+
+    private static ThreadFactory daemonThreads(String name){
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
 
     /**
      * registerServerInfo does two things:
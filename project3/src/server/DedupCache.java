@@ -0,0 +1,82 @@
+package server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * DedupCache remembers the results of the recent client writes by their messageID,
+ * so that a write sent again by its client (e.g. after a timeout) is not applied twice
+ * and gets the result of the first one instead.
+ *
+ * The messageID is replicated with the write, and every replica records the result when it applies it:
+ * a retry served by another server finds it too.
+ * It keeps at most maxEntries results, each for at most windowMs; the oldest go first.
+ */
+class DedupCache {
+    private final LinkedHashMap<UUID, Entry> entries = new LinkedHashMap<>();
+    private final int maxEntries;
+    private final long windowMs;
+    private long hits;
+    private long evictions;
+
+    /**
+     * @param maxEntries most results kept.
+     * @param windowMs how long a result is kept, i.e. how late a retry is still recognized.
+     */
+    DedupCache(int maxEntries, long windowMs){
+        if (maxEntries <= 0 || windowMs <= 0){
+            throw new IllegalArgumentException("Dedup cache size and window should be positive.");
+        }
+        this.maxEntries = maxEntries;
+        this.windowMs = windowMs;
+    }
+
+    /**
+     * @return the result of the write with that messageID, or null if it is not applied yet or was forgotten.
+     */
+    synchronized String get(UUID messageID){
+        Entry e = entries.get(messageID);
+        if (e == null || e.at + windowMs <= System.currentTimeMillis()){
+            return null;
+        }
+        hits++;
+        return e.result;
+    }
+
+    synchronized void put(UUID messageID, String result){
+        long now = System.currentTimeMillis();
+        entries.put(messageID, new Entry(result, now));
+        evict(now);
+    }
+
+    synchronized void addMetrics(Map<String, Number> metrics){
+        metrics.put("dedup.entries", entries.size());
+        metrics.put("dedup.hits", hits);
+        metrics.put("dedup.evictions", evictions);
+    }
+
+    // entries are in the order they were put, so the oldest are first.
+    private void evict(long now){
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()){
+            Entry oldest = it.next();
+            if (entries.size() <= maxEntries && oldest.at + windowMs > now){
+                return;
+            }
+            it.remove();
+            evictions++;
+        }
+    }
+
+    private static final class Entry{
+        final String result;
+        final long at;
+
+        Entry(String result, long at){
+            this.result = result;
+            this.at = at;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * FileBackingStore is the persistent tier behind the cache.
+ * Every put or delete is appended to a log file as a record:
+ * [key length][value length, -1 for a delete][key bytes][value bytes], in UTF-8.
+ * Only the keys and the offsets of their latest record are kept in memory;
+ * values are read from the file on demand. The index is rebuilt from the log when the file is reopened.
+ */
+public class FileBackingStore {
+    private static final int HEADER_BYTES = 8;
+
+    private final FileChannel channel;
+    private final ConcurrentHashMap<String, Long> index = new ConcurrentHashMap<>();
+    private long end;
+
+    public FileBackingStore(Path file) throws IOException{
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        load();
+    }
+
+    public String get(String key){
+        Long offset = index.get(key);
+        if (offset == null){
+            return null;
+        }
+        try{
+            ByteBuffer header = read(offset, HEADER_BYTES);
+            int keyLength = header.getInt();
+            int valueLength = header.getInt();
+            ByteBuffer value = read(offset + HEADER_BYTES + keyLength, valueLength);
+            return new String(value.array(), StandardCharsets.UTF_8);
+        } catch (IOException e){
+            throw new UncheckedIOException("Read from backing store fail", e);
+        }
+    }
+
+    public synchronized void put(String key, String value){
+        index.put(key, append(key, value.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    public synchronized void remove(String key){
+        if (index.remove(key) != null){
+            append(key, null);
+        }
+    }
+
+    public Set<String> keySet(){
+        return index.keySet();
+    }
+
+    private long append(String key, byte[] value){
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int valueLength = value == null ? -1 : value.length;
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + keyBytes.length + Math.max(0, valueLength));
+        record.putInt(keyBytes.length).putInt(valueLength).put(keyBytes);
+        if (value != null){
+            record.put(value);
+        }
+        record.flip();
+        long offset = end;
+        try{
+            while (record.hasRemaining()){
+                end += channel.write(record, end);
+            }
+        } catch (IOException e){
+            throw new UncheckedIOException("Write to backing store fail", e);
+        }
+        return offset;
+    }
+
+    private void load() throws IOException{
+        long size = channel.size();
+        long offset = 0;
+        while (offset + HEADER_BYTES <= size){
+            ByteBuffer header = read(offset, HEADER_BYTES);
+            int keyLength = header.getInt();
+            int valueLength = header.getInt();
+            long next = offset + HEADER_BYTES + keyLength + Math.max(0, valueLength);
+            if (next > size){
+                // the last record was cut short by a crash, drop it.
+                break;
+            }
+            String key = new String(read(offset + HEADER_BYTES, keyLength).array(), StandardCharsets.UTF_8);
+            if (valueLength < 0){
+                index.remove(key);
+            } else{
+                index.put(key, offset);
+            }
+            offset = next;
+        }
+        end = offset;
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException{
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()){
+            if (channel.read(buffer, position + buffer.position()) < 0){
+                throw new EOFException("Unexpected end of backing store at " + position);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
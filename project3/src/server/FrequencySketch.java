@@ -0,0 +1,81 @@
+package server;
+
+/**
+ * FrequencySketch is a count-min sketch of 4-bit counters that estimates how often a key was accessed.
+ * Four counters per key, one in each row, are packed sixteen to a long.
+ * When the number of increments reaches the sample size, every counter is halved,
+ * so that the sketch forgets old popularity (the "aging" of TinyLFU).
+ */
+class FrequencySketch {
+    private static final int ROWS = 4;
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int[] SEEDS = {0x97cb3127, 0xb3d2e5f1, 0x2f0e1a33, 0xc2b2ae35};
+
+    private final long[] table;
+    private final int rowMask;
+    private final int sampleSize;
+    private int size;
+
+    /**
+     * @param expectedEntries number of entries the cache is expected to hold.
+     */
+    FrequencySketch(int expectedEntries){
+        int width = Integer.highestOneBit(Math.max(16, expectedEntries - 1) << 1);
+        this.rowMask = width - 1;
+        this.table = new long[ROWS * width / 16];
+        this.sampleSize = 10 * width;
+    }
+
+    int frequency(String key){
+        int hash = spread(key.hashCode());
+        int min = 15;
+        for (int row = 0; row < ROWS; row++){
+            min = Math.min(min, counter(indexOf(hash, row)));
+        }
+        return min;
+    }
+
+    void increment(String key){
+        int hash = spread(key.hashCode());
+        int[] indexes = new int[ROWS];
+        int min = 15;
+        for (int row = 0; row < ROWS; row++){
+            indexes[row] = indexOf(hash, row);
+            min = Math.min(min, counter(indexes[row]));
+        }
+        if (min == 15){
+            return;
+        }
+        // conservative update: only the smallest counters grow.
+        for (int index : indexes){
+            if (counter(index) == min){
+                table[index >>> 4] += 1L << ((index & 15) << 2);
+            }
+        }
+        if (++size >= sampleSize){
+            reset();
+        }
+    }
+
+    private void reset(){
+        for (int i = 0; i < table.length; i++){
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size /= 2;
+    }
+
+    private int counter(int index){
+        return (int) ((table[index >>> 4] >>> ((index & 15) << 2)) & 15L);
+    }
+
+    private int indexOf(int hash, int row){
+        int h = (hash ^ SEEDS[row]) * 0x9E3779B9;
+        h ^= h >>> 16;
+        return row * (rowMask + 1) + (h & rowMask);
+    }
+
+    private static int spread(int hash){
+        hash *= 0x85ebca6b;
+        return hash ^ (hash >>> 13);
+    }
+}
@@ -0,0 +1,114 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * GroupCommitter gathers the writes of concurrent clients into one transaction,
+ * so that a single prepare/go round commits many operations.
+ *
+ * A committer thread takes the first waiting write, then keeps adding writes
+ * until the batch is full or the window has elapsed, and runs one round for the batch.
+ * Writes that arrive while a round is running wait for the next one,
+ * so even with a window of 0 the batch grows with the load.
+ * Each write completes with its own result, in the order of the batch.
+ * Several committer threads may run rounds at the same time; rounds that write
+ * a common key are ordered by the KeyLocks of the servers.
+ */
+public class GroupCommitter {
+    private final LinkedBlockingQueue<Write> queue = new LinkedBlockingQueue<>();
+    private final Function<KeyValOp[], String[]> round;
+    private final int maxBatch;
+    private final long windowMs;
+    private long rounds;
+    private long writes;
+
+    /**
+     * @param round runs one 2PC round for a batch and returns the result of each operation.
+     * @param maxBatch maximum number of operations in a round.
+     * @param windowMs how long to wait for more writes after the first one of a batch.
+     * @param committers number of committer threads.
+     */
+    public GroupCommitter(Function<KeyValOp[], String[]> round, int maxBatch, long windowMs, int committers, ThreadFactory threads){
+        if (maxBatch <= 0 || committers <= 0){
+            throw new IllegalArgumentException("Batch size and committer threads should be positive.");
+        }
+        this.round = round;
+        this.maxBatch = maxBatch;
+        this.windowMs = windowMs;
+        for (int i = 0; i < committers; i++){
+            threads.newThread(this::run).start();
+        }
+    }
+
+    public CompletableFuture<String> submit(KeyValOp op){
+        Write w = new Write(op);
+        queue.add(w);
+        return w.result;
+    }
+
+    public synchronized void addMetrics(Map<String, Number> metrics){
+        metrics.put("groupCommit.rounds", rounds);
+        metrics.put("groupCommit.writes", writes);
+        metrics.put("groupCommit.averageBatch", rounds == 0 ? 0.0 : (double) writes / rounds);
+    }
+
+    private void run(){
+        while (!Thread.currentThread().isInterrupted()){
+            List<Write> batch = new ArrayList<>();
+            try{
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(windowMs);
+                while (batch.size() < maxBatch){
+                    Write next = queue.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                    if (next == null){
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+            commit(batch);
+        }
+    }
+
+    private void commit(List<Write> batch){
+        if (batch.isEmpty()){
+            return;
+        }
+        KeyValOp[] ops = new KeyValOp[batch.size()];
+        for (int i = 0; i < ops.length; i++){
+            ops[i] = batch.get(i).op;
+        }
+        try{
+            String[] results = round.apply(ops);
+            for (int i = 0; i < ops.length; i++){
+                batch.get(i).result.complete(results[i]);
+            }
+        } catch (RuntimeException e){
+            for (Write w : batch){
+                w.result.completeExceptionally(e);
+            }
+        }
+        synchronized (this){
+            rounds++;
+            writes += ops.length;
+        }
+    }
+
+    private static class Write{
+        final KeyValOp op;
+        final CompletableFuture<String> result = new CompletableFuture<>();
+
+        Write(KeyValOp op){
+            this.op = op;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package server;
+
+import keyValService.InvalidationListener;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Invalidations pushes the keys changed on the server to the clients that subscribed, e.g. to their near caches.
+ *
+ * The changed keys are queued for each subscriber, and sent as soon as the call before is answered:
+ * a key written many times in the meantime is sent once, and a slow client holds up neither the writes
+ * nor the other clients. A subscriber with more than MAX_PENDING keys queued, or whose call failed, is told
+ * to drop everything at the next call instead. One whose calls fail MAX_FAILURES times in a row is unsubscribed.
+ */
+class Invalidations {
+    private static final int MAX_PENDING = 10000;
+    private static final int MAX_FAILURES = 3;
+
+    private final CopyOnWriteArrayList<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private final Executor executor;
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong keysSent = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param executor runs the calls to the subscribers.
+     */
+    Invalidations(Executor executor){
+        this.executor = executor;
+    }
+
+    /**
+     * subscribe adds a listener. A listener subscribed again is only counted once.
+     */
+    synchronized void subscribe(InvalidationListener listener){
+        for (Subscriber s : subscribers){
+            if (s.listener.equals(listener)){
+                return;
+            }
+        }
+        subscribers.add(new Subscriber(listener));
+    }
+
+    synchronized boolean unsubscribe(InvalidationListener listener){
+        return subscribers.removeIf(s -> s.listener.equals(listener));
+    }
+
+    /**
+     * changed queues a key written, deleted or dropped by the server for every subscriber.
+     */
+    void changed(String key){
+        for (Subscriber s : subscribers){
+            if (s.add(key)){
+                executor.execute(() -> flush(s));
+            }
+        }
+    }
+
+    /**
+     * changedAll tells every subscriber to drop all its keys, e.g. when the server restored a snapshot.
+     */
+    void changedAll(){
+        for (Subscriber s : subscribers){
+            if (s.addAll()){
+                executor.execute(() -> flush(s));
+            }
+        }
+    }
+
+    void addMetrics(Map<String, Number> metrics){
+        metrics.put("invalidations.subscribers", subscribers.size());
+        metrics.put("invalidations.calls", calls.get());
+        metrics.put("invalidations.keys", keysSent.get());
+        metrics.put("invalidations.dropped", dropped.get());
+    }
+
+    /**
+     * flush sends the keys queued for the subscriber until none is left. Only one flush of a subscriber runs at a time.
+     * A listener that throws counts as a failed call, so that the flush still ends.
+     */
+    private void flush(Subscriber s){
+        while (true){
+            List<String> keys = s.take();
+            if (keys == null){
+                return;
+            }
+            try{
+                if (keys.isEmpty()){
+                    s.listener.invalidateAll();
+                } else{
+                    s.listener.invalidate(keys);
+                    keysSent.addAndGet(keys.size());
+                }
+                calls.incrementAndGet();
+                s.failures = 0;
+            } catch (RemoteException | RuntimeException e){
+                s.addAll();
+                if (++s.failures >= MAX_FAILURES){
+                    subscribers.remove(s);
+                    dropped.incrementAndGet();
+                    return;
+                }
+            }
+        }
+    }
+
+    private static final class Subscriber{
+        final InvalidationListener listener;
+        private LinkedHashSet<String> pending = new LinkedHashSet<>();
+        // true if the subscriber must drop all its keys, instead of the pending ones.
+        private boolean all;
+        // true while a flush of the subscriber is queued or running.
+        private boolean flushing;
+        int failures;
+
+        Subscriber(InvalidationListener listener){
+            this.listener = listener;
+        }
+
+        /**
+         * @return true if the caller must start a flush.
+         */
+        synchronized boolean add(String key){
+            if (!all){
+                pending.add(key);
+                if (pending.size() > MAX_PENDING){
+                    all = true;
+                    pending = new LinkedHashSet<>();
+                }
+            }
+            return startFlush();
+        }
+
+        synchronized boolean addAll(){
+            all = true;
+            pending = new LinkedHashSet<>();
+            return startFlush();
+        }
+
+        /**
+         * take returns the keys to send, an empty list to drop all of them, or null if nothing is left,
+         * which ends the flush.
+         */
+        synchronized List<String> take(){
+            if (all){
+                all = false;
+                return new ArrayList<>();
+            }
+            if (pending.isEmpty()){
+                flushing = false;
+                return null;
+            }
+            List<String> keys = new ArrayList<>(pending);
+            pending = new LinkedHashSet<>();
+            return keys;
+        }
+
+        private boolean startFlush(){
+            if (flushing){
+                return false;
+            }
+            flushing = true;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package server;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * KeyLocks holds the write intents of the prepared transactions of a server.
+ * A transaction locks all the keys it writes at prepare, all or none,
+ * and keeps them until it commits or aborts. Two transactions that write a common key
+ * are therefore never prepared together, while transactions on disjoint keys do not wait for each other.
+ */
+public class KeyLocks {
+    private final Map<String, UUID> owners = new HashMap<>();
+
+    /**
+     * lock takes the keys of the operations for the transaction, waiting for the conflicting
+     * transactions to finish at most waitMs. A transaction may lock its keys again (prepare retries).
+     * @return false if the keys are still locked by another transaction after waitMs.
+     */
+    public synchronized boolean lock(UUID txn, KeyValOp[] ops, long waitMs) throws InterruptedException{
+        long deadline = System.currentTimeMillis() + waitMs;
+        while (!isFree(txn, ops)){
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0){
+                return false;
+            }
+            wait(left);
+        }
+        for (KeyValOp op : ops){
+            owners.put(op.key, txn);
+        }
+        return true;
+    }
+
+    public synchronized void unlock(UUID txn, KeyValOp[] ops){
+        for (KeyValOp op : ops){
+            owners.remove(op.key, txn);
+        }
+        notifyAll();
+    }
+
+    public synchronized int size(){
+        return owners.size();
+    }
+
+    private boolean isFree(UUID txn, KeyValOp[] ops){
+        for (KeyValOp op : ops){
+            UUID owner = owners.get(op.key);
+            if (owner != null && !owner.equals(txn)){
+                return false;
+            }
+        }
+        return true;
+    }
+}
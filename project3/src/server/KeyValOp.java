@@ -0,0 +1,36 @@
+package server;
+
+import java.io.Serializable;
+import java.util.UUID;
+
+/**
+ * KeyValOp is one key-value-operation carried by a 2PC round.
+ * It is sent to the replicas in prepareKeyValue, kept in their temporary storage,
+ * and applied to the store once the coordinator tells them to go.
+ */
+public class KeyValOp implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    String operation;
+    String key;
+    String value;
+    // absolute expiration time in milliseconds, 0 if the key never expires.
+    // For "expire", it is the deadline the key must still carry to be removed.
+    long expireAt;
+    // version of the write, set by the coordinator of the round when the replicas keep versions for anti-entropy.
+    // 0 if the write is not versioned.
+    long timestamp;
+    int origin;
+    // time on the clock of the server that proposed the write. Every replica judges whether a key has expired
+    // at this time when it applies the write, so that they all decide alike. 0 to use the clock of the replica.
+    long proposedAt;
+    // messageID of the client request, so that every replica recognizes a retry of the write; null for internal operations.
+    UUID messageID;
+
+    KeyValOp(String operation, String key, String value, long expireAt){
+        this.operation = operation;
+        this.key = key;
+        this.value = value;
+        this.expireAt = expireAt;
+    }
+}
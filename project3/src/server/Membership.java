@@ -0,0 +1,110 @@
+package server;
+
+import keyValService.HashRing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Membership is the set of servers of the cluster at one epoch, and where each key belongs.
+ *
+ * After a server joins or leaves, the keys are moved to their new owners in the background.
+ * Until every server has moved its keys, the membership also keeps the servers and the ring of the previous epoch,
+ * so that a key not moved yet can be read from its previous owners.
+ */
+final class Membership {
+    final long epoch;
+    // ports of the servers, in increasing order.
+    final int[] servers;
+    final HashRing ring;
+    // servers and ring before the change, null once the keys are moved.
+    final int[] previousServers;
+    final HashRing previousRing;
+
+    Membership(long epoch, int[] servers, HashRing ring){
+        this(epoch, servers, ring, null);
+    }
+
+    /**
+     * @param previousServers servers the keys are moved from, null if no key is moving.
+     *                        Their ring is the ring of the servers, with the previous servers on it.
+     */
+    Membership(long epoch, int[] servers, HashRing ring, int[] previousServers){
+        this.epoch = epoch;
+        this.servers = servers.clone();
+        Arrays.sort(this.servers);
+        this.ring = ring;
+        this.previousServers = previousServers == null ? null : previousServers.clone();
+        this.previousRing = previousServers == null || ring == null ? null : ring.withServers(previousServers);
+    }
+
+    boolean isRebalancing(){
+        return previousServers != null;
+    }
+
+    boolean contains(int server){
+        return Arrays.binarySearch(servers, server) >= 0;
+    }
+
+    /**
+     * coordinator returns the server that runs the membership changes: the one with the lowest port.
+     */
+    int coordinator(){
+        return servers[0];
+    }
+
+    /**
+     * @return the servers that hold the key, every server without a ring.
+     */
+    int[] owners(String key){
+        return ring == null ? servers : ring.owners(key);
+    }
+
+    /**
+     * @return the servers that held the key before the change, or its owners if no key is moving.
+     */
+    int[] previousOwners(String key){
+        if (!isRebalancing()){
+            return owners(key);
+        }
+        return previousRing == null ? previousServers : previousRing.owners(key);
+    }
+
+    /**
+     * sender returns the server that moves the key to its new owners:
+     * the first previous owner that is still a member, or the first previous owner if they all left.
+     */
+    int sender(String key){
+        int[] previous = previousOwners(key);
+        for (int server : previous){
+            if (contains(server)){
+                return server;
+            }
+        }
+        return previous[0];
+    }
+
+    /**
+     * newOwners returns the owners of the key that did not hold it before the change.
+     */
+    List<Integer> newOwners(String key){
+        int[] previous = previousOwners(key);
+        List<Integer> added = new ArrayList<>();
+        for (int server : owners(key)){
+            boolean held = false;
+            for (int p : previous){
+                held |= p == server;
+            }
+            if (!held){
+                added.add(server);
+            }
+        }
+        return added;
+    }
+
+    @Override
+    public String toString(){
+        return "epoch " + epoch + " " + Arrays.toString(servers) + (isRebalancing() ? ", moving keys from " + Arrays.toString(previousServers) : "");
+    }
+}
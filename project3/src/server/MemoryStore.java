@@ -0,0 +1,39 @@
+package server;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * MemoryStore keeps every key-value pair on the heap, in a CompactHashMap.
+ */
+public class MemoryStore implements ValueStore {
+    private CompactHashMap map = new CompactHashMap();
+
+    public String get(String key){
+        return map.get(key);
+    }
+
+    public String putIfAbsent(String key, String value){
+        return map.put(key, value, true);
+    }
+
+    public String put(String key, String value){
+        return map.put(key, value, false);
+    }
+
+    public String remove(String key){
+        return map.remove(key);
+    }
+
+    public byte[] internKey(String key){
+        return map.intern(key);
+    }
+
+    public Set<String> keySet(){
+        return map.keySet();
+    }
+
+    public void addMetrics(Map<String, Number> metrics){
+        metrics.put("store.keys", map.size());
+    }
+}
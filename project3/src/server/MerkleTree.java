@@ -0,0 +1,94 @@
+package server;
+
+import keyValService.HashRing;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * MerkleTree summarizes the keys of a server so that two replicas can find where they differ
+ * without sending their keys.
+ *
+ * The hash space of the ring is cut into LEAVES equal ranges. A leaf is the sum of the hashes of the versions
+ * of its keys, so it does not depend on the order the keys are added in; each inner node hashes its two children.
+ * Two replicas with the same root hold the same versions, and otherwise only the leaves under differing
+ * nodes need to be compared key by key.
+ */
+final class MerkleTree {
+    static final int DEPTH = 10;
+    static final int LEAVES = 1 << DEPTH;
+
+    // heap layout: the root is nodes[1], the children of node i are 2i and 2i+1, and the leaves are [LEAVES, 2 * LEAVES).
+    private final long[] nodes = new long[2 * LEAVES];
+
+    /**
+     * leafOf returns the range of the hash space the key is in.
+     */
+    static int leafOf(String key){
+        return (int) (HashRing.hash(key) >>> (64 - DEPTH));
+    }
+
+    /**
+     * add adds a version of a key, a tombstone included, to its leaf. Call it before seal.
+     */
+    void add(String key, Versioned v){
+        long h = HashRing.hash(key) ^ Long.rotateLeft(v.value == null ? 1 : HashRing.hash(v.value), 21);
+        h ^= Long.rotateLeft(v.timestamp, 42) ^ ((long) v.origin << 16) ^ v.expireAt;
+        nodes[LEAVES + leafOf(key)] += mix(h);
+    }
+
+    /**
+     * seal computes the inner nodes once every key is added.
+     * @return the nodes, as sent to the other replica.
+     */
+    long[] seal(){
+        for (int i = LEAVES - 1; i > 0; i--){
+            nodes[i] = mix(nodes[2 * i] ^ Long.rotateLeft(nodes[2 * i + 1], 31));
+        }
+        return nodes;
+    }
+
+    /**
+     * diff compares two sealed trees from the root down, and only descends into the nodes that differ.
+     * @return the leaves whose keys differ.
+     */
+    static List<Integer> diff(long[] mine, long[] theirs){
+        List<Integer> leaves = new ArrayList<>();
+        if (mine.length != theirs.length){
+            for (int i = 0; i < LEAVES; i++){
+                leaves.add(i);
+            }
+            return leaves;
+        }
+        List<Integer> level = new ArrayList<>();
+        level.add(1);
+        while (!level.isEmpty()){
+            List<Integer> next = new ArrayList<>();
+            for (int node : level){
+                if (mine[node] == theirs[node]){
+                    continue;
+                }
+                if (node >= LEAVES){
+                    leaves.add(node - LEAVES);
+                } else{
+                    next.add(2 * node);
+                    next.add(2 * node + 1);
+                }
+            }
+            level = next;
+        }
+        return leaves;
+    }
+
+    /**
+     * mix is the MurmurHash3 finalizer.
+     */
+    private static long mix(long h){
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,183 @@
+package server;
+
+import keyValService.KeyValStoreInterface;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.rmi.ConnectException;
+import java.rmi.MarshalException;
+import java.rmi.RemoteException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * NioRpcClient calls a KeyValStoreInterface served by NioRpcServer.
+ *
+ * There is one persistent connection per server, shared by every stub and every thread of the process:
+ * each call gets an id, its request frame is written on the connection, and a reader thread hands
+ * each reply to the call with the same id. Many calls can be in flight on one connection.
+ * When the connection fails, its calls fail with a ConnectException, like an RMI call,
+ * and the next connect opens a new connection.
+ */
+public class NioRpcClient implements InvocationHandler {
+    private static final long CALL_TIMEOUT_MS = 30000;
+    private static final ConcurrentHashMap<InetSocketAddress, NioRpcClient> connections = new ConcurrentHashMap<>();
+
+    private final InetSocketAddress address;
+    private final SocketChannel channel;
+    private final AtomicInteger nextCallId = new AtomicInteger();
+    private final ConcurrentHashMap<Integer, CompletableFuture<Object>> calls = new ConcurrentHashMap<>();
+    private final KeyValStoreInterface stub;
+    private volatile boolean open = true;
+
+    private NioRpcClient(InetSocketAddress address) throws IOException{
+        this.address = address;
+        this.channel = SocketChannel.open(address);
+        this.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        this.stub = (KeyValStoreInterface) Proxy.newProxyInstance(KeyValStoreInterface.class.getClassLoader(),
+                new Class<?>[]{KeyValStoreInterface.class}, this);
+        Thread reader = new Thread(this::readReplies, "nio-rpc-reader-" + address.getPort());
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * connect returns a stub of the server listening on the given NIO port,
+     * on the open connection to that server if there is one.
+     * @throws IOException if the server does not accept the connection.
+     */
+    public static KeyValStoreInterface connect(String host, int port) throws IOException{
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        NioRpcClient client = connections.get(address);
+        if (client == null || !client.open){
+            synchronized (connections){
+                client = connections.get(address);
+                if (client == null || !client.open){
+                    client = new NioRpcClient(address);
+                    connections.put(address, client);
+                }
+            }
+        }
+        return client.stub;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable{
+        if (method.getDeclaringClass() == Object.class){
+            switch (method.getName()){
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    return "NioRpcClient[" + address + "]";
+            }
+        }
+        if (!open){
+            throw new ConnectException("Connection to " + address + " is closed.");
+        }
+        int callId = nextCallId.incrementAndGet();
+        // encode before the call is registered: arguments that cannot be encoded fail this call only, not the connection.
+        ByteBuffer request;
+        try{
+            request = BinaryCodec.request(callId, BinaryCodec.methodId(method), args);
+        } catch (IOException e){
+            throw new MarshalException("Cannot encode the arguments of " + method.getName() + ".", e);
+        }
+        CompletableFuture<Object> reply = new CompletableFuture<>();
+        calls.put(callId, reply);
+        if (!open){
+            calls.remove(callId);
+            throw new ConnectException("Connection to " + address + " is closed.");
+        }
+        try{
+            synchronized (channel){
+                while (request.hasRemaining()){
+                    channel.write(request);
+                }
+            }
+            return reply.get(CALL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (IOException e){
+            fail(e);
+            throw new ConnectException("Call to " + address + " fail.", e);
+        } catch (ExecutionException e){
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException || cause instanceof Error || cause instanceof RemoteException){
+                throw cause;
+            }
+            for (Class<?> declared : method.getExceptionTypes()){
+                if (declared.isInstance(cause)){
+                    throw cause;
+                }
+            }
+            throw new RemoteException("Call to " + address + " fail.", cause);
+        } catch (TimeoutException e){
+            throw new RemoteException("Call to " + address + " timed out.", e);
+        } finally{
+            calls.remove(callId);
+        }
+    }
+
+    private void readReplies(){
+        ByteBuffer header = ByteBuffer.allocate(8);
+        try{
+            while (true){
+                header.clear();
+                readFully(header);
+                int length = header.getInt(0);
+                int callId = header.getInt(4);
+                ByteBuffer body = ByteBuffer.allocate(length - 4);
+                readFully(body);
+                byte status = body.get();
+                Object value = BinaryCodec.read(body);
+                CompletableFuture<Object> reply = calls.get(callId);
+                if (reply == null){
+                    continue; // the call timed out.
+                }
+                if (status == BinaryCodec.OK){
+                    reply.complete(value);
+                } else{
+                    reply.completeExceptionally((Throwable) value);
+                }
+            }
+        } catch (IOException e){
+            fail(e);
+        }
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException{
+        while (buffer.hasRemaining()){
+            if (channel.read(buffer) < 0){
+                throw new EOFException("Connection to " + address + " closed by the server.");
+            }
+        }
+        buffer.flip();
+    }
+
+    /**
+     * fail closes the connection and fails the calls in flight on it.
+     */
+    private void fail(IOException cause){
+        open = false;
+        connections.remove(address, this);
+        try{
+            channel.close();
+        } catch (IOException e){
+            // already closed.
+        }
+        for (CompletableFuture<Object> reply : calls.values()){
+            reply.completeExceptionally(new ConnectException("Connection to " + address + " lost.", cause));
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package server;
+
+import keyValService.KeyValStoreInterface;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * NioRpcServer serves the calls of KeyValStoreInterface sent by NioRpcClient, as a lighter alternative to RMI.
+ *
+ * One selector thread accepts the connections, reads the request frames and writes the replies,
+ * without blocking on any connection. Each call runs on a worker thread, so a call that waits
+ * (e.g. for a commit) does not hold up the other calls of its connection: a client may have many calls
+ * in flight on one connection, and the replies are sent in the order the calls complete.
+ * The transport listens on the RMI port of the server plus PORT_OFFSET.
+ */
+public class NioRpcServer {
+    public static final int PORT_OFFSET = 1000;
+    private static final int READ_BUFFER_BYTES = 64 * 1024;
+
+    private final KeyValStoreInterface target;
+    private final Selector selector;
+    private final ServerSocketChannel acceptor;
+    private final ExecutorService workers;
+    // connections with replies to send, handed from the workers to the selector thread.
+    private final ConcurrentLinkedQueue<Connection> toFlush = new ConcurrentLinkedQueue<>();
+
+    public NioRpcServer(KeyValStoreInterface target, int port, ThreadFactory threads) throws IOException{
+        this.target = target;
+        this.selector = Selector.open();
+        this.acceptor = ServerSocketChannel.open();
+        this.acceptor.bind(new InetSocketAddress(port));
+        this.acceptor.configureBlocking(false);
+        this.acceptor.register(selector, SelectionKey.OP_ACCEPT);
+        this.workers = Executors.newCachedThreadPool(threads);
+        threads.newThread(this::run).start();
+    }
+
+    private void run(){
+        while (!Thread.currentThread().isInterrupted()){
+            try{
+                selector.select();
+                Connection flushed;
+                while ((flushed = toFlush.poll()) != null){
+                    flushed.write();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()){
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()){
+                        continue;
+                    }
+                    if (key.isAcceptable()){
+                        accept();
+                    } else{
+                        Connection c = (Connection) key.attachment();
+                        if (key.isReadable()){
+                            c.read();
+                        }
+                        if (key.isValid() && key.isWritable()){
+                            c.write();
+                        }
+                    }
+                }
+            } catch (IOException e){
+                ServerHelper.log("NIO transport fail: " + e.getMessage());
+            }
+        }
+    }
+
+    private void accept() throws IOException{
+        SocketChannel channel = acceptor.accept();
+        if (channel == null){
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        Connection c = new Connection(channel);
+        c.key = channel.register(selector, SelectionKey.OP_READ, c);
+    }
+
+    /**
+     * call decodes a request, invokes the method on the target and encodes the reply.
+     */
+    private ByteBuffer call(ByteBuffer frame){
+        int callId = frame.getInt();
+        try{
+            int methodId = frame.getShort();
+            Method method = BinaryCodec.METHODS[methodId];
+            Object[] args = new Object[method.getParameterCount()];
+            for (int i = 0; i < args.length; i++){
+                args[i] = BinaryCodec.read(frame);
+            }
+            try{
+                return BinaryCodec.reply(callId, BinaryCodec.OK, method.invoke(target, args));
+            } catch (InvocationTargetException e){
+                return BinaryCodec.reply(callId, BinaryCodec.ERROR, e.getCause());
+            }
+        } catch (Exception e){
+            try{
+                return BinaryCodec.reply(callId, BinaryCodec.ERROR, e);
+            } catch (IOException unencodable){
+                throw new IllegalStateException("Cannot encode the reply of call " + callId, unencodable);
+            }
+        }
+    }
+
+    private class Connection{
+        final SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_BYTES);
+        // replies waiting to be written, guarded by the queue.
+        final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+
+        Connection(SocketChannel channel){
+            this.channel = channel;
+        }
+
+        /**
+         * read takes what the channel has and dispatches every complete frame to a worker.
+         */
+        void read(){
+            try{
+                if (channel.read(in) < 0){
+                    close();
+                    return;
+                }
+            } catch (IOException e){
+                close();
+                return;
+            }
+            in.flip();
+            while (in.remaining() >= 4){
+                int length = in.getInt(in.position());
+                if (in.remaining() < 4 + length){
+                    break;
+                }
+                in.position(in.position() + 4);
+                ByteBuffer frame = ByteBuffer.allocate(length);
+                int limit = in.limit();
+                in.limit(in.position() + length);
+                frame.put(in).flip();
+                in.limit(limit);
+                workers.execute(() -> send(call(frame)));
+            }
+            in.compact();
+            if (!in.hasRemaining()){
+                // a frame larger than the buffer: grow it.
+                ByteBuffer bigger = ByteBuffer.allocate(in.capacity() * 2);
+                in.flip();
+                bigger.put(in);
+                in = bigger;
+            }
+        }
+
+        /**
+         * send writes a reply from the worker thread when nothing is waiting before it,
+         * and only hands the rest to the selector thread when the socket is full.
+         */
+        void send(ByteBuffer reply){
+            synchronized (out){
+                if (out.isEmpty()){
+                    try{
+                        channel.write(reply);
+                    } catch (IOException e){
+                        return; // the selector thread sees the closed channel.
+                    }
+                    if (!reply.hasRemaining()){
+                        return;
+                    }
+                }
+                out.add(reply);
+            }
+            toFlush.add(this);
+            selector.wakeup();
+        }
+
+        /**
+         * write sends the waiting replies, and asks the selector for OP_WRITE if the socket is full.
+         */
+        void write(){
+            if (!key.isValid()){
+                return;
+            }
+            try{
+                synchronized (out){
+                    while (!out.isEmpty()){
+                        ByteBuffer head = out.peek();
+                        channel.write(head);
+                        if (head.hasRemaining()){
+                            break;
+                        }
+                        out.poll();
+                    }
+                    key.interestOps(out.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+            } catch (IOException e){
+                close();
+            }
+        }
+
+        void close(){
+            key.cancel();
+            try{
+                channel.close();
+            } catch (IOException e){
+                // already closed.
+            }
+        }
+    }
+}
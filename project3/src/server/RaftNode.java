@@ -0,0 +1,759 @@
+package server;
+
+import keyValService.KeyValStoreInterface;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * RaftNode replicates batches of KeyValOp through a Raft log, as an alternative to the
+ * all-replica 2PC of Server: a batch is committed once a majority of the servers stored it,
+ * so the cluster keeps accepting writes while a minority of the servers is down or slow.
+ *
+ * (1) Leader election: a follower that hears nothing from a leader for a random election timeout
+ * becomes a candidate and asks the others for their vote. The log of a voter must not be more
+ * up to date than the candidate's.
+ * (2) Replication: the leader has one replicator thread per follower. It sends AppendEntries of
+ * up to maxBatch entries, with up to pipelineDepth requests in flight, without waiting for the
+ * previous replies. A follower rejects entries that do not follow its log, and the leader backs off.
+ * (3) Commit: an entry of the current term is committed once a majority stored it. The applier
+ * thread applies committed entries in order and completes the future of the proposal.
+ * (4) Compaction: every snapshotEntries applied entries, the state of the store is captured and
+ * the log before it is dropped. A follower that is behind the snapshot gets the snapshot.
+ * (5) Freshness: every AppendEntries carries the commit index of the leader and the time of the leader
+ * when it was sent. Once a server applied up to that index, it has every write acknowledged before that time.
+ * The leader itself is only fresh as of its lease: the latest time at which a majority still followed it,
+ * i.e. the send time of the newest AppendEntries that a majority answered in its term. A leader cut off
+ * from the others keeps its role until it hears a higher term, but its lease no longer moves.
+ *
+ * (6) Durability: with a RaftStorage, the term, the vote, the log and the snapshot are forced to disk
+ * before the server answers a RequestVote or an AppendEntries, or counts its own entries towards a commit.
+ * A restarted server restores its snapshot and its log, so it neither votes twice in a term nor forgets
+ * entries it acknowledged; the committed entries after the snapshot are applied again once it hears the commit index.
+ * Without a RaftStorage, the state is in memory only, and a restarted server is unsafe.
+ */
+public class RaftNode {
+    private static final long HEARTBEAT_MS = 50;
+    private static final long ELECTION_TIMEOUT_MS = 300;
+    private static final long TICK_MS = 10;
+
+    /**
+     * StateMachine is the store the committed entries are applied to.
+     */
+    public interface StateMachine {
+        String[] apply(KeyValOp[] ops);
+        Snapshot capture(long index, long term);
+        void restore(Snapshot snapshot);
+    }
+
+    /**
+     * Peers gives the stubs of the other servers.
+     */
+    public interface Peers {
+        KeyValStoreInterface peer(int server) throws Exception;
+        void drop(int server);
+    }
+
+    private enum Role { FOLLOWER, CANDIDATE, LEADER }
+
+    private final int me;
+    private final int[] others;
+    private final StateMachine stateMachine;
+    private final Peers peers;
+    private final ExecutorService rpcExecutor;
+    private final ThreadFactory threads;
+    private final int maxBatch;
+    private final int pipelineDepth;
+    private final long snapshotEntries;
+    // where the state is saved, null to keep it in memory only.
+    private final RaftStorage storage;
+    private final Object applyLock = new Object();
+
+    private long currentTerm;
+    private int votedFor = -1;
+    // log.get(i) is the entry at index snapshotIndex + 1 + i. Index 0 is the empty log.
+    private final ArrayList<LogEntry> log = new ArrayList<>();
+    private Snapshot snapshot;
+    private long snapshotIndex;
+    private long snapshotTerm;
+
+    private long commitIndex;
+    private long lastApplied;
+    private Role role = Role.FOLLOWER;
+    private int leaderId = -1;
+    private long electionDeadline;
+    private final Map<Integer, Follower> followers = new HashMap<>();
+    private final Map<Long, CompletableFuture<String[]>> proposals = new HashMap<>();
+    // {commit index, leader time} heard from the leader and not applied yet, in order.
+    private final ArrayDeque<long[]> pendingFreshness = new ArrayDeque<>();
+    private long freshAsOf;
+
+    /**
+     * @param me port of this server.
+     * @param others ports of the other servers.
+     * @param maxBatch maximum number of entries in an AppendEntries.
+     * @param pipelineDepth maximum number of AppendEntries in flight to a follower.
+     * @param snapshotEntries number of applied entries after which the log is compacted.
+     * @param storage the state saved by the previous run of the server, null to keep the state in memory only.
+     */
+    RaftNode(int me, int[] others, StateMachine stateMachine, Peers peers, ExecutorService rpcExecutor,
+             ThreadFactory threads, int maxBatch, int pipelineDepth, long snapshotEntries, RaftStorage storage){
+        this.me = me;
+        this.others = others.clone();
+        this.stateMachine = stateMachine;
+        this.peers = peers;
+        this.rpcExecutor = rpcExecutor;
+        this.threads = threads;
+        this.maxBatch = maxBatch;
+        this.pipelineDepth = pipelineDepth;
+        this.snapshotEntries = snapshotEntries;
+        this.storage = storage;
+        for (int server : others){
+            followers.put(server, new Follower(server));
+        }
+        if (storage != null){
+            currentTerm = storage.term();
+            votedFor = storage.votedFor();
+            snapshot = storage.snapshot();
+            if (snapshot != null){
+                snapshotIndex = snapshot.index;
+                snapshotTerm = snapshot.term;
+            }
+            log.addAll(storage.entries());
+        }
+    }
+
+    public void start(){
+        if (storage != null){
+            // the store is rebuilt from the snapshot and the log, whatever it kept from before the restart.
+            stateMachine.restore(snapshot != null ? snapshot : new Snapshot(0, 0, new HashMap<>(), new HashMap<>()));
+        }
+        synchronized (this){
+            commitIndex = snapshotIndex;
+            lastApplied = snapshotIndex;
+            resetElectionDeadline();
+        }
+        threads.newThread(this::tick).start();
+        threads.newThread(this::applyCommitted).start();
+        for (Follower f : followers.values()){
+            threads.newThread(() -> replicate(f)).start();
+        }
+    }
+
+    /**
+     * propose appends a batch to the log of the leader.
+     * @return completes with the result of each operation once the batch is committed and applied.
+     * @throws IllegalStateException if this server is not the leader.
+     */
+    public synchronized CompletableFuture<String[]> propose(KeyValOp[] ops){
+        if (role != Role.LEADER){
+            throw new IllegalStateException("Not the leader.");
+        }
+        LogEntry entry = new LogEntry(currentTerm, ops);
+        log.add(entry);
+        saveEntries(lastIndex(), Collections.singletonList(entry));
+        CompletableFuture<String[]> result = new CompletableFuture<>();
+        proposals.put(lastIndex(), result);
+        if (others.length == 0){
+            advanceCommit();
+        }
+        notifyAll();
+        return result;
+    }
+
+    public synchronized boolean isLeader(){
+        return role == Role.LEADER;
+    }
+
+    /**
+     * @return port of the current leader, or -1 if it is not known.
+     */
+    public synchronized int leader(){
+        return leaderId;
+    }
+
+    /**
+     * freshAsOf returns a time, on the clock of the leader, such that every write acknowledged
+     * to a client before it is applied on this server.
+     */
+    public synchronized long freshAsOf(){
+        if (role == Role.LEADER && lastApplied >= commitIndex){
+            return Math.max(freshAsOf, leaseTime());
+        }
+        return freshAsOf;
+    }
+
+    /**
+     * leaseTime returns the send time of the newest AppendEntries answered by a majority, counting the leader.
+     * No other leader can have been elected before it: a majority still followed this one.
+     */
+    private long leaseTime(){
+        List<Long> answered = new ArrayList<>();
+        for (Follower f : followers.values()){
+            answered.add(f.answeredSentAt);
+        }
+        answered.sort(Collections.reverseOrder());
+        int needed = majority() - 1;
+        return needed == 0 ? System.currentTimeMillis() : answered.get(needed - 1);
+    }
+
+    public synchronized void addMetrics(Map<String, Number> metrics){
+        metrics.put("raft.term", currentTerm);
+        metrics.put("raft.leader", leaderId);
+        metrics.put("raft.commitIndex", commitIndex);
+        metrics.put("raft.lastApplied", lastApplied);
+        metrics.put("raft.logEntries", log.size());
+        metrics.put("raft.snapshotIndex", snapshotIndex);
+    }
+
+    // ----- RPC handlers -----
+
+    public synchronized VoteReply requestVote(long term, int candidateId, long lastLogIndex, long lastLogTerm){
+        if (term > currentTerm){
+            stepDown(term);
+        }
+        boolean upToDate = lastLogTerm > lastTerm() || (lastLogTerm == lastTerm() && lastLogIndex >= lastIndex());
+        boolean granted = term == currentTerm && (votedFor == -1 || votedFor == candidateId) && upToDate;
+        if (granted){
+            votedFor = candidateId;
+            saveVote();
+            resetElectionDeadline();
+        }
+        return new VoteReply(currentTerm, granted);
+    }
+
+    public synchronized AppendReply appendEntries(long term, int leader, long prevLogIndex, long prevLogTerm,
+                                                  LogEntry[] entries, long leaderCommit, long leaderTime){
+        if (term < currentTerm){
+            return new AppendReply(currentTerm, false, lastIndex());
+        }
+        if (term > currentTerm || role != Role.FOLLOWER){
+            stepDown(term);
+        }
+        leaderId = leader;
+        resetElectionDeadline();
+
+        if (prevLogIndex > lastIndex()){
+            return new AppendReply(currentTerm, false, lastIndex());
+        }
+        if (prevLogIndex > snapshotIndex && termAt(prevLogIndex) != prevLogTerm){
+            // the entry before the new ones does not match: the leader should go back one entry.
+            return new AppendReply(currentTerm, false, prevLogIndex - 1);
+        }
+        long index = prevLogIndex;
+        long firstAdded = 0;
+        List<LogEntry> added = new ArrayList<>();
+        for (LogEntry e : entries){
+            index++;
+            if (index <= snapshotIndex){
+                continue; // already in the snapshot, so committed.
+            }
+            if (index <= lastIndex()){
+                if (termAt(index) == e.term){
+                    continue; // a duplicate of a pipelined request.
+                }
+                log.subList((int) (index - snapshotIndex - 1), log.size()).clear();
+            }
+            log.add(e);
+            if (added.isEmpty()){
+                firstAdded = index;
+            }
+            added.add(e);
+        }
+        // the entries are on disk before the leader counts them.
+        saveEntries(firstAdded, added);
+        if (leaderCommit > commitIndex){
+            commitIndex = Math.min(leaderCommit, index);
+            notifyAll();
+        }
+        if (leaderCommit <= index){
+            // this server has every entry the leader committed when it sent them.
+            recordFreshness(leaderCommit, leaderTime);
+        }
+        return new AppendReply(currentTerm, true, index);
+    }
+
+    public long installSnapshot(long term, int leader, Snapshot s){
+        synchronized (applyLock){
+            synchronized (this){
+                if (term < currentTerm){
+                    return currentTerm;
+                }
+                if (term > currentTerm || role != Role.FOLLOWER){
+                    stepDown(term);
+                }
+                leaderId = leader;
+                resetElectionDeadline();
+                if (s.index <= lastApplied){
+                    return currentTerm;
+                }
+            }
+            stateMachine.restore(s);
+            synchronized (this){
+                if (s.index < lastIndex() && termAt(s.index) == s.term){
+                    // keep the entries that follow the snapshot.
+                    log.subList(0, (int) (s.index - snapshotIndex)).clear();
+                } else{
+                    log.clear();
+                }
+                snapshot = s;
+                snapshotIndex = s.index;
+                snapshotTerm = s.term;
+                saveSnapshot();
+                commitIndex = Math.max(commitIndex, s.index);
+                lastApplied = s.index;
+                advanceFreshness();
+                notifyAll();
+                return currentTerm;
+            }
+        }
+    }
+
+    // ----- election -----
+
+    private void tick(){
+        while (!Thread.currentThread().isInterrupted()){
+            try{
+                Thread.sleep(TICK_MS);
+            } catch (InterruptedException e){
+                return;
+            }
+            boolean elect;
+            synchronized (this){
+                elect = role != Role.LEADER && System.currentTimeMillis() >= electionDeadline;
+            }
+            if (elect){
+                startElection();
+            }
+        }
+    }
+
+    private void startElection(){
+        long term;
+        long lastLogIndex;
+        long lastLogTerm;
+        synchronized (this){
+            currentTerm++;
+            role = Role.CANDIDATE;
+            votedFor = me;
+            saveVote();
+            leaderId = -1;
+            resetElectionDeadline();
+            term = currentTerm;
+            lastLogIndex = lastIndex();
+            lastLogTerm = lastTerm();
+            if (others.length == 0){
+                becomeLeader();
+                return;
+            }
+        }
+        int[] votes = {1};
+        for (int server : others){
+            rpcExecutor.execute(() -> {
+                try{
+                    VoteReply reply = peers.peer(server).requestVote(term, me, lastLogIndex, lastLogTerm);
+                    synchronized (this){
+                        if (reply.term > currentTerm){
+                            stepDown(reply.term);
+                        } else if (reply.granted && role == Role.CANDIDATE && currentTerm == term
+                                && ++votes[0] >= majority()){
+                            becomeLeader();
+                        }
+                    }
+                } catch (Exception e){
+                    peers.drop(server);
+                }
+            });
+        }
+    }
+
+    private void becomeLeader(){
+        role = Role.LEADER;
+        leaderId = me;
+        for (Follower f : followers.values()){
+            f.nextIndex = lastIndex() + 1;
+            f.matchIndex = 0;
+            f.retryAt = 0;
+            f.heartbeatAt = 0;
+            f.answeredSentAt = 0;
+        }
+        // an entry of the new term, so that the entries of the previous terms can be committed.
+        LogEntry noop = new LogEntry(currentTerm, new KeyValOp[0]);
+        log.add(noop);
+        saveEntries(lastIndex(), Collections.singletonList(noop));
+        if (others.length == 0){
+            advanceCommit();
+        }
+        ServerHelper.log("Server " + me + " is the Raft leader of term " + currentTerm);
+        notifyAll();
+    }
+
+    private void stepDown(long term){
+        if (term > currentTerm){
+            currentTerm = term;
+            votedFor = -1;
+            saveVote();
+        }
+        if (role == Role.LEADER){
+            // the outcome of the proposals is unknown: a new leader may still commit them.
+            for (CompletableFuture<String[]> p : proposals.values()){
+                p.completeExceptionally(new IllegalStateException("Leadership lost, the write may or may not be committed."));
+            }
+            proposals.clear();
+        }
+        role = Role.FOLLOWER;
+        notifyAll();
+    }
+
+    // ----- replication -----
+
+    private void replicate(Follower f){
+        while (!Thread.currentThread().isInterrupted()){
+            long term;
+            long leaderCommit;
+            long leaderTime;
+            long prevLogIndex = 0;
+            long prevLogTerm = 0;
+            LogEntry[] entries = null;
+            Snapshot s = null;
+            synchronized (this){
+                try{
+                    long wait;
+                    while ((wait = sendDelay(f)) > 0){
+                        wait(wait);
+                    }
+                } catch (InterruptedException e){
+                    return;
+                }
+                term = currentTerm;
+                leaderCommit = commitIndex;
+                leaderTime = System.currentTimeMillis();
+                if (f.nextIndex <= snapshotIndex){
+                    s = snapshot;
+                    f.nextIndex = snapshotIndex + 1;
+                } else{
+                    prevLogIndex = f.nextIndex - 1;
+                    prevLogTerm = termAt(prevLogIndex);
+                    long end = Math.min(lastIndex(), prevLogIndex + maxBatch);
+                    entries = log.subList((int) (prevLogIndex - snapshotIndex), (int) (end - snapshotIndex))
+                            .toArray(new LogEntry[0]);
+                    // pipelining: the next request starts after these entries, before the reply.
+                    f.nextIndex = end + 1;
+                }
+                f.inFlight++;
+                f.heartbeatAt = System.currentTimeMillis() + HEARTBEAT_MS;
+            }
+            if (s != null){
+                Snapshot snap = s;
+                long sentAt = leaderTime;
+                rpcExecutor.execute(() -> sendSnapshot(f, term, snap, sentAt));
+            } else{
+                long prev = prevLogIndex;
+                long prevTerm = prevLogTerm;
+                LogEntry[] batch = entries;
+                rpcExecutor.execute(() -> sendEntries(f, term, prev, prevTerm, batch, leaderCommit, leaderTime));
+            }
+        }
+    }
+
+    /**
+     * @return how long the replicator of a follower should wait before its next request, 0 to send now.
+     */
+    private long sendDelay(Follower f){
+        if (role != Role.LEADER){
+            return HEARTBEAT_MS;
+        }
+        long now = System.currentTimeMillis();
+        if (f.inFlight >= pipelineDepth || now < f.retryAt){
+            return Math.max(1, Math.min(HEARTBEAT_MS, f.retryAt - now));
+        }
+        if (f.nextIndex <= lastIndex() || now >= f.heartbeatAt){
+            return 0;
+        }
+        return f.heartbeatAt - now;
+    }
+
+    private void sendEntries(Follower f, long term, long prevLogIndex, long prevLogTerm, LogEntry[] entries,
+                             long leaderCommit, long leaderTime){
+        AppendReply reply = null;
+        try{
+            reply = peers.peer(f.server).appendEntries(term, me, prevLogIndex, prevLogTerm, entries, leaderCommit, leaderTime);
+        } catch (Exception e){
+            peers.drop(f.server);
+        }
+        synchronized (this){
+            f.inFlight--;
+            notifyAll();
+            if (reply != null && reply.term > currentTerm){
+                stepDown(reply.term);
+                return;
+            }
+            if (role != Role.LEADER || currentTerm != term){
+                return;
+            }
+            if (reply != null){
+                // the follower still followed this leader when the request was sent.
+                f.answeredSentAt = Math.max(f.answeredSentAt, leaderTime);
+            }
+            if (reply == null){
+                f.nextIndex = Math.max(f.matchIndex + 1, Math.min(f.nextIndex, prevLogIndex + 1));
+                f.retryAt = System.currentTimeMillis() + HEARTBEAT_MS;
+            } else if (reply.success){
+                f.matchIndex = Math.max(f.matchIndex, reply.lastLogIndex);
+                advanceCommit();
+            } else{
+                f.nextIndex = Math.max(f.matchIndex + 1, Math.min(f.nextIndex, reply.lastLogIndex + 1));
+            }
+        }
+    }
+
+    private void sendSnapshot(Follower f, long term, Snapshot s, long sentAt){
+        long replyTerm = -1;
+        try{
+            replyTerm = peers.peer(f.server).installSnapshot(term, me, s);
+        } catch (Exception e){
+            peers.drop(f.server);
+        }
+        synchronized (this){
+            f.inFlight--;
+            notifyAll();
+            if (replyTerm > currentTerm){
+                stepDown(replyTerm);
+                return;
+            }
+            if (role != Role.LEADER || currentTerm != term){
+                return;
+            }
+            if (replyTerm >= 0){
+                f.answeredSentAt = Math.max(f.answeredSentAt, sentAt);
+            }
+            if (replyTerm < 0){
+                f.nextIndex = Math.max(f.matchIndex + 1, Math.min(f.nextIndex, s.index));
+                f.retryAt = System.currentTimeMillis() + HEARTBEAT_MS;
+            } else{
+                f.matchIndex = Math.max(f.matchIndex, s.index);
+                advanceCommit();
+            }
+        }
+    }
+
+    /**
+     * advanceCommit commits the newest entry of the current term that a majority stored.
+     */
+    private void advanceCommit(){
+        for (long n = lastIndex(); n > commitIndex && n > snapshotIndex; n--){
+            if (termAt(n) != currentTerm){
+                return;
+            }
+            int stored = 1;
+            for (Follower f : followers.values()){
+                if (f.matchIndex >= n){
+                    stored++;
+                }
+            }
+            if (stored >= majority()){
+                commitIndex = n;
+                recordFreshness(n, System.currentTimeMillis());
+                notifyAll();
+                return;
+            }
+        }
+    }
+
+    // ----- apply and compaction -----
+
+    private void applyCommitted(){
+        while (!Thread.currentThread().isInterrupted()){
+            long index;
+            LogEntry entry;
+            synchronized (this){
+                try{
+                    while (lastApplied >= commitIndex){
+                        wait();
+                    }
+                } catch (InterruptedException e){
+                    return;
+                }
+                index = lastApplied + 1;
+                entry = log.get((int) (index - snapshotIndex - 1));
+            }
+            synchronized (applyLock){
+                Snapshot s = null;
+                synchronized (this){
+                    if (lastApplied >= index){
+                        continue; // a snapshot was installed meanwhile.
+                    }
+                }
+                String[] results = entry.ops.length == 0 ? new String[0] : stateMachine.apply(entry.ops);
+                CompletableFuture<String[]> proposal;
+                synchronized (this){
+                    lastApplied = index;
+                    proposal = proposals.remove(index);
+                    advanceFreshness();
+                }
+                if (index - snapshotIndexNow() >= snapshotEntries){
+                    s = stateMachine.capture(index, entry.term);
+                    synchronized (this){
+                        log.subList(0, (int) (s.index - snapshotIndex)).clear();
+                        snapshot = s;
+                        snapshotIndex = s.index;
+                        snapshotTerm = s.term;
+                        saveSnapshot();
+                    }
+                }
+                if (proposal != null){
+                    proposal.complete(results);
+                }
+            }
+        }
+    }
+
+    private synchronized long snapshotIndexNow(){
+        return snapshotIndex;
+    }
+
+    // ----- freshness, called with the lock held -----
+
+    private void recordFreshness(long commit, long leaderTime){
+        if (commit <= lastApplied){
+            freshAsOf = Math.max(freshAsOf, leaderTime);
+            return;
+        }
+        long[] last = pendingFreshness.peekLast();
+        if (last != null && last[0] == commit){
+            last[1] = Math.max(last[1], leaderTime);
+        } else if (last == null || last[0] < commit){
+            pendingFreshness.addLast(new long[]{commit, leaderTime});
+        }
+    }
+
+    private void advanceFreshness(){
+        while (!pendingFreshness.isEmpty() && pendingFreshness.peekFirst()[0] <= lastApplied){
+            freshAsOf = Math.max(freshAsOf, pendingFreshness.pollFirst()[1]);
+        }
+    }
+
+    // ----- storage, called with the lock held -----
+
+    private void saveVote(){
+        if (storage != null){
+            storage.saveVote(currentTerm, votedFor);
+        }
+    }
+
+    private void saveEntries(long index, List<LogEntry> added){
+        if (storage != null){
+            storage.append(index, added);
+        }
+    }
+
+    private void saveSnapshot(){
+        if (storage != null){
+            storage.saveSnapshot(snapshot, log);
+        }
+    }
+
+    // ----- log helpers, called with the lock held -----
+
+    private long lastIndex(){
+        return snapshotIndex + log.size();
+    }
+
+    private long lastTerm(){
+        return log.isEmpty() ? snapshotTerm : log.get(log.size() - 1).term;
+    }
+
+    private long termAt(long index){
+        if (index == snapshotIndex){
+            return snapshotTerm;
+        }
+        return log.get((int) (index - snapshotIndex - 1)).term;
+    }
+
+    private int majority(){
+        return (others.length + 1) / 2 + 1;
+    }
+
+    private void resetElectionDeadline(){
+        electionDeadline = System.currentTimeMillis() + ELECTION_TIMEOUT_MS
+                + ThreadLocalRandom.current().nextLong(ELECTION_TIMEOUT_MS);
+    }
+
+    private static class Follower{
+        final int server;
+        long nextIndex = 1;
+        long matchIndex;
+        int inFlight;
+        long heartbeatAt;
+        long retryAt;
+        // send time, on the clock of the leader, of the newest request the follower answered in the current term.
+        long answeredSentAt;
+
+        Follower(int server){
+            this.server = server;
+        }
+    }
+
+    public static class LogEntry implements Serializable {
+        private static final long serialVersionUID = 1L;
+        final long term;
+        final KeyValOp[] ops;
+
+        LogEntry(long term, KeyValOp[] ops){
+            this.term = term;
+            this.ops = ops;
+        }
+    }
+
+    public static class VoteReply implements Serializable {
+        private static final long serialVersionUID = 1L;
+        final long term;
+        final boolean granted;
+
+        VoteReply(long term, boolean granted){
+            this.term = term;
+            this.granted = granted;
+        }
+    }
+
+    public static class AppendReply implements Serializable {
+        private static final long serialVersionUID = 1L;
+        final long term;
+        final boolean success;
+        // on success, the index of the last entry stored; on failure, the index the leader should go back to.
+        final long lastLogIndex;
+
+        AppendReply(long term, boolean success, long lastLogIndex){
+            this.term = term;
+            this.success = success;
+            this.lastLogIndex = lastLogIndex;
+        }
+    }
+
+    /**
+     * Snapshot is the state of the store after the entry at index was applied.
+     */
+    public static class Snapshot implements Serializable {
+        private static final long serialVersionUID = 1L;
+        final long index;
+        final long term;
+        final HashMap<String, String> data;
+        final HashMap<String, Long> deadlines;
+
+        Snapshot(long index, long term, HashMap<String, String> data, HashMap<String, Long> deadlines){
+            this.index = index;
+            this.term = term;
+            this.data = data;
+            this.deadlines = deadlines;
+        }
+    }
+}
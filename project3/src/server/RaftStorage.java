@@ -0,0 +1,233 @@
+package server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * RaftStorage keeps the state of a RaftNode that must survive a restart: the current term, the vote,
+ * the log and the latest snapshot. Every write is forced to disk before it returns, so that a server
+ * never answers a RequestVote or an AppendEntries, nor counts its own entries, with a state it could lose.
+ *
+ * Files in the directory, named after the port of the server:
+ * raft-[port].state holds [term][votedFor], and raft-[port].snapshot the latest snapshot; both are replaced atomically.
+ * raft-[port].log holds records [index][term][ops length][ops bytes], appended. A record whose index is not
+ * after the previous one replaces the entries from that index on, as the follower did when the leader overwrote them.
+ * The log is rewritten with the entries that follow the snapshot whenever a snapshot is saved.
+ */
+class RaftStorage {
+    private static final int HEADER_BYTES = 20;
+
+    private final Path stateFile;
+    private final Path snapshotFile;
+    private final Path logFile;
+    private FileChannel log;
+    private long end;
+
+    private long term;
+    private int votedFor = -1;
+    private RaftNode.Snapshot snapshot;
+    private final List<RaftNode.LogEntry> entries = new ArrayList<>();
+
+    /**
+     * RaftStorage reads the state saved by the previous run of the server, if any.
+     * The directory is created on the first run.
+     */
+    RaftStorage(Path dir, int port) throws IOException{
+        Files.createDirectories(dir);
+        this.stateFile = dir.resolve("raft-" + port + ".state");
+        this.snapshotFile = dir.resolve("raft-" + port + ".snapshot");
+        this.logFile = dir.resolve("raft-" + port + ".log");
+        if (Files.exists(stateFile)){
+            ByteBuffer state = ByteBuffer.wrap(Files.readAllBytes(stateFile));
+            term = state.getLong();
+            votedFor = state.getInt();
+        }
+        if (Files.exists(snapshotFile)){
+            snapshot = (RaftNode.Snapshot) deserialize(Files.readAllBytes(snapshotFile));
+        }
+        this.log = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        load();
+    }
+
+    long term(){
+        return term;
+    }
+
+    int votedFor(){
+        return votedFor;
+    }
+
+    /**
+     * @return the latest snapshot saved, or null if there is none.
+     */
+    RaftNode.Snapshot snapshot(){
+        return snapshot;
+    }
+
+    /**
+     * @return the entries read at start after the snapshot, the first one at the snapshot index + 1.
+     */
+    List<RaftNode.LogEntry> entries(){
+        return entries;
+    }
+
+    /**
+     * saveVote saves the current term and the vote in it, -1 if the server did not vote.
+     */
+    void saveVote(long term, int votedFor){
+        ByteBuffer state = ByteBuffer.allocate(12).putLong(term).putInt(votedFor);
+        replace(stateFile, state.array());
+        this.term = term;
+        this.votedFor = votedFor;
+    }
+
+    /**
+     * append saves entries from index on, replacing those already saved from that index.
+     */
+    void append(long index, List<RaftNode.LogEntry> added){
+        if (added.isEmpty()){
+            return;
+        }
+        try{
+            end = write(log, end, index, added);
+            log.force(false);
+        } catch (IOException e){
+            throw new UncheckedIOException("Write to Raft log fail", e);
+        }
+    }
+
+    /**
+     * saveSnapshot saves a snapshot, and keeps in the log only the entries that follow it.
+     * @param remaining the entries after the snapshot, the first one at snapshot.index + 1.
+     */
+    void saveSnapshot(RaftNode.Snapshot s, List<RaftNode.LogEntry> remaining){
+        replace(snapshotFile, serialize(s));
+        snapshot = s;
+        try{
+            Path tmp = logFile.resolveSibling(logFile.getFileName() + ".tmp");
+            long size;
+            try (FileChannel next = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE)){
+                size = write(next, 0, s.index + 1, remaining);
+                next.force(false);
+            }
+            Files.move(tmp, logFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log.close();
+            log = FileChannel.open(logFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            end = size;
+        } catch (IOException e){
+            throw new UncheckedIOException("Rewrite of Raft log fail", e);
+        }
+    }
+
+    /**
+     * write writes the records of entries from index on at position.
+     * @return the position after the records.
+     */
+    private static long write(FileChannel channel, long position, long index, List<RaftNode.LogEntry> added) throws IOException{
+        for (RaftNode.LogEntry e : added){
+            byte[] ops = serialize(e.ops);
+            ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + ops.length);
+            record.putLong(index++).putLong(e.term).putInt(ops.length).put(ops);
+            record.flip();
+            while (record.hasRemaining()){
+                position += channel.write(record, position);
+            }
+        }
+        return position;
+    }
+
+    /**
+     * load reads the entries of the log that follow the snapshot. A last record cut short by a crash is dropped.
+     */
+    private void load() throws IOException{
+        long first = snapshot == null ? 1 : snapshot.index + 1;
+        long size = log.size();
+        long offset = 0;
+        long last = first - 1;
+        while (offset + HEADER_BYTES <= size){
+            ByteBuffer header = read(offset, HEADER_BYTES);
+            long index = header.getLong();
+            long entryTerm = header.getLong();
+            int length = header.getInt();
+            long next = offset + HEADER_BYTES + length;
+            if (length < 0 || next > size){
+                break;
+            }
+            KeyValOp[] ops = (KeyValOp[]) deserialize(read(offset + HEADER_BYTES, length).array());
+            offset = next;
+            if (index < first){
+                continue; // already in the snapshot.
+            }
+            if (index <= last){
+                entries.subList((int) (index - first), entries.size()).clear();
+            } else if (index > last + 1){
+                break; // not expected: the records follow each other.
+            }
+            entries.add(new RaftNode.LogEntry(entryTerm, ops));
+            last = index;
+        }
+        end = offset;
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException{
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()){
+            if (log.read(buffer, position + buffer.position()) < 0){
+                throw new IOException("Unexpected end of Raft log at " + position);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * replace writes a file atomically: the new content is forced to a temporary file, which then takes its place.
+     */
+    private static void replace(Path file, byte[] content){
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try{
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE)){
+                ByteBuffer buffer = ByteBuffer.wrap(content);
+                while (buffer.hasRemaining()){
+                    channel.write(buffer);
+                }
+                channel.force(false);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e){
+            throw new UncheckedIOException("Write of " + file + " fail", e);
+        }
+    }
+
+    private static byte[] serialize(Object o){
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)){
+            out.writeObject(o);
+        } catch (IOException e){
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(byte[] bytes) throws IOException{
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))){
+            return in.readObject();
+        } catch (ClassNotFoundException e){
+            throw new IOException("Unknown class in Raft storage", e);
+        }
+    }
+}
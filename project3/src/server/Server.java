@@ -4,35 +4,185 @@
  */
 package server;
 
+import keyValService.Consistency;
+import keyValService.ChangeBatch;
+import keyValService.ChangeListener;
+import keyValService.HashRing;
+import keyValService.InvalidationListener;
 import keyValService.KeyValStoreInterface;
+import keyValService.ScanResult;
+import keyValService.SessionReply;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
 
 
 public class Server extends Thread implements KeyValStoreInterface {
 
     private static ServerHelper serverHelper = new ServerHelper();
-    private int[] otherServers = new int[4];
+    private volatile int[] otherServers = new int[0];
     private int myPort;
-    private ConcurrentHashMap<UUID, KeyValOp> pendingRequests = new ConcurrentHashMap(new HashMap<UUID, KeyValOp>());
-    private ConcurrentHashMap<UUID, Map<Integer, ACK>> pendingPrepareAcks = new ConcurrentHashMap(new HashMap<UUID,Map<Integer,ACK>>());
-    private ConcurrentHashMap<UUID, Map<Integer, ACK>> pendingGoAcks = new ConcurrentHashMap(new HashMap<UUID,Map<Integer,ACK>>());
-    private ConcurrentHashMap<String, String> store = new ConcurrentHashMap<>();
+    private static final long EXPIRY_TICK_MS = 10;
+    private static final long VERSION_GC_MS = 1000;
+    private static final int MAX_SCAN_LIMIT = 1000;
+    private static final int CONFLICT_RETRIES = 3;
+    private static final long RAFT_COMMIT_TIMEOUT_MS = 5000;
+    private static final long QUORUM_TIMEOUT_MS = 1000;
+    private static final long FOLLOWER_READ_WAIT_MS = 100;
+    private static final long TOMBSTONE_GRACE_MS = 600000;
+    private static final int REBALANCE_BATCH = 100;
+    private static final int REBALANCE_RETRIES = 3;
+    private static final long REBALANCE_RETRY_MS = 1000;
+    private static final int REBALANCE_ROUNDS = 5;
+    private static final int DEFAULT_MAX_TRANSACTIONS = 10000;
+    private static final long DEFAULT_TXN_TIMEOUT_MS = 5000;
+    private static final long TXN_REAP_MS = 1000;
+    private static final int DEFAULT_DEDUP_ENTRIES = 100000;
+    private static final long DEFAULT_DEDUP_WINDOW_MS = 300000;
+    private static final int DEFAULT_CHANGE_LOG_ENTRIES = 100000;
+    private static final int MAX_POLL_CHANGES = 1000;
+    private static final long MAX_POLL_WAIT_MS = 30000;
+    // keys read by one task of a multiGet.
+    private static final int BATCH_READ_CHUNK = 64;
+    // stubs of the other servers, looked up once and shared by all threads. A stub is dropped when a call fails.
+    private ConcurrentHashMap<Integer, KeyValStoreInterface> peerStubs = new ConcurrentHashMap<>();
+    // runs the calls to the other servers of both 2PC phases concurrently.
+    private ExecutorService rpcExecutor = Executors.newCachedThreadPool(daemonThreads("rpc"));
+    // the 2PC transactions in flight, coordinated or prepared by the current server.
+    private TransactionTable transactions = new TransactionTable(DEFAULT_MAX_TRANSACTIONS, DEFAULT_TXN_TIMEOUT_MS);
+    // results of the recent client writes by messageID, so that a retried write is applied once.
+    private DedupCache dedup = new DedupCache(DEFAULT_DEDUP_ENTRIES, DEFAULT_DEDUP_WINDOW_MS);
+    // client writes being served by the current server, joined by their retries.
+    private ConcurrentHashMap<UUID, CompletableFuture<String>> inFlightWrites = new ConcurrentHashMap<>();
+    // clients told of the keys that change on the current server, e.g. to invalidate their near caches.
+    private Invalidations invalidations = new Invalidations(rpcExecutor);
+    // the latest changes committed on the current server, in commit order, streamed to the watches of the clients.
+    private ChangeLog changes = new ChangeLog(DEFAULT_CHANGE_LOG_ENTRIES, rpcExecutor);
+    // how long the master server waits for the ACKs of a phase before it asks the laggards again.
+    private long ackTimeoutMs = 100;
+    // if true, replicas ACK with a call back to ackMe; otherwise the vote and the ACK are the replies
+    // of prepareKeyValueVote and goAck, which halves the calls of a 2PC round.
+    private boolean asyncAcks = false;
+    // concurrent client writes are committed together, up to groupCommitSize per round.
+    private GroupCommitter groupCommitter;
+    private int groupCommitSize = 64;
+    private long groupCommitWindowMs = 0;
+    private int groupCommitThreads = 1;
+    // write intents of the prepared transactions, and how long a prepare waits for a conflicting one.
+    private KeyLocks keyLocks = new KeyLocks();
+    private long lockWaitMs = 50;
+    // with Raft, writes are committed by a majority through the log of the leader instead of a 2PC round.
+    private boolean raftEnabled = false;
+    private int raftPipelineDepth = 4;
+    private long raftSnapshotEntries = 1000;
+    private RaftNode raft;
+    private Path raftDir;
+    // with quorums, each key has a version and a request waits only for the replicas of its consistency level.
+    private boolean quorumEnabled = false;
+    private Consistency defaultConsistency = Consistency.QUORUM;
+    // version of the latest write of each key, without the value, which is in the store. Deletes are kept as tombstones.
+    private ConcurrentHashMap<String, Versioned> keyVersions = new ConcurrentHashMap<>();
+    private long lastVersionTs;
+    private AtomicLong readRepairs = new AtomicLong();
+    private AtomicLong quorumFailures = new AtomicLong();
+    // with a ring, each key is kept by its owners only; without, every server keeps every key.
+    private volatile HashRing ring;
+    // servers of the cluster. It changes when a server joins or leaves, and the keys are then moved in the background.
+    private volatile Membership membership;
+    private final Object membershipLock = new Object();
+    // how many keys per second a server sends to their new owners, so that the moves do not slow the requests down.
+    private long rebalanceKeysPerSec = 2000;
+    private ExecutorService rebalancer = Executors.newSingleThreadExecutor(daemonThreads("rebalance"));
+    // keys deleted while keys are moving, so that a copy moved late does not bring them back.
+    private Set<String> rebalanceDeletes = ConcurrentHashMap.newKeySet();
+    // on the coordinator of a membership change: every server involved, and those that did not move their keys yet.
+    private List<Integer> rebalanceServers = new ArrayList<>();
+    private Set<Integer> rebalancePending = ConcurrentHashMap.newKeySet();
+    private AtomicLong keysSent = new AtomicLong();
+    private AtomicLong keysReceived = new AtomicLong();
+    private AtomicLong keysDropped = new AtomicLong();
+    // anti-entropy: every antiEntropyMs, the server compares the Merkle tree of the keys it shares with one other server,
+    // and repairs the ranges that differ. 2PC writes are then versioned like quorum writes. 0 disables it.
+    private long antiEntropyMs = 10000;
+    private ScheduledExecutorService antiEntropyTimer;
+    private AtomicLong antiEntropyRounds = new AtomicLong();
+    private AtomicLong divergentRanges = new AtomicLong();
+    private AtomicLong keysRepaired = new AtomicLong();
+    private AtomicLong treeBytes = new AtomicLong();
+    private AtomicLong repairBytes = new AtomicLong();
+    // the other servers are called through NioRpcClient, or through RMI if their NIO port does not answer.
+    private boolean nioTransport = false;
+    private AtomicLong sessionReads = new AtomicLong();
+    private AtomicLong staleReads = new AtomicLong();
+    // multiGet, multiPut and multiDelete calls served, and their keys.
+    private AtomicLong batchCalls = new AtomicLong();
+    private AtomicLong batchKeys = new AtomicLong();
+    private ValueStore store;
+    // ordered index of the UTF-8 encoded keys in the store, used by scans. Its iterators never block writers.
+    private ConcurrentSkipListSet<byte[]> orderedKeys = new ConcurrentSkipListSet<>(CompactKeys::compare);
+    // expiration time of the keys put with a TTL. Keys without TTL have no entry.
+    private ConcurrentHashMap<String, Long> deadlines = new ConcurrentHashMap<>();
+    // keys whose put was coordinated by this server are scheduled here and expired in batches.
+    private TimingWheel expiryWheel = new TimingWheel(EXPIRY_TICK_MS, System.currentTimeMillis());
+    private ScheduledExecutorService expiryTimer;
+    // older versions of the keys for snapshot reads, and the timestamp of the batch being applied.
+    private VersionStore versions = new VersionStore();
+    private long committingTs;
     ReadWriteLock rwl = new ReadWriteLock();
 
+    public Server(){
+        this(new MemoryStore());
+    }
+
+    /**
+     * @param store where the committed key-value pairs are kept,
+     *              e.g. a CachingStore to bound the memory used by the server.
+     */
+    public Server(ValueStore store){
+        this.store = store;
+        for (String key : store.keySet()){
+            this.orderedKeys.add(store.internKey(key));
+        }
+    }
+
     /**
      * clientInputKeyValue takes unique messageID, operation, and key-value pair sent by the user.
      * If the operation is a "get", then returns the result of the get request (if key does not exist, error msg pops up)
      * If the operation is a "put" or "delete", do the following:
-     * (1) Master server adds the unique messageID, key-value-operation instance (kvop) into the pendingRequests hashmap in the current server,
+     * (1) Master server adds the unique messageID, key-value-operation instance (kvop) into the transaction table of the current server,
      * in which the messageID is the key, and the kvop is the value.
      * (2) Master server tells the replica servers to prepare ACK
      * (3) after receiving Yes ACk, Master server tells to go (commit)
@@ -45,309 +195,2519 @@ public class Server extends Thread implements KeyValStoreInterface {
      * @return
      */
     public String clientInputKeyValue(UUID messageID, String op, String key, String value){
+        return clientInputKeyValue(messageID, op, key, value, 0);
+    }
+
+    /**
+     * clientInputKeyValue with a time-to-live for "put".
+     * The expiration time is fixed by the master server and replicated with the put,
+     * so that every replica agrees on when the key expires.
+     * @param ttlMillis time-to-live of the key in milliseconds, 0 if the key never expires.
+     */
+    public String clientInputKeyValue(UUID messageID, String op, String key, String value, long ttlMillis){
+        if (!owns(key)){
+            String reply = callOwner(key, stub -> stub.clientInputKeyValue(messageID, op, key, value, ttlMillis));
+            return reply != null ? reply : "----- Fail: No owner of key " + key + " is reachable. Request fail";
+        }
+        if (quorumEnabled){
+            return deduplicated(messageID, op, () -> quorumRequest(messageID, op, key, value, ttlMillis, defaultConsistency));
+        }
         if(op.equalsIgnoreCase("get")){
-            return ServerOutputKeyValue(op, key, value);
+            return getMoving(key);
+        }
+        if (ttlMillis < 0){
+            return "----- Error: TTL should not be negative.";
+        }
+        return deduplicated(messageID, op, () -> write(messageID, op, key, value, ttlMillis));
+    }
+
+    private String write(UUID messageID, String op, String key, String value, long ttlMillis){
+        if (raft != null && !raft.isLeader()){
+            return forwardToLeader(messageID, op, key, value, ttlMillis);
+        }
+        long expireAt = 0;
+        if (ttlMillis > 0 && op.equalsIgnoreCase("put")){
+            expireAt = System.currentTimeMillis() + ttlMillis;
+        }
+        KeyValOp kvOp = new KeyValOp(op, key, value, expireAt);
+        kvOp.messageID = messageID;
+        String msg = groupCommitter.submit(kvOp).join();
+        if (expireAt > 0 && msg.startsWith("+++++")){
+            expiryWheel.schedule(key, expireAt);
+        }
+        return msg;
+    }
+
+    /**
+     * deduplicated serves a client write once per messageID:
+     * a retry of a write already applied gets the result of the first one,
+     * and a retry of a write still being served by the current server waits for it.
+     * Gets and requests without a messageID are served as they come.
+     */
+    private String deduplicated(UUID messageID, String op, Supplier<String> request){
+        if (messageID == null || op.equalsIgnoreCase("get")){
+            return request.get();
+        }
+        String done = dedup.get(messageID);
+        if (done != null){
+            return done;
+        }
+        CompletableFuture<String> running = new CompletableFuture<>();
+        CompletableFuture<String> first = inFlightWrites.putIfAbsent(messageID, running);
+        if (first != null){
+            return first.join();
+        }
+        try{
+            String msg = request.get();
+            // the replicas record the writes they apply; a forwarded or quorum write is recorded here.
+            // With Raft, the entry of a forwarded write may reach the current server after the reply:
+            // it records the write when it applies it, which a record here would skip.
+            if (msg.startsWith("+++++") && !raftEnabled){
+                dedup.put(messageID, msg);
+            }
+            running.complete(msg);
+            return msg;
+        } catch (RuntimeException e){
+            running.completeExceptionally(e);
+            throw e;
+        } finally{
+            inFlightWrites.remove(messageID, running);
+        }
+    }
+
+    /**
+     * sessionRequest serves a request of a client session, so that reads can go to any replica.
+     * A write is served as by clientInputKeyValue (forwarded to the leader with Raft) and returns
+     * a token taken once the write is acknowledged.
+     * A get is served by the current server from its own store, once its data is fresh enough:
+     * it must have every write acknowledged before the session token, and before maxStalenessMs ago.
+     * If it is not within FOLLOWER_READ_WAIT_MS, the read fails and the client should ask another replica.
+     * In the quorum mode, a get is a QUORUM read, which sees every QUORUM write.
+     * @param sessionToken token of the previous reply of the session, 0 for the first request.
+     * @param maxStalenessMs how old the data may be, negative for no bound but the session token.
+     */
+    @Override
+    public SessionReply sessionRequest(UUID messageID, String op, String key, String value, long ttlMillis,
+                                       long sessionToken, long maxStalenessMs){
+        if (!owns(key)){
+            SessionReply reply = callOwner(key, stub -> stub.sessionRequest(messageID, op, key, value, ttlMillis, sessionToken, maxStalenessMs));
+            return reply != null ? reply : new SessionReply("----- Fail: No owner of key " + key + " is reachable. Request fail", sessionToken, myPort);
+        }
+        if (!op.equalsIgnoreCase("get")){
+            if (raft != null && !raft.isLeader()){
+                int leader = raft.leader();
+                if (leader < 0 || leader == myPort){
+                    return new SessionReply("----- Fail: No Raft leader is elected yet. Key-value-operation aborted... ", sessionToken, myPort);
+                }
+                try{
+                    return peer(leader).sessionRequest(messageID, op, key, value, ttlMillis, sessionToken, maxStalenessMs);
+                } catch (Exception e){
+                    dropPeer(leader);
+                    return new SessionReply("----- Fail: Raft leader " + leader + " is not reachable. Key-value-operation aborted... ", sessionToken, myPort);
+                }
+            }
+            String msg = clientInputKeyValue(messageID, op, key, value, ttlMillis);
+            return new SessionReply(msg, Math.max(sessionToken, System.currentTimeMillis()), myPort);
+        }
+        if (quorumEnabled){
+            return new SessionReply(quorumRequest(messageID, op, key, value, 0, Consistency.QUORUM), sessionToken, myPort);
+        }
+        sessionReads.incrementAndGet();
+        long required = sessionToken;
+        if (maxStalenessMs >= 0){
+            required = Math.max(required, System.currentTimeMillis() - maxStalenessMs);
+        }
+        long fresh = awaitFresh(required, FOLLOWER_READ_WAIT_MS);
+        if (fresh < required){
+            staleReads.incrementAndGet();
+            return new SessionReply("----- Fail: Server " + myPort + " is " + (System.currentTimeMillis() - fresh)
+                    + " ms behind. Read from another replica.", sessionToken, myPort, true);
+        }
+        return new SessionReply(getMoving(key), sessionToken, myPort);
+    }
+
+    /**
+     * freshAsOf returns a time such that every write acknowledged to a client before it
+     * is applied on the current server.
+     * With 2PC, a write is acknowledged once every replica applied it, so the current server
+     * is only behind the transactions it prepared and did not apply yet.
+     */
+    private long freshAsOf(){
+        if (raft != null){
+            return raft.freshAsOf();
+        }
+        return Math.min(System.currentTimeMillis(), transactions.oldestStart() - 1);
+    }
+
+    /**
+     * awaitFresh waits until the current server is fresh as of the required time, or until waitMs ran out.
+     * @return the freshness of the current server.
+     */
+    private long awaitFresh(long required, long waitMs){
+        long deadline = System.currentTimeMillis() + waitMs;
+        long fresh = freshAsOf();
+        while (fresh < required && System.currentTimeMillis() < deadline){
+            try{
+                TimeUnit.MILLISECONDS.sleep(1);
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+                break;
+            }
+            fresh = freshAsOf();
+        }
+        return fresh;
+    }
+
+    /**
+     * clientInputKeyValue with a consistency level, used in the quorum mode.
+     * Without quorums the level is ignored: writes wait for every replica and reads are local.
+     * @param level number of replicas the request waits for.
+     */
+    public String clientInputKeyValue(UUID messageID, String op, String key, String value, long ttlMillis, Consistency level){
+        if (!owns(key)){
+            String reply = callOwner(key, stub -> stub.clientInputKeyValue(messageID, op, key, value, ttlMillis, level));
+            return reply != null ? reply : "----- Fail: No owner of key " + key + " is reachable. Request fail";
+        }
+        if (!quorumEnabled){
+            return clientInputKeyValue(messageID, op, key, value, ttlMillis);
+        }
+        return deduplicated(messageID, op, () -> quorumRequest(messageID, op, key, value, ttlMillis, level));
+    }
+
+    /**
+     * quorumRequest serves a request in the quorum mode. The current server coordinates it:
+     * (1) it reads the key from the replicas of the level and keeps the newest version,
+     * (2) for a put or a delete, it writes a new version and waits until the replicas of the level stored it.
+     * A put still fails if the key exists, as seen by the read of step (1).
+     */
+    private String quorumRequest(UUID messageID, String op, String key, String value, long ttlMillis, Consistency level){
+        if (ttlMillis < 0){
+            return "----- Error: TTL should not be negative.";
+        }
+        Versioned current = quorumRead(key, level);
+        if (current == null){
+            quorumFailures.incrementAndGet();
+            return "----- Fail: Fewer than " + level.required(replicasOf(key).size() + 1) + " replicas answered in time. Request fail";
+        }
+        if (!current.isLive(System.currentTimeMillis()) && membership.isRebalancing()){
+            // the key may not be moved to its new owners yet.
+            Versioned moving = previousVersion(key);
+            if (moving != null && moving.newerThan(current)){
+                current = moving;
+            }
+        }
+        boolean exists = current.isLive(System.currentTimeMillis());
+        // a retry that raced with its first write may read that write: it gets the result of the first one.
+        String done = messageID == null ? null : dedup.get(messageID);
+        if (done != null && !op.equalsIgnoreCase("get")){
+            return done;
+        }
+        switch (op.toLowerCase()){
+            case "get":
+                if (exists){
+                    return "+++++ Succeed: GET key: " + key + ". Value is: " + current.value;
+                }
+                return "----- Fail: GET. Key does not exist.";
+            case "put":
+                if (exists){
+                    return "----- Fail: Key already exists. PUT request fail";
+                }
+                long expireAt = ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : 0;
+                String put = "+++++ Succeed: PUT key: " + key + " and value: " + value;
+                if (!quorumWrite(key, new Versioned(value, nextVersionTs(), myPort, expireAt), level, messageID, put)){
+                    quorumFailures.incrementAndGet();
+                    return "----- Fail: Fewer than " + level.required(replicasOf(key).size() + 1) + " replicas stored the PUT in time, it may still be visible.";
+                }
+                return put;
+            case "delete":
+                if (!exists){
+                    return "----- Fail: Key does not exist. DELETE request fail";
+                }
+                String deleted = "+++++ Succeed: DELETE key: " + key;
+                if (!quorumWrite(key, new Versioned(null, nextVersionTs(), myPort, 0), level, messageID, deleted)){
+                    quorumFailures.incrementAndGet();
+                    return "----- Fail: Fewer than " + level.required(replicasOf(key).size() + 1) + " replicas stored the DELETE in time, it may still be visible.";
+                }
+                return deleted;
+            default:
+                return "----- Error: Unknown operation";
+        }
+    }
+
+    /**
+     * quorumRead reads a key from the replicas and returns the newest version among the first replies of the level.
+     * Once every replica answered, the replicas that returned an older version are repaired with the newest one.
+     * @return the newest version, a version without value if no replica has the key, or null if too few replicas answered.
+     */
+    private Versioned quorumRead(String key, Consistency level){
+        Versioned absent = new Versioned(null, 0, 0, 0);
+        List<Integer> replicas = replicasOf(key);
+        if (level == Consistency.ONE || replicas.isEmpty()){
+            Versioned local = localVersion(key);
+            return local == null ? absent : local;
+        }
+        List<CompletableFuture<Versioned>> replies = new ArrayList<>();
+        replies.add(CompletableFuture.completedFuture(localVersion(key)));
+        for (int server : replicas){
+            replies.add(CompletableFuture.supplyAsync(() -> {
+                try{
+                    return peer(server).replicaRead(key);
+                } catch (Exception e){
+                    dropPeer(server);
+                    throw new CompletionException(e);
+                }
+            }, rpcExecutor));
+        }
+        List<Versioned> got = awaitReplies(replies, level.required(replies.size()));
+        CompletableFuture.allOf(replies.toArray(new CompletableFuture<?>[0])).whenComplete((r, e) -> readRepair(key, replicas, replies));
+        if (got == null){
+            return null;
+        }
+        Versioned newest = absent;
+        for (Versioned v : got){
+            if (v != null && v.newerThan(newest)){
+                newest = v;
+            }
+        }
+        return newest;
+    }
+
+    /**
+     * readRepair sends the newest version of a key to the replicas that answered a read with an older one.
+     * @param replies the reply of the current server first, then those of the replicas in order.
+     */
+    private void readRepair(String key, List<Integer> replicas, List<CompletableFuture<Versioned>> replies){
+        Versioned newest = null;
+        for (CompletableFuture<Versioned> reply : replies){
+            Versioned v = reply.isCompletedExceptionally() ? null : reply.join();
+            if (v != null && v.newerThan(newest)){
+                newest = v;
+            }
+        }
+        if (newest == null){
+            return;
+        }
+        for (int i = 0; i < replies.size(); i++){
+            if (replies.get(i).isCompletedExceptionally() || !newest.newerThan(replies.get(i).join())){
+                continue;
+            }
+            readRepairs.incrementAndGet();
+            if (i == 0){
+                applyVersioned(key, newest);
+            } else{
+                int server = replicas.get(i - 1);
+                Versioned repaired = newest;
+                rpcExecutor.execute(() -> {
+                    try{
+                        peer(server).replicaWrite(key, repaired);
+                    } catch (Exception e){
+                        dropPeer(server);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * quorumWrite stores a version on the current server and sends it to the other replicas.
+     * Each replica that stores it also records the result of the client write, to recognize its retries.
+     * @param messageID the client write, null if there is none.
+     * @return true once the replicas of the level stored it, false if too few did in time.
+     */
+    private boolean quorumWrite(String key, Versioned v, Consistency level, UUID messageID, String result){
+        if (messageID != null){
+            dedup.put(messageID, result);
+        }
+        applyVersioned(key, v);
+        List<CompletableFuture<Boolean>> replies = new ArrayList<>();
+        replies.add(CompletableFuture.completedFuture(true));
+        for (int server : replicasOf(key)){
+            replies.add(CompletableFuture.supplyAsync(() -> {
+                try{
+                    KeyValStoreInterface stub = peer(server);
+                    return messageID == null ? stub.replicaWrite(key, v) : stub.replicaWrite(key, v, messageID, result);
+                } catch (Exception e){
+                    dropPeer(server);
+                    throw new CompletionException(e);
+                }
+            }, rpcExecutor));
+        }
+        return awaitReplies(replies, level.required(replies.size())) != null;
+    }
+
+    /**
+     * awaitReplies waits for the first successful replies of a fan-out.
+     * @param needed number of successful replies to wait for.
+     * @return the first needed replies, or null if too many calls failed or the timeout ran out.
+     */
+    private static <T> List<T> awaitReplies(List<CompletableFuture<T>> replies, int needed){
+        CompletableFuture<List<T>> done = new CompletableFuture<>();
+        List<T> succeeded = new ArrayList<>();
+        AtomicInteger failed = new AtomicInteger();
+        for (CompletableFuture<T> reply : replies){
+            reply.whenComplete((v, e) -> {
+                if (e != null){
+                    if (failed.incrementAndGet() > replies.size() - needed){
+                        done.complete(null);
+                    }
+                    return;
+                }
+                synchronized (succeeded){
+                    succeeded.add(v);
+                    if (succeeded.size() == needed){
+                        done.complete(new ArrayList<>(succeeded));
+                    }
+                }
+            });
+        }
+        try{
+            return done.get(QUORUM_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException e){
+            return null;
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * nextVersionTs returns a timestamp greater than any version this server wrote or received,
+     * in microseconds so that it follows the clock.
+     */
+    private synchronized long nextVersionTs(){
+        lastVersionTs = Math.max(lastVersionTs + 1, System.currentTimeMillis() * 1000);
+        return lastVersionTs;
+    }
+
+    private synchronized void observeVersionTs(long timestamp){
+        lastVersionTs = Math.max(lastVersionTs, timestamp);
+    }
+
+    /**
+     * localVersion returns the version of a key on the current server, with its value.
+     * A key that was in the store before the quorum mode started has the oldest version.
+     */
+    private Versioned localVersion(String key){
+        try{
+            rwl.lockRead();
+            try{
+                Versioned stamp = keyVersions.get(key);
+                String value = store.get(key);
+                if (stamp == null){
+                    return value == null ? null : new Versioned(value, 0, 0, deadlines.getOrDefault(key, 0L));
+                }
+                return new Versioned(value, stamp.timestamp, stamp.origin, stamp.expireAt);
+            } finally{
+                rwl.unlockRead();
+            }
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * applyVersioned writes a version to the current server unless it already has a newer one.
+     * @return true if the version was written.
+     */
+    private boolean applyVersioned(String key, Versioned v){
+        observeVersionTs(v.timestamp);
+        try{
+            synchronized (versions){
+                rwl.lockWrite();
+                try{
+                    Versioned stamp = keyVersions.get(key);
+                    if (stamp != null && !v.newerThan(stamp)){
+                        return false;
+                    }
+                    committingTs = versions.beginCommit();
+                    String previous = store.get(key);
+                    versions.record(key, previous, v.value, committingTs);
+                    if (v.value == null){
+                        store.remove(key);
+                        orderedKeys.remove(CompactKeys.encode(key));
+                    } else{
+                        store.put(key, v.value);
+                        orderedKeys.add(store.internKey(key));
+                    }
+                    committed(key, v.value);
+                    if (v.value != null && v.expireAt > 0){
+                        deadlines.put(key, v.expireAt);
+                        expiryWheel.schedule(key, v.expireAt);
+                    } else{
+                        deadlines.remove(key);
+                    }
+                    keyVersions.put(key, new Versioned(null, v.timestamp, v.origin, v.expireAt));
+                    versions.endCommit(committingTs);
+                    return true;
+                } finally{
+                    rwl.unlockWrite();
+                }
+            }
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * dropOldTombstones forgets the versions of the keys deleted or expired more than TOMBSTONE_GRACE_MS ago.
+     * A replica that missed the delete for that long may bring the key back on a read repair.
+     */
+    private void dropOldTombstones(){
+        long now = System.currentTimeMillis();
+        keyVersions.entrySet().removeIf(e -> isOldTombstone(e.getKey(), e.getValue(), now));
+    }
+
+    private boolean isOldTombstone(String key, Versioned stamp, long now){
+        long lastChange = Math.max(stamp.timestamp / 1000, stamp.expireAt);
+        return lastChange < now - TOMBSTONE_GRACE_MS && store.get(key) == null;
+    }
+
+    /**
+     * versionedWrites tells if the current server keeps the version of each key:
+     * always with quorums, and with 2PC when the replicas are compared by anti-entropy.
+     */
+    private boolean versionedWrites(){
+        return quorumEnabled || (antiEntropyMs > 0 && !raftEnabled);
+    }
+
+    /**
+     * forwardToLeader sends a write received by a Raft follower to the leader.
+     */
+    private String forwardToLeader(UUID messageID, String op, String key, String value, long ttlMillis){
+        int leader = raft.leader();
+        if (leader < 0 || leader == myPort){
+            return "----- Fail: No Raft leader is elected yet. Key-value-operation aborted... ";
+        }
+        try{
+            return peer(leader).clientInputKeyValue(messageID, op, key, value, ttlMillis);
+        } catch (Exception e){
+            dropPeer(leader);
+            return "----- Fail: Raft leader " + leader + " is not reachable. Key-value-operation aborted... ";
+        }
+    }
+
+    /**
+     * replicate commits a batch on every server: through the Raft log when Raft is enabled,
+     * otherwise with a 2PC round. The operations carry the time they are proposed at, see KeyValOp.proposedAt.
+     * @return the result of each operation.
+     */
+    private String[] replicate(KeyValOp[] ops){
+        long now = System.currentTimeMillis();
+        for (KeyValOp op : ops){
+            if (op.proposedAt == 0){
+                op.proposedAt = now;
+            }
+        }
+        if (raft == null && versionedWrites()){
+            for (KeyValOp op : ops){
+                op.timestamp = nextVersionTs();
+                op.origin = myPort;
+            }
+        }
+        if (raft == null && ring == null){
+            return commit(UUID.randomUUID(), ops, allOtherServers());
+        }
+        if (raft == null){
+            return commitByOwners(ops);
+        }
+        try{
+            return raft.propose(ops).get(RAFT_COMMIT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (IllegalStateException e){
+            return fill(ops.length, "----- Fail: " + e.getMessage() + " Key-value-operation aborted... ");
+        } catch (ExecutionException e){
+            return fill(ops.length, "----- Fail: " + e.getCause().getMessage());
+        } catch (TimeoutException e){
+            return fill(ops.length, "----- Fail: No majority stored the write in time, it may still be committed.");
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            return fill(ops.length, "Interrupted. Key-value-operation aborted... ");
+        }
+    }
+
+    /**
+     * commitByOwners splits a batch by the owners of its keys and runs the 2PC round of each part
+     * concurrently, among the owners of that part only.
+     * @return the result of each operation, in the order of the batch.
+     */
+    private String[] commitByOwners(KeyValOp[] ops){
+        Map<List<Integer>, List<Integer>> parts = new LinkedHashMap<>();
+        for (int i = 0; i < ops.length; i++){
+            parts.computeIfAbsent(replicasOf(ops[i].key), k -> new ArrayList<>()).add(i);
+        }
+        String[] results = new String[ops.length];
+        List<CompletableFuture<?>> rounds = new ArrayList<>();
+        for (Map.Entry<List<Integer>, List<Integer>> part : parts.entrySet()){
+            List<Integer> indexes = part.getValue();
+            KeyValOp[] partOps = new KeyValOp[indexes.size()];
+            for (int j = 0; j < partOps.length; j++){
+                partOps[j] = ops[indexes.get(j)];
+            }
+            rounds.add(CompletableFuture.runAsync(() -> {
+                String[] partResults = commit(UUID.randomUUID(), partOps, part.getKey());
+                for (int j = 0; j < partResults.length; j++){
+                    results[indexes.get(j)] = partResults[j];
+                }
+            }, rpcExecutor));
+        }
+        CompletableFuture.allOf(rounds.toArray(new CompletableFuture<?>[0])).join();
+        return results;
+    }
+
+    /**
+     * commit runs one 2PC round for the given operations and then applies them to the current server.
+     * @param participants the other servers that hold the keys.
+     * @return the result of each operation, or the reason the round was aborted.
+     */
+    private String[] commit(UUID messageID, KeyValOp[] ops, List<Integer> participants){
+        // a round that lost a key conflict is aborted everywhere and tried again after a random backoff.
+        for (int attempt = 0; ; attempt++){
+            UUID txn = attempt == 0 ? messageID : UUID.randomUUID();
+            String[] results = tryCommit(txn, ops, participants);
+            if (results != null){
+                return results;
+            }
+            if (attempt == CONFLICT_RETRIES){
+                return fill(ops.length, "Keys are locked by another transaction. Key-value-operation aborted... ");
+            }
+            try{
+                TimeUnit.MILLISECONDS.sleep(ThreadLocalRandom.current().nextLong(1, 10L << attempt));
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+                return fill(ops.length, "Interrupted. Key-value-operation aborted... ");
+            }
+        }
+    }
+
+    /**
+     * tryCommit runs one 2PC round.
+     * @return the result of each operation, or null if a participant voted no because of a key conflict.
+     */
+    private String[] tryCommit(UUID messageID, KeyValOp[] ops, List<Integer> participants){
+        // the master server is a participant too: it locks the keys before asking the replicas.
+        if (!lockKeys(messageID, ops)){
+            return null;
+        }
+        TransactionTable.Txn txn = transactions.begin(messageID, ops, true, myPort);
+        if (txn == null){
+            keyLocks.unlock(messageID, ops);
+            return fill(ops.length, "Too many transactions in flight at Server " + myPort + ". Key-value-operation aborted... ");
+        }
+        // every way out of the round ends the transaction and releases its keys.
+        TransactionTable.State outcome = TransactionTable.State.ABORTED;
+        try{
+            tellToPrepare(txn, participants);
+            boolean prepareOK = collectAckPrepare(txn);
+            if (!prepareOK){
+                fanOut(participants, server -> callAbort(messageID, server));
+                if (txn.prepareAcks.isRejected()){
+                    return null;
+                }
+                return fill(ops.length, "Tell to prepare fail. Key-value-operation aborted... ");
+            }
+            txn.state = TransactionTable.State.COMMITTING;
+            tellToGo(txn, participants);
+            boolean goOK = collectAckGo(txn);
+            if (!goOK){
+                return fill(ops.length, "Tell to go fail. Key-value-operation aborted... ");
+            }
+            // ask the current server to "put" or "delete" as requested.
+            String[] results = this.apply(ops);
+            outcome = TransactionTable.State.COMMITTED;
+            return results;
+        } finally{
+            transactions.end(messageID, outcome);
+            keyLocks.unlock(messageID, ops);
+        }
+    }
+
+    /**
+     * lockKeys takes the write intents of a transaction, waiting at most lockWaitMs
+     * for the transactions that write the same keys.
+     * @return false to vote no.
+     */
+    private boolean lockKeys(UUID messageID, KeyValOp[] ops){
+        try{
+            return keyLocks.lock(messageID, ops, lockWaitMs);
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static String[] fill(int length, String msg){
+        String[] results = new String[length];
+        Arrays.fill(results, msg);
+        return results;
+    }
+
+    /**
+     * apply commits a batch of operations to the current server under one commit timestamp.
+     * Snapshots see either none or all of the batch.
+     * @return the result of each operation.
+     */
+    private String[] apply(KeyValOp[] ops){
+        String[] results = new String[ops.length];
+        synchronized (versions){
+            committingTs = versions.beginCommit();
+            for (int i = 0; i < ops.length; i++){
+                // a client write sent again is applied once, and gets the result of the first time.
+                String done = ops[i].messageID == null ? null : dedup.get(ops[i].messageID);
+                if (done != null){
+                    results[i] = done;
+                    continue;
+                }
+                results[i] = this.ServerOutputKeyValue(ops[i]);
+                if (ops[i].messageID != null){
+                    dedup.put(ops[i].messageID, results[i]);
+                }
+                if (ops[i].timestamp > 0 && results[i].startsWith("+++++")){
+                    // keep the version of the write; a delete or an expiration leaves a tombstone.
+                    long expireAt = ops[i].operation.equals("put") ? ops[i].expireAt : 0;
+                    keyVersions.put(ops[i].key, new Versioned(null, ops[i].timestamp, ops[i].origin, expireAt));
+                    observeVersionTs(ops[i].timestamp);
+                }
+            }
+            versions.endCommit(committingTs);
+        }
+        return results;
+    }
+
+    private String ServerOutputKeyValue(KeyValOp kvOp){
+        String msg;
+        long now = kvOp.proposedAt > 0 ? kvOp.proposedAt : System.currentTimeMillis();
+            switch(kvOp.operation){
+                case "get":
+                    msg = get(kvOp.key);
+                    return msg;
+                case "delete":
+                    msg = delete(kvOp.key, now);
+                    return msg;
+                case "put":
+                    msg = put(kvOp.key, kvOp.value, kvOp.expireAt, now);
+                    return msg;
+                case "expire":
+                    msg = expire(kvOp.key, kvOp.expireAt);
+                    return msg;
+                default:
+                    msg = "----- Error: Unknown operation";
+                    return msg;
+            }
+    }
+
+    /**
+     * isExpired checks the deadline of a key. Expired keys are treated as absent on read and on put
+     * even before the master server replicates their expiration (lazy expiry).
+     */
+    private boolean isExpired(String key){
+        return isExpired(key, System.currentTimeMillis());
+    }
+
+    /**
+     * isExpired checks the deadline of a key at a given time, e.g. the time a replicated write was proposed.
+     */
+    private boolean isExpired(String key, long now){
+        Long expireAt = deadlines.get(key);
+        return expireAt != null && expireAt <= now;
+    }
+
+
+
+    private String get(String key) {
+        serverHelper.log("GET key: " + key + " from client in Master server: " + myPort);
+        String msg = "";
+        try{
+            rwl.lockRead();
+
+            String value = store.get(key);
+
+            if (value != null && !isExpired(key)){
+                // we get as many value objects as we need to return to the client
+                // (in this case, we select them from the service’s value collection
+                // based on whether they’re inside our request getRequest),
+                // and write them each in turn to the response observer using its onNext() method.
+
+                msg = "+++++ Succeed: GET key: " + key + ". Value is: " + value; // msg logged to client
+                serverHelper.log("+++++ Succeed: GET key: "+ key + "and value: " + value + "at Server " + myPort); // msg logged to server
+            } else{
+                msg = "----- Fail: GET. Key does not exist.";
+                serverHelper.log("----- Fail: Key does not exist. GET request fail " + myPort);
+            }
+            rwl.unlockRead();
+        } catch (InterruptedException e) {
+            serverHelper.log(e.getMessage());
+        } return msg;
+    }
+
+    /**
+     * getMoving reads a key like get, and while keys are moving after a membership change,
+     * reads a key the current server does not have yet from its previous owners.
+     */
+    private String getMoving(String key){
+        String msg = get(key);
+        if (msg.startsWith("+++++") || !membership.isRebalancing() || rebalanceDeletes.contains(key)){
+            return msg;
+        }
+        Versioned v = previousVersion(key);
+        if (v != null && v.isLive(System.currentTimeMillis())){
+            return "+++++ Succeed: GET key: " + key + ". Value is: " + v.value;
+        }
+        return msg;
+    }
+
+    /**
+     * previousVersion reads a key from the owners it had before the current membership change.
+     * @return the newest version they have, or null if none has the key.
+     */
+    private Versioned previousVersion(String key){
+        Versioned newest = null;
+        for (int owner : membership.previousOwners(key)){
+            if (owner == myPort){
+                continue;
+            }
+            try{
+                Versioned v = peer(owner).replicaRead(key);
+                if (v != null && (newest == null || v.newerThan(newest))){
+                    newest = v;
+                }
+            } catch (Exception e){
+                dropPeer(owner);
+            }
+        }
+        return newest;
+    }
+
+    private String put(String key, String value, long expireAt, long now){
+        String msg = "";
+        try{
+//            serverHelper.log("PUT key: " + key + " and value: " + value + " from client in Master server: " + myPort);
+            rwl.lockWrite();
+
+            String previous = store.get(key);
+            String result = previous;
+            if (result != null && isExpired(key, now)){
+                // the old value has expired but its expiration is not committed yet, overwrite it.
+                result = null;
+            }
+
+            if(result == null){
+                versions.record(key, previous, value, committingTs);
+                store.put(key, value);
+                orderedKeys.add(store.internKey(key));
+                committed(key, value);
+                if (expireAt > 0){
+                    deadlines.put(key, expireAt);
+                } else{
+                    deadlines.remove(key);
+                }
+                msg = "+++++ Succeed: PUT key: " + key + " and value: " + value;
+                serverHelper.log("+++++ Succeed: PUT key: "+ key + "and value: " + value + "at Server " + myPort);
+
+            } else{
+                msg = "----- Fail: Key already exists. PUT request fail";
+                serverHelper.log("----- Fail: Key already exists. PUT request fail at Server " + myPort);
+            }
+            rwl.unlockWrite();
+        } catch (Exception e){
+            serverHelper.log(e.getMessage());
+        } return msg;
+    }
+
+    private String delete(String key, long now){
+        String msg = "";
+        try{
+//            serverHelper.log("DELETE key: " + key + " from client in Master server " + myPort);
+            rwl.lockWrite();
+
+            String result = store.get(key);
+            if (result != null){
+                versions.record(key, result, null, committingTs);
+                store.remove(key);
+                orderedKeys.remove(CompactKeys.encode(key));
+                committed(key, null);
+            }
+            if (result != null && isExpired(key, now)){
+                // an expired key is removed, but the delete fails as if the key was not there.
+                result = null;
+            }
+            deadlines.remove(key);
+            if (result != null){
+                if (membership != null && membership.isRebalancing()){
+                    rebalanceDeletes.add(key);
+                }
+                msg = "+++++ Succeed: DELETE key: " + key;
+                serverHelper.log("+++++ Succeed: DELETE key: "+ key + "at Server " + myPort);
+            } else{
+                msg = "----- Fail: Key does not exist. DELETE request fail";
+                serverHelper.log("----- Fail: Key does not exist. DELETE request fail " + myPort);
+            }
+            rwl.unlockWrite();
+        }catch (Exception e){
+            serverHelper.log(e.getMessage());
+        }
+        return msg;
+    }
+
+    /**
+     * committed tells the near caches and the watches of the clients that a key changed.
+     * It is called with the write lock held, so that the changes are numbered in commit order.
+     * @param value the new value, null if the key was deleted.
+     */
+    private void committed(String key, String value){
+        invalidations.changed(key);
+        changes.append(key, value);
+    }
+
+    /**
+     * expire removes a key whose expiration has been committed.
+     * The key is only removed if it still carries the same deadline,
+     * so a key that was deleted and put again in the meantime survives.
+     */
+    private String expire(String key, long expireAt){
+        String msg = "";
+        try{
+            rwl.lockWrite();
+            if (deadlines.remove(key, expireAt)){
+                versions.record(key, store.get(key), null, committingTs);
+                store.remove(key);
+                orderedKeys.remove(CompactKeys.encode(key));
+                committed(key, null);
+                msg = "+++++ Succeed: EXPIRE key: " + key;
+            } else{
+                msg = "----- Fail: Key has no such expiration. EXPIRE request ignored";
+            }
+            rwl.unlockWrite();
+        } catch (Exception e){
+            serverHelper.log(e.getMessage());
+        }
+        return msg;
+    }
+
+    /**
+     * scan returns the keys in [startKey, endKey) in order, with their values.
+     * It reads the ordered index without taking the read-write lock, so it never blocks writers;
+     * a page reflects the writes committed while it is being read (weakly consistent).
+     * @param startKey first key of the range, inclusive. null means from the first key.
+     * @param endKey last key of the range, exclusive. null means up to the last key.
+     * @param cursor nextCursor of the previous page, null for the first page.
+     * @param limit maximum number of entries in the page.
+     * @return a page of entries and the cursor of the next page.
+     */
+    @Override
+    public ScanResult scan(String startKey, String endKey, String cursor, int limit){
+        return scan(startKey == null ? null : CompactKeys.encode(startKey), endKey == null ? null : CompactKeys.encode(endKey),
+                cursor, limit);
+    }
+
+    /**
+     * scan returns the keys in [startKey, endKey) of the ordered index, whose keys are encoded with CompactKeys.
+     */
+    private ScanResult scan(byte[] startKey, byte[] endKey, String cursor, int limit){
+        if (limit <= 0 || limit > MAX_SCAN_LIMIT){
+            throw new IllegalArgumentException("Scan limit should be between 1 and " + MAX_SCAN_LIMIT + ".");
+        }
+        byte[] from = cursor != null ? CompactKeys.encode(cursor) : startKey;
+        if (from != null && endKey != null && CompactKeys.compare(from, endKey) >= 0){
+            // an empty range, or a cursor past its end: a sub set of the index would throw.
+            return new ScanResult(new LinkedHashMap<>(), null);
+        }
+        NavigableSet<byte[]> range = orderedKeys;
+        if (cursor != null){
+            range = range.tailSet(from, false);
+        } else if (startKey != null){
+            range = range.tailSet(startKey, true);
+        }
+        if (endKey != null){
+            range = range.headSet(endKey, false);
+        }
+
+        Map<String, String> entries = new LinkedHashMap<>();
+        String lastKey = null;
+        for (byte[] encodedKey : range){
+            String key = CompactKeys.decode(encodedKey);
+            if (entries.size() == limit){
+                return new ScanResult(entries, lastKey);
+            }
+            String value = store.get(key);
+            if (value != null && !isExpired(key)){
+                entries.put(key, value);
+                lastKey = key;
+            }
+        }
+        return new ScanResult(entries, null);
+    }
+
+    /**
+     * scanPrefix returns the keys starting with the given prefix in order, with their values.
+     * @see #scan(String, String, String, int)
+     */
+    @Override
+    public ScanResult scanPrefix(String prefix, String cursor, int limit){
+        byte[] start = CompactKeys.encode(prefix);
+        return scan(start, CompactKeys.prefixEnd(start), cursor, limit);
+    }
+
+    /**
+     * openSnapshot returns a snapshot of the latest committed state of the current server.
+     * The versions it needs are kept until closeSnapshot, or until its lease runs out.
+     */
+    @Override
+    public long openSnapshot(){
+        return versions.openSnapshot();
+    }
+
+    @Override
+    public void closeSnapshot(long snapshot){
+        versions.closeSnapshot(snapshot);
+    }
+
+    /**
+     * getAtSnapshot reads keys as they were at the snapshot, without taking any lock,
+     * so it is never blocked by a commit and never sees half of a batch.
+     * @return the keys that existed at the snapshot, with their values.
+     */
+    @Override
+    public Map<String, String> getAtSnapshot(List<String> keys, long snapshot){
+        Map<String, String> result = new LinkedHashMap<>();
+        for (String key : keys){
+            String value = versions.read(key, snapshot, store::get);
+            if (value != null && !isExpired(key)){
+                result.put(key, value);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * consistentGet reads several keys from one snapshot of the current server.
+     */
+    @Override
+    public Map<String, String> consistentGet(List<String> keys){
+        long snapshot = versions.openSnapshot();
+        try{
+            return getAtSnapshot(keys, snapshot);
+        } finally{
+            versions.closeSnapshot(snapshot);
+        }
+    }
+
+    /**
+     * multiGet reads many keys in one call. The keys held by the current server are read here
+     * and the others are asked from their owners, one call per group of owners, all in parallel.
+     * @return the result of each key, in the order of the keys.
+     */
+    @Override
+    public Map<String, String> multiGet(List<String> keys){
+        batchCalls.incrementAndGet();
+        batchKeys.addAndGet(keys.size());
+        Map<String, String> results = new ConcurrentHashMap<>();
+        List<CompletableFuture<?>> calls = new ArrayList<>();
+        for (Map.Entry<List<Integer>, List<String>> part : byOwners(keys).entrySet()){
+            List<String> partKeys = part.getValue();
+            if (part.getKey() == null){
+                for (int from = 0; from < partKeys.size(); from += BATCH_READ_CHUNK){
+                    List<String> chunk = partKeys.subList(from, Math.min(partKeys.size(), from + BATCH_READ_CHUNK));
+                    calls.add(CompletableFuture.runAsync(() -> {
+                        for (String key : chunk){
+                            results.put(key, clientInputKeyValue(null, "get", key, ""));
+                        }
+                    }, rpcExecutor));
+                }
+            } else{
+                calls.add(CompletableFuture.runAsync(() -> {
+                    Map<String, String> reply = callOwner(partKeys.get(0), stub -> stub.multiGet(partKeys));
+                    for (String key : partKeys){
+                        results.put(key, reply != null ? reply.get(key) : "----- Fail: No owner of key " + key + " is reachable. Request fail");
+                    }
+                }, rpcExecutor));
+            }
+        }
+        CompletableFuture.allOf(calls.toArray(new CompletableFuture<?>[0])).join();
+        return inOrder(keys, results);
+    }
+
+    /**
+     * multiPut puts many keys in one call. The keys held by the current server are committed together
+     * in one replication round (one 2PC round per group of replicas with a ring, one Raft entry with Raft),
+     * and the others are sent to their owners, one call per group of owners, in parallel.
+     * Each key is a client write of its own: a retry of the batch with the same messageID applies each key once.
+     * @return the result of each key, in the order of the entries.
+     */
+    @Override
+    public Map<String, String> multiPut(UUID messageID, Map<String, String> entries){
+        return multiWrite(messageID, "put", entries);
+    }
+
+    /**
+     * multiDelete deletes many keys in one call, like multiPut.
+     * @return the result of each key, in the order of the keys.
+     */
+    @Override
+    public Map<String, String> multiDelete(UUID messageID, List<String> keys){
+        Map<String, String> entries = new LinkedHashMap<>();
+        for (String key : keys){
+            entries.put(key, "");
+        }
+        return multiWrite(messageID, "delete", entries);
+    }
+
+    private Map<String, String> multiWrite(UUID messageID, String op, Map<String, String> entries){
+        batchCalls.incrementAndGet();
+        batchKeys.addAndGet(entries.size());
+        Map<String, String> results = new ConcurrentHashMap<>();
+        List<CompletableFuture<?>> calls = new ArrayList<>();
+        for (Map.Entry<List<Integer>, List<String>> part : byOwners(entries.keySet()).entrySet()){
+            Map<String, String> partEntries = new LinkedHashMap<>();
+            for (String key : part.getValue()){
+                partEntries.put(key, entries.get(key));
+            }
+            calls.add(CompletableFuture.runAsync(() -> {
+                Map<String, String> reply;
+                if (part.getKey() == null){
+                    reply = writeBatch(messageID, op, partEntries);
+                } else{
+                    reply = callOwner(part.getValue().get(0), stub -> op.equals("put")
+                            ? stub.multiPut(messageID, partEntries) : stub.multiDelete(messageID, part.getValue()));
+                }
+                for (String key : partEntries.keySet()){
+                    results.put(key, reply != null ? reply.get(key) : "----- Fail: No owner of key " + key + " is reachable. Request fail");
+                }
+            }, rpcExecutor));
+        }
+        CompletableFuture.allOf(calls.toArray(new CompletableFuture<?>[0])).join();
+        return inOrder(entries.keySet(), results);
+    }
+
+    /**
+     * writeBatch commits a batch of keys held by the current server.
+     * In the quorum mode there are no rounds: the keys are written in parallel, each with its quorum.
+     */
+    private Map<String, String> writeBatch(UUID messageID, String op, Map<String, String> entries){
+        Map<String, String> results = new ConcurrentHashMap<>();
+        if (quorumEnabled){
+            List<CompletableFuture<?>> writes = new ArrayList<>();
+            for (Map.Entry<String, String> e : entries.entrySet()){
+                UUID keyMessageID = batchMessageID(messageID, e.getKey());
+                writes.add(CompletableFuture.runAsync(() -> results.put(e.getKey(), deduplicated(keyMessageID, op,
+                        () -> quorumRequest(keyMessageID, op, e.getKey(), e.getValue(), 0, defaultConsistency))), rpcExecutor));
+            }
+            CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])).join();
+            return results;
+        }
+        if (raft != null && !raft.isLeader()){
+            int leader = raft.leader();
+            Map<String, String> reply = null;
+            if (leader >= 0 && leader != myPort){
+                try{
+                    reply = op.equals("put") ? peer(leader).multiPut(messageID, entries)
+                            : peer(leader).multiDelete(messageID, new ArrayList<>(entries.keySet()));
+                } catch (Exception e){
+                    dropPeer(leader);
+                }
+            }
+            for (String key : entries.keySet()){
+                results.put(key, reply != null ? reply.get(key) : "----- Fail: Raft leader " + leader + " is not reachable. Key-value-operation aborted... ");
+            }
+            return results;
+        }
+        KeyValOp[] ops = new KeyValOp[entries.size()];
+        int i = 0;
+        for (Map.Entry<String, String> e : entries.entrySet()){
+            ops[i] = new KeyValOp(op, e.getKey(), e.getValue(), 0);
+            ops[i++].messageID = batchMessageID(messageID, e.getKey());
+        }
+        String[] replies = replicate(ops);
+        for (i = 0; i < ops.length; i++){
+            results.put(ops[i].key, replies[i]);
+        }
+        return results;
+    }
+
+    /**
+     * byOwners splits keys by the servers that hold them.
+     * The keys held by the current server are under the null key.
+     */
+    private Map<List<Integer>, List<String>> byOwners(Collection<String> keys){
+        Map<List<Integer>, List<String>> parts = new LinkedHashMap<>();
+        for (String key : keys){
+            List<Integer> owners = null;
+            if (!owns(key)){
+                owners = new ArrayList<>();
+                for (int owner : membership.owners(key)){
+                    owners.add(owner);
+                }
+            }
+            parts.computeIfAbsent(owners, k -> new ArrayList<>()).add(key);
+        }
+        return parts;
+    }
+
+    /**
+     * batchMessageID is the messageID of one key of a batch: the same for every retry of the batch.
+     */
+    private static UUID batchMessageID(UUID messageID, String key){
+        return messageID == null ? null : UUID.nameUUIDFromBytes((messageID + "/" + key).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Map<String, String> inOrder(Collection<String> keys, Map<String, String> results){
+        Map<String, String> ordered = new LinkedHashMap<>();
+        for (String key : keys){
+            ordered.put(key, results.get(key));
+        }
+        return ordered;
+    }
+
+    /**
+     * setAckTimeout sets how long the master server waits for the ACKs of a phase before a retry.
+     */
+    public void setAckTimeout(long ackTimeoutMs){
+        this.ackTimeoutMs = ackTimeoutMs;
+    }
+
+    /**
+     * setTransactionLimits bounds the transaction table: at most maxTransactions in flight,
+     * and a prepared transaction without its outcome after timeoutMs is aborted.
+     */
+    public void setTransactionLimits(int maxTransactions, long timeoutMs){
+        this.transactions = new TransactionTable(maxTransactions, timeoutMs);
+    }
+
+    /**
+     * setDedup bounds the results of client writes kept to recognize their retries:
+     * at most maxEntries, each for windowMs.
+     */
+    public void setDedup(int maxEntries, long windowMs){
+        this.dedup = new DedupCache(maxEntries, windowMs);
+    }
+
+    /**
+     * setChangeLog sets how many of the latest changes are kept for the watches,
+     * i.e. how far behind a watcher can fall, or how long it can be away, without missing changes.
+     */
+    public void setChangeLog(int maxEntries){
+        this.changes = new ChangeLog(maxEntries, rpcExecutor);
+    }
+
+    /**
+     * setAsyncAcks chooses how replicas ACK: with a call back to ackMe (true) or in the reply (false).
+     */
+    public void setAsyncAcks(boolean asyncAcks){
+        this.asyncAcks = asyncAcks;
+    }
+
+    /**
+     * setGroupCommit sets how client writes are batched into 2PC rounds. Call it before setServerInfo.
+     * @param maxBatch maximum number of writes in a round, 1 for a round per write.
+     * @param windowMs how long a round waits for more writes after the first one.
+     * @param threads number of rounds the server may run at the same time.
+     */
+    public void setGroupCommit(int maxBatch, long windowMs, int threads){
+        this.groupCommitSize = maxBatch;
+        this.groupCommitWindowMs = windowMs;
+        this.groupCommitThreads = threads;
+    }
+
+    /**
+     * setLockWait sets how long a prepare waits for a conflicting transaction before voting no.
+     */
+    public void setLockWait(long lockWaitMs){
+        this.lockWaitMs = lockWaitMs;
+    }
+
+    /**
+     * setRaft replicates the writes through a Raft log instead of 2PC rounds. Call it before setServerInfo.
+     * @param pipelineDepth maximum number of AppendEntries in flight to a follower.
+     * @param snapshotEntries number of applied entries after which the log is compacted into a snapshot.
+     * @param dataDir where the term, the vote, the log and the snapshot are saved, so that the server may restart;
+     *                null to keep them in memory only.
+     */
+    public void setRaft(boolean enabled, int pipelineDepth, long snapshotEntries, Path dataDir){
+        if (pipelineDepth <= 0 || snapshotEntries <= 0){
+            throw new IllegalArgumentException("Raft pipeline depth and snapshot entries should be positive.");
+        }
+        this.raftEnabled = enabled;
+        this.raftPipelineDepth = pipelineDepth;
+        this.raftSnapshotEntries = snapshotEntries;
+        this.raftDir = dataDir;
+    }
+
+    /**
+     * setRing partitions the keys: the current server only keeps, and only coordinates, the keys it owns.
+     * Requests for other keys are forwarded to their owners. Call it before setServerInfo.
+     */
+    public void setRing(HashRing ring){
+        this.ring = ring;
+    }
+
+    /**
+     * getRing returns the ring of the cluster, so that clients can send each key to its owners.
+     * @return null if every server keeps every key.
+     */
+    @Override
+    public HashRing getRing(){
+        return ring;
+    }
+
+    /**
+     * subscribeInvalidations calls the listener back with the keys that change on the current server from now on:
+     * written or deleted by a client, expired, repaired, or moved to another server.
+     */
+    @Override
+    public void subscribeInvalidations(InvalidationListener listener){
+        if (listener == null){
+            throw new IllegalArgumentException("Listener should not be null.");
+        }
+        invalidations.subscribe(listener);
+        serverHelper.log("Invalidation listener subscribed at Server " + myPort);
+    }
+
+    @Override
+    public void unsubscribeInvalidations(InvalidationListener listener){
+        if (invalidations.unsubscribe(listener)){
+            serverHelper.log("Invalidation listener unsubscribed at Server " + myPort);
+        }
+    }
+
+    /**
+     * watch streams the changes committed on the current server to the listener, in commit order:
+     * each batch is sent once the listener returned from the one before.
+     * @param pattern a key, a prefix ending with "*", or "*" for every key.
+     * @param fromSeq first change to send, e.g. the next seq of the last batch received to resume a stream,
+     *                or 0 for the changes committed from now on. The seq numbers are those of the current server.
+     * @return the id of the watch.
+     */
+    @Override
+    public long watch(String pattern, long fromSeq, ChangeListener listener){
+        if (listener == null){
+            throw new IllegalArgumentException("Listener should not be null.");
+        }
+        long watchId = changes.watch(pattern, fromSeq, listener);
+        serverHelper.log("Watch " + watchId + " of " + pattern + " from seq " + fromSeq + " at Server " + myPort);
+        return watchId;
+    }
+
+    @Override
+    public void unwatch(long watchId){
+        if (changes.unwatch(watchId)){
+            serverHelper.log("Watch " + watchId + " removed at Server " + myPort);
+        }
+    }
+
+    /**
+     * pollChanges returns the changes committed on the current server from fromSeq on, at most limit,
+     * and waits up to waitMs for the first one. It is the watch of the clients that cannot be called back,
+     * e.g. through the NIO transport: the next poll resumes from the next seq of the batch.
+     */
+    @Override
+    public ChangeBatch pollChanges(String pattern, long fromSeq, int limit, long waitMs){
+        try{
+            return changes.poll(pattern, fromSeq, Math.min(limit, MAX_POLL_CHANGES), Math.min(waitMs, MAX_POLL_WAIT_MS));
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            return new ChangeBatch(new ArrayList<>(), fromSeq, false, changes.incarnation());
+        }
+    }
+
+    /**
+     * setNioTransport calls the other servers through their NioRpcServer instead of RMI.
+     */
+    public void setNioTransport(boolean nioTransport){
+        this.nioTransport = nioTransport;
+    }
+
+    /**
+     * setQuorum serves the requests with quorum reads and writes of versioned values instead of 2PC rounds.
+     * @param defaultConsistency level of the requests that do not give one.
+     */
+    public void setQuorum(boolean enabled, Consistency defaultConsistency){
+        this.quorumEnabled = enabled;
+        this.defaultConsistency = defaultConsistency;
+    }
+
+    /**
+     * setRebalanceRate sets how many keys per second the server sends to their new owners after a membership change.
+     */
+    public void setRebalanceRate(long keysPerSec){
+        if (keysPerSec <= 0){
+            throw new IllegalArgumentException("Rebalance rate should be positive.");
+        }
+        this.rebalanceKeysPerSec = keysPerSec;
+    }
+
+    /**
+     * setAntiEntropy sets how often the server compares its keys with another server and repairs them.
+     * Call it before setServerInfo.
+     * @param intervalMs milliseconds between two rounds, 0 to disable anti-entropy.
+     */
+    public void setAntiEntropy(long intervalMs){
+        if (intervalMs < 0){
+            throw new IllegalArgumentException("Anti-entropy interval should not be negative.");
+        }
+        this.antiEntropyMs = intervalMs;
+    }
+
+    /**
+     * getMetrics returns the counters of the server, e.g. the cache hit ratio, evictions
+     * and admission rejections when the server runs with a bounded cache.
+     */
+    @Override
+    public Map<String, Number> getMetrics(){
+        Map<String, Number> metrics = new LinkedHashMap<>();
+        store.addMetrics(metrics);
+        versions.addMetrics(metrics);
+        if (groupCommitter != null){
+            groupCommitter.addMetrics(metrics);
+        }
+        metrics.put("locks.keys", keyLocks.size());
+        transactions.addMetrics(metrics);
+        dedup.addMetrics(metrics);
+        invalidations.addMetrics(metrics);
+        changes.addMetrics(metrics);
+        metrics.put("batch.calls", batchCalls.get());
+        metrics.put("batch.keys", batchKeys.get());
+        if (raft != null){
+            raft.addMetrics(metrics);
+        }
+        metrics.put("reads.session", sessionReads.get());
+        metrics.put("reads.tooStale", staleReads.get());
+        metrics.put("reads.lagMs", Math.max(0, System.currentTimeMillis() - freshAsOf()));
+        if (quorumEnabled){
+            metrics.put("quorum.versions", keyVersions.size());
+            metrics.put("quorum.readRepairs", readRepairs.get());
+            metrics.put("quorum.failedRequests", quorumFailures.get());
+        }
+        Membership m = membership;
+        metrics.put("membership.epoch", m.epoch);
+        metrics.put("membership.servers", m.servers.length);
+        metrics.put("rebalance.inProgress", m.isRebalancing() ? 1 : 0);
+        metrics.put("rebalance.keysSent", keysSent.get());
+        metrics.put("rebalance.keysReceived", keysReceived.get());
+        metrics.put("rebalance.keysDropped", keysDropped.get());
+        metrics.put("antiEntropy.rounds", antiEntropyRounds.get());
+        metrics.put("antiEntropy.divergentRanges", divergentRanges.get());
+        metrics.put("antiEntropy.keysRepaired", keysRepaired.get());
+        metrics.put("antiEntropy.treeBytes", treeBytes.get());
+        metrics.put("antiEntropy.repairBytes", repairBytes.get());
+        return metrics;
+    }
+
+    /**
+     * expireDueKeys advances the timing wheel and replicates the expiration of all the keys
+     * that are due as one batched operation, instead of one 2PC round per key.
+     */
+    private void expireDueKeys(){
+        try{
+            List<TimingWheel.Entry> due = new ArrayList<>();
+            expiryWheel.advance(System.currentTimeMillis(), due);
+            List<KeyValOp> ops = new ArrayList<>();
+            for (TimingWheel.Entry e : due){
+                Long expireAt = deadlines.get(e.key);
+                // skip keys that were deleted or put again with another TTL.
+                if (expireAt != null && expireAt == e.expireAt){
+                    ops.add(new KeyValOp("expire", e.key, "", e.expireAt));
+                }
+            }
+            if (ops.isEmpty()){
+                return;
+            }
+            // with quorums, every replica scheduled the key when it stored it and expires it locally.
+            String[] results = quorumEnabled ? apply(ops.toArray(new KeyValOp[0])) : replicate(ops.toArray(new KeyValOp[0]));
+            serverHelper.log("EXPIRE " + ops.size() + " keys at Server " + myPort + ": " + results[results.length - 1]);
+        } catch (Exception e){
+            serverHelper.log("Expire keys fail: " + e.getMessage());
+        }
+    }
+
+
+
+    @Override
+    public void ackMe(UUID messageID, int callBackServer, ACKType type) throws RemoteException {
+
+        // the transaction is gone if the ACK comes after the master server gave up.
+        TransactionTable.Txn txn = transactions.get(messageID);
+        AckRound round = null;
+        if (type == ACKType.AckGo){
+            round = txn == null ? null : txn.goAcks;
+            serverHelper.log("GO ACK sent from callBackServer: " + callBackServer);
+        }
+        else if (type == ACKType.AckPrepare){
+            round = txn == null ? null : txn.prepareAcks;
+            serverHelper.log("PREPARE ACK sent from callBackServer: " + callBackServer);
+        }
+        else if (type == ACKType.NackPrepare){
+            AckRound rejected = txn == null ? null : txn.prepareAcks;
+            serverHelper.log("PREPARE NACK sent from callBackServer: " + callBackServer);
+            if (rejected != null){
+                rejected.reject();
+            }
+        }
+        if (round != null){
+            round.ack(callBackServer);
+        }
+
+    }
+
+    @Override
+    public void go(UUID messageID, int callBackServer) throws RemoteException {
+        if (!commitPrepared(messageID) && !transactions.wasCommitted(messageID)){
+            throw new IllegalArgumentException("The message is not in the transaction table.");
+        }
+        this.sendAck(messageID, callBackServer, ACKType.AckGo);
+    }
+
+    @Override
+    public void prepareKeyValue(UUID messageID, String op, String key, String value, int callBackServer) throws RemoteException {
+        prepareKeyValue(messageID, new KeyValOp[]{new KeyValOp(op, key, value, 0)}, callBackServer);
+    }
+
+    @Override
+    public void prepareKeyValue(UUID messageID, KeyValOp[] ops, int callBackServer) throws RemoteException {
+        if (!prepare(messageID, ops, callBackServer)){
+            sendAck(messageID, callBackServer, ACKType.NackPrepare);
+            return;
+        }
+        sendAck(messageID, callBackServer, ACKType.AckPrepare);
+    }
+
+    /**
+     * prepareKeyValueVote keeps the operations in the transaction table
+     * and votes in the reply, instead of calling back ackMe.
+     * @param callBackServer the coordinator, asked for the outcome if it never tells it.
+     * @return true to vote yes, false if the keys are locked by another transaction or the table is full.
+     */
+    @Override
+    public boolean prepareKeyValueVote(UUID messageID, KeyValOp[] ops, int callBackServer) throws RemoteException {
+        return prepare(messageID, ops, callBackServer);
+    }
+
+    /**
+     * goAck commits the operations prepared for the message and ACKs in the reply.
+     * A go sent again once the transaction committed is acknowledged again.
+     * @return false if the message is not in the transaction table, and did not commit recently.
+     */
+    @Override
+    public boolean goAck(UUID messageID) throws RemoteException {
+        if (!commitPrepared(messageID) && !transactions.wasCommitted(messageID)){
+            serverHelper.log("The message is not in the transaction table.");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * abort drops a prepared transaction and releases its keys.
+     */
+    @Override
+    public void abort(UUID messageID) throws RemoteException {
+        abortPrepared(messageID);
+    }
+
+    /**
+     * txnCommitted tells a participant in doubt the outcome of a transaction the current server coordinates.
+     * @return true if it committed, false if it aborted or is unknown, null if its round is still running.
+     */
+    @Override
+    public Boolean txnCommitted(UUID messageID) throws RemoteException {
+        return transactions.outcome(messageID);
+    }
+
+    /**
+     * prepare locks the keys of a transaction and adds it to the transaction table.
+     * @return false to vote no: the keys are locked by another transaction, or the table is full.
+     */
+    private boolean prepare(UUID messageID, KeyValOp[] ops, int coordinator){
+        if (!lockKeys(messageID, ops)){
+            return false;
+        }
+        TransactionTable.Txn txn = transactions.begin(messageID, ops, false, coordinator);
+        if (txn == null){
+            keyLocks.unlock(messageID, ops);
+            serverHelper.log("Transaction table full at Server " + myPort + ", voting no.");
+            return false;
+        }
+        // from here on, only the coordinator may abort it.
+        txn.state = TransactionTable.State.PREPARED;
+        return true;
+    }
+
+    /**
+     * commitPrepared applies a prepared transaction and releases its keys.
+     * @return false if the transaction is not in the table: never prepared, aborted or reaped.
+     */
+    private boolean commitPrepared(UUID messageID){
+        TransactionTable.Txn txn = transactions.end(messageID, TransactionTable.State.COMMITTED);
+        if (txn == null){
+            return false;
+        }
+        this.apply(txn.ops);
+        keyLocks.unlock(messageID, txn.ops);
+        return true;
+    }
+
+    private void abortPrepared(UUID messageID){
+        TransactionTable.Txn txn = transactions.end(messageID, TransactionTable.State.ABORTED);
+        if (txn != null){
+            keyLocks.unlock(messageID, txn.ops);
+        }
+    }
+
+    /**
+     * reapTransactions ends the transactions whose coordinator did not tell the outcome in time
+     * (it failed, or its go or abort was lost), so that their keys do not stay locked.
+     * Those that did not vote yet abort; those that voted yes ask the coordinator.
+     */
+    private void reapTransactions(){
+        List<TransactionTable.Txn> inDoubt = new ArrayList<>();
+        for (TransactionTable.Txn txn : transactions.reap(System.currentTimeMillis(), inDoubt)){
+            keyLocks.unlock(txn.id, txn.ops);
+            serverHelper.log("Transaction " + txn.id + " timed out before its vote at Server " + myPort + ", aborted.");
+        }
+        for (TransactionTable.Txn txn : inDoubt){
+            if (txn.asking.compareAndSet(false, true)){
+                CompletableFuture.runAsync(() -> askOutcome(txn), rpcExecutor);
+            }
+        }
+    }
+
+    /**
+     * askOutcome asks the coordinator of a transaction in doubt whether it committed, and ends it the same way.
+     * While the coordinator is unreachable or its round still runs, the keys stay locked and the next reap asks again.
+     */
+    private void askOutcome(TransactionTable.Txn txn){
+        try{
+            Boolean committed = peer(txn.coordinatedBy).txnCommitted(txn.id);
+            if (committed == null){
+                return;
+            }
+            if (committed){
+                if (commitPrepared(txn.id)){
+                    serverHelper.log("Transaction " + txn.id + " in doubt at Server " + myPort + ", committed as its coordinator did.");
+                }
+            } else{
+                abortPrepared(txn.id);
+                serverHelper.log("Transaction " + txn.id + " in doubt at Server " + myPort + ", aborted as its coordinator did.");
+            }
+        } catch (Exception e){
+            dropPeer(txn.coordinatedBy);
+            serverHelper.log("Transaction " + txn.id + " in doubt at Server " + myPort + ", coordinator "
+                    + txn.coordinatedBy + " unreachable: " + e.getMessage());
+        } finally{
+            txn.asking.set(false);
+        }
+    }
+
+    @Override
+    public void setServerInfo(int[] otherServerPorts, int yourPorts) throws RemoteException {
+        this.otherServers = otherServerPorts;
+        this.myPort = yourPorts;
+        int[] servers = Arrays.copyOf(otherServerPorts, otherServerPorts.length + 1);
+        servers[otherServerPorts.length] = yourPorts;
+        this.membership = new Membership(0, servers, ring);
+        this.peerStubs.clear();
+        for (int server : otherServerPorts){
+            try{
+                peer(server);
+            } catch (Exception e){
+                // the other server is not running yet, look it up on the first call.
+            }
+        }
+        if (raftEnabled && this.raft == null){
+            RaftStorage raftStorage = null;
+            if (raftDir != null){
+                try{
+                    raftStorage = new RaftStorage(raftDir, yourPorts);
+                } catch (IOException e){
+                    throw new RemoteException("Raft state of Server " + yourPorts + " cannot be read", e);
+                }
+            }
+            this.raft = new RaftNode(yourPorts, otherServerPorts, new RaftNode.StateMachine(){
+                public String[] apply(KeyValOp[] ops){
+                    return Server.this.apply(ops);
+                }
+                public RaftNode.Snapshot capture(long index, long term){
+                    return captureState(index, term);
+                }
+                public void restore(RaftNode.Snapshot snapshot){
+                    restoreState(snapshot);
+                }
+            }, new RaftNode.Peers(){
+                public KeyValStoreInterface peer(int server) throws Exception{
+                    return Server.this.peer(server);
+                }
+                public void drop(int server){
+                    dropPeer(server);
+                }
+            }, rpcExecutor, daemonThreads("raft-" + yourPorts), groupCommitSize, raftPipelineDepth, raftSnapshotEntries, raftStorage);
+            this.raft.start();
+        }
+        if (this.groupCommitter == null){
+            this.groupCommitter = new GroupCommitter(this::replicate,
+                    groupCommitSize, groupCommitWindowMs, groupCommitThreads, daemonThreads("group-commit-" + yourPorts));
+        }
+        if (this.expiryTimer == null){
+            this.expiryTimer = Executors.newSingleThreadScheduledExecutor(daemonThreads("expiry-" + yourPorts));
+            this.expiryTimer.scheduleWithFixedDelay(this::expireDueKeys, EXPIRY_TICK_MS, EXPIRY_TICK_MS, TimeUnit.MILLISECONDS);
+            this.expiryTimer.scheduleWithFixedDelay(versions::gc, VERSION_GC_MS, VERSION_GC_MS, TimeUnit.MILLISECONDS);
+            this.expiryTimer.scheduleWithFixedDelay(this::reapTransactions, TXN_REAP_MS, TXN_REAP_MS, TimeUnit.MILLISECONDS);
+            if (versionedWrites()){
+                this.expiryTimer.scheduleWithFixedDelay(this::dropOldTombstones, VERSION_GC_MS, VERSION_GC_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (this.antiEntropyTimer == null && antiEntropyMs > 0 && !raftEnabled){
+            this.antiEntropyTimer = Executors.newSingleThreadScheduledExecutor(daemonThreads("anti-entropy-" + yourPorts));
+            // servers start at a random offset, so that they do not all compare their trees at once.
+            long first = antiEntropyMs + ThreadLocalRandom.current().nextLong(antiEntropyMs);
+            this.antiEntropyTimer.scheduleWithFixedDelay(this::antiEntropyRound, first, antiEntropyMs, TimeUnit.MILLISECONDS);
+        }
+
+    }
+
+    /**
+     * changeMembership adds a server to the cluster ("join") or removes one ("leave").
+     * The change is run by the coordinator of the membership, the server with the lowest port:
+     * (1) it computes the servers and the ring of the next epoch and announces them to every server involved,
+     * (2) each server sends the keys that have new owners in the background, at most rebalanceKeysPerSec,
+     * and tells the coordinator when it is done,
+     * (3) the coordinator then announces that the keys are moved, and each server drops the keys it no longer owns.
+     * Requests are served during the move. One change runs at a time, except that a server that does not answer
+     * may leave while keys are moving: the move of the current epoch could not end without it.
+     * The next epoch then moves the keys from the servers of the current one.
+     * @param op "join" or "leave".
+     * @param server port of the server. A joining server must be running, with its registry.
+     */
+    @Override
+    public String changeMembership(String op, int server){
+        Membership current = membership;
+        int coordinator = current.coordinator();
+        if (coordinator != myPort){
+            try{
+                return peer(coordinator).changeMembership(op, server);
+            } catch (Exception e){
+                dropPeer(coordinator);
+                return "----- Fail: Membership coordinator " + coordinator + " is not reachable. Request fail";
+            }
+        }
+        if (raft != null){
+            return "----- Fail: Membership changes need 2pc or quorum consensus. Request fail";
+        }
+        synchronized (membershipLock){
+            current = membership;
+            boolean moving = current.isRebalancing() || !rebalancePending.isEmpty();
+            if (moving && !(op.equalsIgnoreCase("leave") && current.contains(server) && !isReachable(server))){
+                return "----- Fail: Keys of membership epoch " + current.epoch + " are still moving. Try again later.";
+            }
+            List<Integer> next = new ArrayList<>();
+            for (int s : current.servers){
+                next.add(s);
+            }
+            if (op.equalsIgnoreCase("join")){
+                if (current.contains(server)){
+                    return "----- Fail: Server " + server + " is already a member. JOIN request fail";
+                }
+                next.add(server);
+            } else if (op.equalsIgnoreCase("leave")){
+                if (!current.contains(server) || current.servers.length == 1){
+                    return "----- Fail: Server " + server + " is not a member, or the last one. LEAVE request fail";
+                }
+                next.remove(Integer.valueOf(server));
+            } else{
+                return "----- Error: Unknown membership operation " + op;
+            }
+            int[] servers = next.stream().mapToInt(Integer::intValue).toArray();
+            HashRing nextRing;
+            try{
+                nextRing = ring == null ? null : ring.withServers(servers);
+            } catch (IllegalArgumentException e){
+                return "----- Fail: " + e.getMessage() + " " + op.toUpperCase() + " request fail";
+            }
+            long epoch = current.epoch + 1;
+            // a leaving server is involved too: it sends its keys before it goes.
+            rebalanceServers = new ArrayList<>(next);
+            if (!next.contains(server)){
+                rebalanceServers.add(server);
+            }
+            rebalancePending.clear();
+            rebalancePending.addAll(rebalanceServers);
+            int[] previous = current.servers;
+            setMembership(epoch, servers, previous, nextRing, myPort);
+            List<Integer> others = new ArrayList<>(rebalanceServers);
+            others.remove(Integer.valueOf(myPort));
+            fanOut(others, s -> {
+                try{
+                    peer(s).setMembership(epoch, servers, previous, nextRing, myPort);
+                } catch (Exception e){
+                    dropPeer(s);
+                    serverHelper.log("Announce membership epoch " + epoch + " to Server " + s + " fail, it moves no keys.");
+                    rebalanced(epoch, s);
+                }
+            });
+            serverHelper.log("Membership " + membership + " at Server " + myPort);
+            return "+++++ Succeed: " + op.toUpperCase() + " server " + server + ". Membership epoch " + epoch
+                    + " of " + servers.length + " servers, keys are moving in the background.";
+        }
+    }
+
+    /**
+     * isReachable tells whether a server answers a call.
+     */
+    private boolean isReachable(int server){
+        if (server == myPort){
+            return true;
+        }
+        try{
+            peer(server).getMetrics();
+            return true;
+        } catch (Exception e){
+            dropPeer(server);
+            return false;
+        }
+    }
+
+    /**
+     * setMembership installs the servers and the ring of an epoch, announced by the coordinator of the change.
+     * @param previousServers servers of the previous epoch, whose keys are moving, or null when the change is over.
+     * @param rebalanceCoordinator the server to tell once the current server has moved its keys, or -1 when the change is over.
+     */
+    @Override
+    public void setMembership(long epoch, int[] servers, int[] previousServers, HashRing ring, int rebalanceCoordinator){
+        synchronized (membershipLock){
+            Membership current = membership;
+            if (epoch < current.epoch || (epoch == current.epoch && previousServers != null)){
+                return;
+            }
+            Membership next = new Membership(epoch, servers, ring, previousServers);
+            List<Integer> others = new ArrayList<>();
+            for (int s : next.servers){
+                if (s != myPort){
+                    others.add(s);
+                }
+            }
+            this.ring = ring;
+            this.otherServers = others.stream().mapToInt(Integer::intValue).toArray();
+            this.membership = next;
+            if (next.isRebalancing()){
+                rebalancer.execute(() -> moveKeys(next, rebalanceCoordinator));
+            } else{
+                rebalanceDeletes.clear();
+                rebalancer.execute(this::dropKeysNotOwned);
+            }
+        }
+    }
+
+    /**
+     * moveKeys sends the keys the current server is the sender of to their new owners, in batches, at most
+     * rebalanceKeysPerSec, and then tells the coordinator of the change.
+     * The coordinator is only told once every batch is stored: until then the change is not over,
+     * and the previous owners keep their keys. Once a new owner failed to store a batch (see sendKeys),
+     * no more keys are sent to it, and the change stays open until that owner leaves, see changeMembership.
+     */
+    private void moveKeys(Membership m, int coordinator){
+        Map<Integer, Map<String, Versioned>> batches = new HashMap<>();
+        Set<Integer> failed = new HashSet<>();
+        long start = System.currentTimeMillis();
+        long sent = 0;
+        for (byte[] encodedKey : orderedKeys){
+            String key = CompactKeys.decode(encodedKey);
+            if (m.sender(key) != myPort){
+                continue;
+            }
+            List<Integer> targets = m.newOwners(key);
+            if (targets.isEmpty()){
+                continue;
+            }
+            Versioned v = localVersion(key);
+            if (v == null || !v.isLive(System.currentTimeMillis())){
+                continue;
+            }
+            for (int target : targets){
+                if (failed.contains(target)){
+                    continue;
+                }
+                Map<String, Versioned> batch = batches.computeIfAbsent(target, t -> new LinkedHashMap<>());
+                batch.put(key, v);
+                if (batch.size() == REBALANCE_BATCH){
+                    if (sendKeys(m, target, batch)){
+                        sent += batch.size();
+                        throttle(start, sent);
+                    } else{
+                        failed.add(target);
+                    }
+                    batch.clear();
+                }
+            }
+            if (membership != m){
+                return;
+            }
         }
-        addToTempStorage(messageID, op, key, value);
-        tellToPrepare(messageID, op, key, value);
-        boolean prepareOK = collectAckPrepare(messageID, op, key, value);
-        if (!prepareOK){
-            return "Tell to prepare fail. Key-value-operation aborted... ";
+        for (Map.Entry<Integer, Map<String, Versioned>> batch : batches.entrySet()){
+            if (!batch.getValue().isEmpty() && !failed.contains(batch.getKey())){
+                if (sendKeys(m, batch.getKey(), batch.getValue())){
+                    sent += batch.getValue().size();
+                } else{
+                    failed.add(batch.getKey());
+                }
+            }
         }
-        tellToGo(messageID);
-        boolean goOK = collectAckGo(messageID);
-        if (!goOK){
-            return "Tell to go fail. Key-value-operation aborted... ";
+        if (membership != m){
+            return;
         }
-
-        KeyValOp kvOp = this.pendingRequests.get(messageID);
-        if (kvOp == null){
-            throw new IllegalArgumentException("Error: the message is not in the temporary storage.");
+        if (!failed.isEmpty()){
+            serverHelper.log("Server " + myPort + " could not move its keys to " + failed + " for membership epoch " + m.epoch
+                    + ", it keeps them. The epoch is over once those servers leave.");
+            return;
         }
-        // ask the current server to "put" or "delete" as requested.
-        String msg = this.ServerOutputKeyValue(kvOp.operation, kvOp.key, kvOp.value);
-        this.pendingRequests.remove(messageID);
-        return msg;
+        serverHelper.log("Server " + myPort + " moved " + sent + " keys for membership epoch " + m.epoch
+                + " in " + (System.currentTimeMillis() - start) + " ms");
+        for (int attempt = 0; attempt < REBALANCE_RETRIES; attempt++){
+            try{
+                if (coordinator == myPort){
+                    rebalanced(m.epoch, myPort);
+                } else{
+                    peer(coordinator).rebalanced(m.epoch, myPort);
+                }
+                return;
+            } catch (Exception e){
+                dropPeer(coordinator);
+            }
+        }
+        serverHelper.log("Tell membership coordinator " + coordinator + " fail.");
     }
 
-    private String ServerOutputKeyValue(String op, String key, String value){
-        String msg;
-            switch(op){
-                case "get":
-                    msg = get(key);
-                    return msg;
-                case "delete":
-                    msg = delete(key);
-                    return msg;
-                case "put":
-                    msg = put(key, value);
-                    return msg;
-                default:
-                    msg = "----- Error: Unknown operation";
-                    return msg;
+    /**
+     * sendKeys sends one batch to a new owner, again every REBALANCE_RETRY_MS after REBALANCE_RETRIES failures in a row,
+     * for at most REBALANCE_ROUNDS rounds.
+     * @return true once the batch is stored, false if the owner did not store it, or a newer membership replaced m.
+     */
+    private boolean sendKeys(Membership m, int target, Map<String, Versioned> batch){
+        for (int attempt = 1; attempt <= REBALANCE_RETRIES * REBALANCE_ROUNDS && membership == m; attempt++){
+            try{
+                peer(target).receiveKeys(batch);
+                keysSent.addAndGet(batch.size());
+                return true;
+            } catch (Exception e){
+                dropPeer(target);
+            }
+            if (attempt % REBALANCE_RETRIES == 0){
+                serverHelper.log("Move " + batch.size() + " keys to Server " + target + " fail, membership epoch "
+                        + m.epoch + " is not over.");
+                if (attempt == REBALANCE_RETRIES * REBALANCE_ROUNDS){
+                    return false;
+                }
+                try{
+                    TimeUnit.MILLISECONDS.sleep(REBALANCE_RETRY_MS);
+                } catch (InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
             }
+        }
+        return false;
     }
 
+    /**
+     * throttle sleeps until the keys sent since start are within rebalanceKeysPerSec.
+     */
+    private void throttle(long start, long sent){
+        long wait = start + sent * 1000 / rebalanceKeysPerSec - System.currentTimeMillis();
+        if (wait > 0){
+            try{
+                TimeUnit.MILLISECONDS.sleep(wait);
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
 
+    /**
+     * receiveKeys stores keys moved from their previous owners.
+     * A moved key never replaces a newer write: with quorums the newest version wins,
+     * otherwise it is put only if the key is absent and was not deleted since the change.
+     * @return the number of keys stored.
+     */
+    @Override
+    public int receiveKeys(Map<String, Versioned> entries){
+        int stored = 0;
+        long now = System.currentTimeMillis();
+        List<KeyValOp> puts = new ArrayList<>();
+        for (Map.Entry<String, Versioned> e : entries.entrySet()){
+            if (quorumEnabled || e.getValue().timestamp > 0){
+                stored += applyVersioned(e.getKey(), e.getValue()) ? 1 : 0;
+            } else if (!rebalanceDeletes.contains(e.getKey()) && e.getValue().isLive(now)){
+                puts.add(new KeyValOp("put", e.getKey(), e.getValue().value, e.getValue().expireAt));
+            }
+        }
+        if (!puts.isEmpty()){
+            String[] results = apply(puts.toArray(new KeyValOp[0]));
+            for (int i = 0; i < results.length; i++){
+                if (results[i].startsWith("+++++")){
+                    stored++;
+                    if (puts.get(i).expireAt > 0){
+                        expiryWheel.schedule(puts.get(i).key, puts.get(i).expireAt);
+                    }
+                }
+            }
+        }
+        keysReceived.addAndGet(stored);
+        return stored;
+    }
 
-    private String get(String key) {
-        serverHelper.log("GET key: " + key + " from client in Master server: " + myPort);
-        String msg = "";
-        try{
-            rwl.lockRead();
-
-            String value = store.get(key);
+    /**
+     * rebalanced is called on the coordinator of a membership change when a server has moved its keys.
+     * Once every server has, the coordinator announces that the change is over.
+     */
+    @Override
+    public void rebalanced(long epoch, int server){
+        if (epoch != membership.epoch || !rebalancePending.remove(server) || !rebalancePending.isEmpty()){
+            return;
+        }
+        Membership m = membership;
+        List<Integer> servers = rebalanceServers;
+        rpcExecutor.execute(() -> {
+            fanOut(servers, s -> {
+                try{
+                    if (s == myPort){
+                        setMembership(epoch, m.servers, null, m.ring, -1);
+                    } else{
+                        peer(s).setMembership(epoch, m.servers, null, m.ring, -1);
+                    }
+                } catch (Exception e){
+                    dropPeer(s);
+                    serverHelper.log("Announce the end of membership epoch " + epoch + " to Server " + s + " fail.");
+                }
+            });
+            serverHelper.log("Keys of membership epoch " + epoch + " are moved.");
+        });
+    }
 
-            if (value != null){
-                // we get as many value objects as we need to return to the client
-                // (in this case, we select them from the service’s value collection
-                // based on whether they’re inside our request getRequest),
-                // and write them each in turn to the response observer using its onNext() method.
+    /**
+     * dropKeysNotOwned removes the keys the current server no longer owns once they are moved, in batches.
+     */
+    private void dropKeysNotOwned(){
+        HashRing current = ring;
+        if (current == null){
+            return;
+        }
+        List<String> batch = new ArrayList<>();
+        for (byte[] encodedKey : orderedKeys){
+            String key = CompactKeys.decode(encodedKey);
+            if (!current.isOwner(key, myPort)){
+                batch.add(key);
+                if (batch.size() == REBALANCE_BATCH){
+                    dropKeys(batch);
+                    batch.clear();
+                }
+            }
+        }
+        dropKeys(batch);
+    }
 
-                msg = "+++++ Succeed: GET key: " + key + ". Value is: " + value; // msg logged to client
-                serverHelper.log("+++++ Succeed: GET key: "+ key + "and value: " + value + "at Server " + myPort); // msg logged to server
-            } else{
-                msg = "----- Fail: GET. Key does not exist.";
-                serverHelper.log("----- Fail: Key does not exist. GET request fail " + myPort);
+    private void dropKeys(List<String> keys){
+        if (keys.isEmpty()){
+            return;
+        }
+        try{
+            synchronized (versions){
+                rwl.lockWrite();
+                try{
+                    committingTs = versions.beginCommit();
+                    for (String key : keys){
+                        versions.record(key, store.get(key), null, committingTs);
+                        store.remove(key);
+                        orderedKeys.remove(CompactKeys.encode(key));
+                        deadlines.remove(key);
+                        keyVersions.remove(key);
+                        invalidations.changed(key);
+                    }
+                    versions.endCommit(committingTs);
+                } finally{
+                    rwl.unlockWrite();
+                }
             }
-            rwl.unlockRead();
-        } catch (InterruptedException e) {
-            serverHelper.log(e.getMessage());
-        } return msg;
+            keysDropped.addAndGet(keys.size());
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
     }
 
-    private String put(String key, String value){
-        String msg = "";
+    /**
+     * antiEntropyRound compares the keys the current server shares with the next other server, and repairs them:
+     * (1) both servers build the Merkle tree of the keys they share, and the other server sends its tree,
+     * (2) the trees are compared from the root down, which gives the ranges (leaves) that differ,
+     * (3) the other server sends its versions of the keys in those ranges only,
+     * (4) for each key, the newest version wins: it is written to the current server, or sent to the other one.
+     * It repairs the replicas that missed a write, e.g. when a prepare or a go was lost.
+     * Rounds are skipped while keys are moving after a membership change.
+     */
+    private void antiEntropyRound(){
+        int[] others = otherServers;
+        Membership m = membership;
+        if (others.length == 0 || m.isRebalancing() || !m.contains(myPort)){
+            return;
+        }
+        int peer = others[(int) (antiEntropyRounds.getAndIncrement() % others.length)];
         try{
-//            serverHelper.log("PUT key: " + key + " and value: " + value + " from client in Master server: " + myPort);
-            rwl.lockWrite();
+            KeyValStoreInterface stub = peer(peer);
+            long[] theirs = stub.merkleTree(myPort);
+            treeBytes.addAndGet(8L * theirs.length);
+            List<Integer> leaves = MerkleTree.diff(merkleTree(peer), theirs);
+            if (leaves.isEmpty()){
+                return;
+            }
+            divergentRanges.addAndGet(leaves.size());
+            int[] ranges = leaves.stream().mapToInt(Integer::intValue).toArray();
+            Map<String, Versioned> remote = stub.merkleRange(myPort, ranges);
+            Map<String, Versioned> local = merkleRange(peer, ranges);
+            repairBytes.addAndGet(entryBytes(remote));
+            int pulled = 0;
+            for (Map.Entry<String, Versioned> e : remote.entrySet()){
+                if (e.getValue().newerThan(local.get(e.getKey())) && applyVersioned(e.getKey(), e.getValue())){
+                    pulled++;
+                }
+            }
+            Map<String, Versioned> push = new HashMap<>();
+            for (Map.Entry<String, Versioned> e : local.entrySet()){
+                if (e.getValue().newerThan(remote.get(e.getKey()))){
+                    push.put(e.getKey(), e.getValue());
+                }
+            }
+            int pushed = push.isEmpty() ? 0 : stub.repairKeys(push);
+            repairBytes.addAndGet(entryBytes(push));
+            keysRepaired.addAndGet(pulled);
+            serverHelper.log("Anti-entropy with Server " + peer + ": " + leaves.size() + " ranges differ, "
+                    + pulled + " keys repaired here and " + pushed + " there.");
+        } catch (Exception e){
+            dropPeer(peer);
+            serverHelper.log("Anti-entropy with Server " + peer + " fail: " + e.getMessage());
+        }
+    }
 
-            String result = store.putIfAbsent(key, value);
+    /**
+     * merkleTree returns the Merkle tree of the keys the current server shares with another server.
+     * @param peer the other server.
+     */
+    @Override
+    public long[] merkleTree(int peer){
+        MerkleTree tree = new MerkleTree();
+        forEachShared(peer, null, tree::add);
+        return tree.seal();
+    }
 
-            if(result == null){
-                msg = "+++++ Succeed: PUT key: " + key + " and value: " + value;
-                serverHelper.log("+++++ Succeed: PUT key: "+ key + "and value: " + value + "at Server " + myPort);
+    /**
+     * merkleRange returns the versions of the keys the current server shares with another server
+     * in the given leaves of the Merkle tree, tombstones included.
+     */
+    @Override
+    public Map<String, Versioned> merkleRange(int peer, int[] leaves){
+        boolean[] wanted = new boolean[MerkleTree.LEAVES];
+        for (int leaf : leaves){
+            wanted[leaf] = true;
+        }
+        Map<String, Versioned> entries = new HashMap<>();
+        forEachShared(peer, wanted, entries::put);
+        return entries;
+    }
 
-            } else{
-                msg = "----- Fail: Key already exists. PUT request fail";
-                serverHelper.log("----- Fail: Key already exists. PUT request fail at Server " + myPort);
+    /**
+     * repairKeys writes the versions sent by anti-entropy, unless the current server has newer ones.
+     * @return the number of keys written.
+     */
+    @Override
+    public int repairKeys(Map<String, Versioned> entries){
+        int repaired = 0;
+        for (Map.Entry<String, Versioned> e : entries.entrySet()){
+            if (applyVersioned(e.getKey(), e.getValue())){
+                repaired++;
             }
-            rwl.unlockWrite();
-        } catch (Exception e){
-            serverHelper.log(e.getMessage());
-        } return msg;
+        }
+        keysRepaired.addAndGet(repaired);
+        return repaired;
     }
 
-    private String delete(String key){
-        String msg = "";
-        try{
-//            serverHelper.log("DELETE key: " + key + " from client in Master server " + myPort);
-            rwl.lockWrite();
-
-            String result = store.remove(key);
-            if (result != null){
-                msg = "+++++ Succeed: DELETE key: " + key;
-                serverHelper.log("+++++ Succeed: DELETE key: "+ key + "at Server " + myPort);
-            } else{
-                msg = "----- Fail: Key does not exist. DELETE request fail";
-                serverHelper.log("----- Fail: Key does not exist. DELETE request fail " + myPort);
+    /**
+     * forEachShared gives the version of every key, or tombstone, that both the current server and the peer hold.
+     * @param leaves the leaves of the Merkle tree to read, null for all of them.
+     */
+    private void forEachShared(int peer, boolean[] leaves, BiConsumer<String, Versioned> action){
+        Membership m = membership;
+        long now = System.currentTimeMillis();
+        for (byte[] encodedKey : orderedKeys){
+            String key = CompactKeys.decode(encodedKey);
+            if (sharedWith(m, key, peer) && (leaves == null || leaves[MerkleTree.leafOf(key)])){
+                Versioned v = localVersion(key);
+                if (v != null){
+                    action.accept(key, v);
+                }
+            }
+        }
+        for (Map.Entry<String, Versioned> e : keyVersions.entrySet()){
+            String key = e.getKey();
+            Versioned stamp = e.getValue();
+            if (store.get(key) == null && !isOldTombstone(key, stamp, now) && sharedWith(m, key, peer)
+                    && (leaves == null || leaves[MerkleTree.leafOf(key)])){
+                action.accept(key, new Versioned(null, stamp.timestamp, stamp.origin, stamp.expireAt));
             }
-            rwl.unlockWrite();
-        }catch (Exception e){
-            serverHelper.log(e.getMessage());
         }
-        return msg;
     }
 
+    private boolean sharedWith(Membership m, String key, int peer){
+        if (m.ring == null){
+            return m.contains(peer);
+        }
+        int[] owners = m.ring.owners(key);
+        boolean mine = false;
+        boolean theirs = false;
+        for (int owner : owners){
+            mine |= owner == myPort;
+            theirs |= owner == peer;
+        }
+        return mine && theirs;
+    }
 
+    /**
+     * entryBytes estimates the bytes of keys and values sent by anti-entropy.
+     */
+    private static long entryBytes(Map<String, Versioned> entries){
+        long bytes = 0;
+        for (Map.Entry<String, Versioned> e : entries.entrySet()){
+            bytes += e.getKey().length() + (e.getValue().value == null ? 0 : e.getValue().value.length()) + 20;
+        }
+        return bytes;
+    }
 
+    /**
+     * replicaRead returns the version of a key on the current server, for the quorum read of another server.
+     * @return null if the server never stored the key.
+     */
     @Override
-    public void ackMe(UUID messageID, int callBackServer, ACKType type) throws RemoteException {
+    public Versioned replicaRead(String key) throws RemoteException {
+        return localVersion(key);
+    }
 
-        if (type == ACKType.AckGo){
-            this.pendingGoAcks.get(messageID).get(callBackServer).isAcked = true;
-            serverHelper.log("GO ACK sent from callBackServer: " + callBackServer);
-        }
-        else if (type == ACKType.AckPrepare){
-            this.pendingPrepareAcks.get(messageID).get(callBackServer).isAcked = true;
-            serverHelper.log("PREPARE ACK sent from callBackServer: " + callBackServer);
-        }
+    /**
+     * replicaWrite stores a version sent by the coordinator of a quorum write or by a read repair.
+     * @return true once the server holds this version or a newer one.
+     */
+    @Override
+    public boolean replicaWrite(String key, Versioned version) throws RemoteException {
+        applyVersioned(key, version);
+        return true;
+    }
 
+    /**
+     * replicaWrite stores the version of a client write, and records its result so that a retry
+     * of the write served by the current server gets it.
+     */
+    @Override
+    public boolean replicaWrite(String key, Versioned version, UUID messageID, String result) throws RemoteException {
+        dedup.put(messageID, result);
+        applyVersioned(key, version);
+        return true;
     }
 
     @Override
-    public void go(UUID messageID, int callBackServer) throws RemoteException {
-        KeyValOp kvOp = this.pendingRequests.get(messageID);
-        if (kvOp == null){
-            throw new IllegalArgumentException("The message is not in the temporary storage.");
-        }
-        this.ServerOutputKeyValue(kvOp.operation, kvOp.key, kvOp.value);
-        this.pendingRequests.remove(messageID);
-        this.sendAck(messageID, callBackServer, ACKType.AckGo);
+    public RaftNode.VoteReply requestVote(long term, int candidateId, long lastLogIndex, long lastLogTerm) throws RemoteException {
+        return raftNode().requestVote(term, candidateId, lastLogIndex, lastLogTerm);
     }
 
     @Override
-    public void prepareKeyValue(UUID messageID, String op, String key, String value, int callBackServer) throws RemoteException {
-        if(this.pendingRequests.containsKey(messageID)){
-            sendAck(messageID, callBackServer, ACKType.AckPrepare);
-        }
-        this.addToTempStorage(messageID, op, key, value);
-        sendAck(messageID, callBackServer, ACKType.AckPrepare);
+    public RaftNode.AppendReply appendEntries(long term, int leaderId, long prevLogIndex, long prevLogTerm,
+                                              RaftNode.LogEntry[] entries, long leaderCommit, long leaderTime) throws RemoteException {
+        return raftNode().appendEntries(term, leaderId, prevLogIndex, prevLogTerm, entries, leaderCommit, leaderTime);
     }
 
     @Override
-    public void setServerInfo(int[] otherServerPorts, int yourPorts) throws RemoteException {
-        this.otherServers = otherServerPorts;
-        this.myPort = yourPorts;
+    public long installSnapshot(long term, int leaderId, RaftNode.Snapshot snapshot) throws RemoteException {
+        return raftNode().installSnapshot(term, leaderId, snapshot);
+    }
+
+    private RaftNode raftNode() throws RemoteException{
+        if (raft == null){
+            throw new RemoteException("Raft is not enabled at Server " + myPort);
+        }
+        return raft;
+    }
 
+    /**
+     * captureState copies the store and the deadlines for a Raft snapshot.
+     * It is called between two applied entries, so no write is in progress.
+     */
+    private RaftNode.Snapshot captureState(long index, long term){
+        HashMap<String, String> data = new HashMap<>();
+        for (String key : store.keySet()){
+            String value = store.get(key);
+            if (value != null){
+                data.put(key, value);
+            }
+        }
+        return new RaftNode.Snapshot(index, term, data, new HashMap<>(deadlines));
     }
 
-    private void addToTempStorage(UUID messageID, String op, String key, String value){
-        KeyValOp kvOp = new KeyValOp();
-        kvOp.operation = op;
-        kvOp.key = key;
-        kvOp.value = value;
-        this.pendingRequests.put(messageID, kvOp);
+    /**
+     * restoreState replaces the content of the store with a Raft snapshot from the leader.
+     * The changes are applied as one batch, so snapshot reads see none or all of them.
+     */
+    private void restoreState(RaftNode.Snapshot snapshot){
+        try{
+            synchronized (versions){
+                rwl.lockWrite();
+                try{
+                    committingTs = versions.beginCommit();
+                    for (String key : new ArrayList<>(store.keySet())){
+                        if (!snapshot.data.containsKey(key)){
+                            versions.record(key, store.get(key), null, committingTs);
+                            store.remove(key);
+                            orderedKeys.remove(CompactKeys.encode(key));
+                            changes.append(key, null);
+                        }
+                    }
+                    for (Map.Entry<String, String> e : snapshot.data.entrySet()){
+                        String previous = store.get(e.getKey());
+                        if (!e.getValue().equals(previous)){
+                            versions.record(e.getKey(), previous, e.getValue(), committingTs);
+                            store.put(e.getKey(), e.getValue());
+                            orderedKeys.add(store.internKey(e.getKey()));
+                            changes.append(e.getKey(), e.getValue());
+                        }
+                    }
+                    deadlines.clear();
+                    deadlines.putAll(snapshot.deadlines);
+                    versions.endCommit(committingTs);
+                } finally{
+                    rwl.unlockWrite();
+                }
+                invalidations.changedAll();
+            }
+            serverHelper.log("Raft snapshot at index " + snapshot.index + " installed at Server " + myPort);
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            serverHelper.log(e.getMessage());
+        }
     }
 
     /**
      * tell the replica servers to prepare ACK
      * @param messageID
-     * @param op
-     * @param key
-     * @param value
+     * @param ops
      */
-    private void tellToPrepare(UUID messageID, String op, String key, String value){
-        this.pendingPrepareAcks.put(messageID, new ConcurrentHashMap(new HashMap<Integer, ACK>()));
-        for(int server : this.otherServers){
-            callPrepare(messageID, op, key, value, server);
-        }
+    private void tellToPrepare(TransactionTable.Txn txn, List<Integer> participants){
+        txn.prepareAcks = new AckRound(participants);
+        fanOut(participants, server -> callPrepare(txn, server));
     }
 
     /**
      *
      * @param messageID
-     * @param op
-     * @param key
-     * @param value
+     * @param ops
      * @param server
      */
-    private void callPrepare(UUID messageID, String op, String key, String value, int server){
+    private void callPrepare(TransactionTable.Txn txn, int server){
         try{
-            ACK a = new ACK();
-            a.isAcked = false;
-            this.pendingPrepareAcks.get(messageID).put(server, a);
-            Registry registry = LocateRegistry.getRegistry(server);
-            KeyValStoreInterface stub = (KeyValStoreInterface) registry.lookup("keyValService.KeyValStoreInterface");
-            stub.prepareKeyValue(messageID, op, key, value, myPort);
+            KeyValStoreInterface stub = peer(server);
+            if (asyncAcks){
+                stub.prepareKeyValue(txn.id, txn.ops, myPort);
+            } else if (stub.prepareKeyValueVote(txn.id, txn.ops, myPort)){
+                txn.prepareAcks.ack(server);
+            } else{
+                txn.prepareAcks.reject();
+            }
         }catch (Exception e){
+            dropPeer(server);
             serverHelper.log("Send ACK fail, removing data from temporary storage.");
         }
         serverHelper.log("Call prepare succeed. Target server: " + server);
 
     }
 
-    private boolean collectAckPrepare(UUID messageID, String op, String key, String value){
-        int areAllAck = 0;
+    /**
+     * collectAckPrepare waits until every replica acked the prepare.
+     * It wakes up as soon as the last ACK arrives in ackMe; after each timeout,
+     * only the replicas that did not ack are asked again.
+     */
+    private boolean collectAckPrepare(TransactionTable.Txn txn){
         int retry = 3;
+        AckRound round = txn.prepareAcks;
 
         while(retry != 0){
-            pauseThread();
-            areAllAck = 0;
             retry--;
-            Map<Integer, ACK> map = this.pendingPrepareAcks.get(messageID);
-            for(int server : this.otherServers){
-                if(map.get(server).isAcked){
-                    areAllAck++;
-                }
-                else{
-                    callPrepare(messageID, op, key, value, server);
-                }
-            }
-            if (areAllAck == 4){
+            if (round.await(ackTimeoutMs)){
                 return true;
             }
+            if (round.isRejected()){
+                return false;
+            }
+            // only the servers that did not answer are asked again.
+            fanOut(round.laggards(), server -> callPrepare(txn, server));
         }
         return false;
     }
 
-    private void tellToGo(UUID messageID){
-        this.pendingGoAcks.put(messageID, new ConcurrentHashMap(new HashMap<Integer, ACK>()));
-        for (int server : this.otherServers){
-            callGo(messageID, server);
+    private void callAbort(UUID messageID, int server){
+        try{
+            peer(server).abort(messageID);
+        } catch (Exception e){
+            dropPeer(server);
+            serverHelper.log("Send abort fail. Target server: " + server);
         }
     }
 
-    private void callGo(UUID messageID, int server){
+    private void tellToGo(TransactionTable.Txn txn, List<Integer> participants){
+        txn.goAcks = new AckRound(participants);
+        fanOut(participants, server -> callGo(txn, server));
+    }
+
+    private void callGo(TransactionTable.Txn txn, int server){
         try{
-            ACK a = new ACK();
-            a.isAcked = false;
-            this.pendingGoAcks.get(messageID).put(server, a);
-            Registry registry = LocateRegistry.getRegistry(server);
-            KeyValStoreInterface stub = (KeyValStoreInterface) registry.lookup("keyValService.KeyValStoreInterface");
-            stub.go(messageID, myPort);
+            KeyValStoreInterface stub = peer(server);
+            if (asyncAcks){
+                stub.go(txn.id, myPort);
+            } else if (stub.goAck(txn.id)){
+                txn.goAcks.ack(server);
+            }
         }catch (Exception e){
+            dropPeer(server);
             serverHelper.log("Send go fail, removing data from temporary storage");
         }
         serverHelper.log("Call go succeed. Target server: " + server);
     }
 
-    private boolean collectAckGo(UUID messageID){
-        int areAllAck = 0;
+    private boolean collectAckGo(TransactionTable.Txn txn){
         int attemps = 3;
+        AckRound round = txn.goAcks;
 
         while(attemps != 0){
-            pauseThread();
-
-            areAllAck = 0;
             attemps--;
-            Map<Integer, ACK> map = this.pendingGoAcks.get(messageID);
-
-            for (int server : this.otherServers){
-                if(map.get(server).isAcked){
-                    areAllAck++;
-                }
-                else{
-                    callGo(messageID, server);
-                }
-            }
-            if (areAllAck == 4){
+            if (round.await(ackTimeoutMs)){
                 return true;
             }
+            fanOut(round.laggards(), server -> callGo(txn, server));
         }
         return false;
     }
 
     private void sendAck(UUID messageID, int otherServerDestination, ACKType type){
         try{
-            Registry registry = LocateRegistry.getRegistry(otherServerDestination);
-            KeyValStoreInterface stub = (KeyValStoreInterface) registry.lookup("keyValService.KeyValStoreInterface");
+            KeyValStoreInterface stub = peer(otherServerDestination);
             stub.ackMe(messageID, myPort, type);
         }catch (Exception e){
-            serverHelper.log("Send ACK fail, removing data from temporary storage");
-            this.pendingRequests.remove(messageID);
+            dropPeer(otherServerDestination);
+            serverHelper.log("Send ACK fail, aborting the prepared transaction");
+            abortPrepared(messageID);
         }
         serverHelper.log("Send ACK succeed.");
     }
 
 
-    private static void pauseThread(){
-        try{
-            TimeUnit.MILLISECONDS.sleep(ThreadLocalRandom.current().nextInt(50, 100));
-        } catch(InterruptedException e){
-            serverHelper.log("Thread sleeping fail");
-            Thread.currentThread().interrupt();
-            throw new RuntimeException();
+    /**
+     * fanOut calls the given servers concurrently on the rpc executor
+     * and returns once every call has returned, so a phase costs the slowest replica's round trip
+     * instead of the sum of all of them.
+     * @param servers ports of the servers to call.
+     * @param call the call to one server. It handles its own failures.
+     */
+    private void fanOut(List<Integer> servers, IntConsumer call){
+        CompletableFuture<?>[] calls = new CompletableFuture<?>[servers.size()];
+        for (int i = 0; i < calls.length; i++){
+            int server = servers.get(i);
+            calls[i] = CompletableFuture.runAsync(() -> call.accept(server), rpcExecutor);
         }
+        CompletableFuture.allOf(calls).join();
     }
-}
 
-class ACK{
-    public boolean isAcked;
-}
+    /**
+     * replicasOf returns the other servers that hold the key.
+     */
+    private List<Integer> replicasOf(String key){
+        if (ring == null){
+            return allOtherServers();
+        }
+        List<Integer> replicas = new ArrayList<>();
+        for (int server : ring.owners(key)){
+            if (server != myPort){
+                replicas.add(server);
+            }
+        }
+        return replicas;
+    }
+
+    /**
+     * owns tells if the current server holds the key. A server that left the cluster holds no key.
+     */
+    private boolean owns(String key){
+        if (key == null){
+            return true;
+        }
+        if (!membership.contains(myPort)){
+            return false;
+        }
+        return ring == null || ring.isOwner(key, myPort);
+    }
+
+    /**
+     * callOwner forwards a request for a key the current server does not hold to the owners of the key,
+     * in order, until one of them answers.
+     * @return the reply of the owner, or null if none answered.
+     */
+    private <T> T callOwner(String key, PeerCall<T> call){
+        for (int owner : membership.owners(key)){
+            try{
+                return call.call(peer(owner));
+            } catch (Exception e){
+                dropPeer(owner);
+                serverHelper.log("Forward to owner " + owner + " of key " + key + " fail.");
+            }
+        }
+        return null;
+    }
+
+    private interface PeerCall<T>{
+        T call(KeyValStoreInterface stub) throws Exception;
+    }
+
+    private List<Integer> allOtherServers(){
+        List<Integer> servers = new ArrayList<>();
+        for (int server : this.otherServers){
+            servers.add(server);
+        }
+        return servers;
+    }
+
+    /**
+     * peer returns the cached stub of another server, looking it up in its registry on first use.
+     * @param server port of the other server.
+     */
+    private KeyValStoreInterface peer(int server) throws RemoteException, NotBoundException{
+        KeyValStoreInterface stub = peerStubs.get(server);
+        if (stub == null && nioTransport){
+            try{
+                stub = NioRpcClient.connect("localhost", server + NioRpcServer.PORT_OFFSET);
+                peerStubs.put(server, stub);
+            } catch (IOException e){
+                // fall back to RMI.
+            }
+        }
+        if (stub == null){
+            Registry registry = LocateRegistry.getRegistry(server);
+            stub = (KeyValStoreInterface) registry.lookup("keyValService.KeyValStoreInterface");
+            peerStubs.put(server, stub);
+        }
+        return stub;
+    }
+
+    /**
+     * dropPeer forgets the stub of a server after a failed call,
+     * so that the next call looks it up again, e.g. after the server restarted.
+     */
+    private void dropPeer(int server){
+        peerStubs.remove(server);
+    }
 
-class KeyValOp{
-    String operation;
-    String key;
-    String value;
+    private static ThreadFactory daemonThreads(String name){
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
 }
@@ -1,18 +1,197 @@
 package server;
 
+import keyValService.Consistency;
+
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Date;
 
 public class ServerHelper {
-    public int[] serverPortNumbers = new int[5];
+    public int[] serverPortNumbers;
+    // bytes of the in-memory cache of each server, 0 if the servers keep every key in memory.
+    public long cacheBytes = 0;
+    // directory of the backing store files when a cache is used, and of the Raft state.
+    // null unless --data-dir is given: the backing store files go to the working directory, and Raft keeps its state in memory.
+    public String dataDir = null;
+    // how long a master server waits for the ACKs of a 2PC phase before a retry.
+    public long ackTimeoutMs = 100;
+    // replicas ACK with a separate call back to the master server, instead of in the reply.
+    public boolean asyncAcks = false;
+    // group commit: maximum writes per 2PC round, and how long a round waits for more writes.
+    public int batchSize = 64;
+    public long batchWindowMs = 0;
+    public int commitThreads = 1;
+    // how long a prepare waits for a transaction that writes the same keys before voting no.
+    public long lockWaitMs = 50;
+    // how the writes are replicated: 2pc rounds, a Raft log committed by a majority, or quorum reads and writes.
+    public String consensus = "2pc";
+    // consistency level of the requests that do not give one, in the quorum mode.
+    public Consistency consistency = Consistency.QUORUM;
+    public int raftPipelineDepth = 4;
+    public long raftSnapshotEntries = 1000;
+    // the servers also serve KeyValStoreInterface over NIO on their port + NioRpcServer.PORT_OFFSET, and call each other through it.
+    public boolean nioTransport = false;
+    // partitioning: number of servers that hold each key, 0 for every server, and the points of each server on the ring.
+    public int replicationFactor = 0;
+    public int virtualNodes = 64;
+    // key ranges with their own replication factor, as {startKey, endKey, replicationFactor}.
+    public List<String[]> rangeReplication = new ArrayList<>();
+    // how many keys per second each server sends to their new owners after a server joins or leaves.
+    public long rebalanceKeysPerSec = 2000;
+    // port of a server of a running cluster that the new servers join, 0 to start a new cluster.
+    public int joinPort = 0;
+    // milliseconds between two anti-entropy rounds of a server, 0 to disable anti-entropy.
+    public long antiEntropyMs = 10000;
+    // most 2PC transactions in flight at a server, and how long one may stay prepared before it is aborted.
+    public int maxTransactions = 10000;
+    public long txnTimeoutMs = 5000;
+    // results of client writes kept to recognize their retries: how many, and for how long.
+    public int dedupEntries = 100000;
+    public long dedupWindowMs = 300000;
+    // latest changes kept for the watches of the clients.
+    public int changeLogEntries = 100000;
 
+    /**
+     * ParseServerArgsToPorts reads the ports of the servers, as many as the cluster has, followed by the options:
+     * --cache-bytes <bytes> to bound the memory of each server with a cache in front of a file,
+     * --data-dir <directory> where the files are kept, and the Raft state with --consensus raft (in memory without it),
+     * --ack-timeout-ms <milliseconds> how long to wait for the ACKs of a 2PC phase before a retry,
+     * --async-acks to have the replicas ACK through a call back to ackMe instead of in the reply,
+     * --batch-size <writes> and --batch-window-ms <milliseconds> to group concurrent writes into one 2PC round,
+     * --commit-threads <threads> number of 2PC rounds a server may run at the same time,
+     * --lock-wait-ms <milliseconds> how long a prepare waits for a conflicting transaction before voting no,
+     * --consensus <2pc|raft|quorum> how the writes are replicated, 2PC rounds by default,
+     * --raft-pipeline <requests> maximum number of AppendEntries in flight to a follower,
+     * --raft-snapshot-entries <entries> number of applied entries after which the Raft log is compacted,
+     * --consistency <ONE|QUORUM|ALL> default consistency level of the requests in the quorum mode,
+     * --transport <rmi|nio> how the servers call each other, RMI by default. RMI is served in both cases,
+     * --replication-factor <servers> to partition the keys on a consistent-hash ring, each key kept by that many servers,
+     * --virtual-nodes <points> number of points of each server on the ring,
+     * --range-replication <startKey>,<endKey>,<servers> replication factor of the keys in [startKey, endKey),
+     * --rebalance-keys-per-sec <keys> how fast the keys are moved to their new owners after a join or a leave,
+     * --join <port> to add the servers to the running cluster of that server instead of starting a new one,
+     * --anti-entropy-ms <milliseconds> how often each server compares its keys with another one and repairs them, 0 to disable,
+     * --max-transactions <transactions> most 2PC transactions in flight at a server, the next ones are refused,
+     * --txn-timeout-ms <milliseconds> how long a transaction may stay prepared without its outcome before it is aborted,
+     * --dedup-entries <writes> and --dedup-window-ms <milliseconds> how many results of client writes are kept, and for how long,
+     * so that a write retried with the same messageID is applied once,
+     * --change-log-entries <changes> how many of the latest changes are kept for the watches to resume from.
+     */
     public void ParseServerArgsToPorts(String[] args) throws Exception{
-        if (args.length < 5){
-            throw new IllegalArgumentException("Five ports needed for serverPortNumbers.");
+        int ports = 0;
+        while (ports < args.length && !args[ports].startsWith("--")){
+            ports++;
+        }
+        if (ports == 0){
+            throw new IllegalArgumentException("At least one port needed for serverPortNumbers.");
         }
-        for (int i = 0; i < args.length; i++){
+        serverPortNumbers = new int[ports];
+        for (int i = 0; i < ports; i++){
             serverPortNumbers[i] = Integer.parseInt(args[i]);
         }
+        for (int i = ports; i < args.length; i++){
+            switch (args[i]){
+                case "--cache-bytes":
+                    cacheBytes = Long.parseLong(optionValue(args, ++i));
+                    break;
+                case "--data-dir":
+                    dataDir = optionValue(args, ++i);
+                    break;
+                case "--ack-timeout-ms":
+                    ackTimeoutMs = Long.parseLong(optionValue(args, ++i));
+                    break;
+                case "--async-acks":
+                    asyncAcks = true;
+                    break;
+                case "--batch-size":
+                    batchSize = Integer.parseInt(optionValue(args, ++i));
+                    break;
+                case "--batch-window-ms":
+                    batchWindowMs = Long.parseLong(optionValue(args, ++i));
+                    break;
+                case "--commit-threads":
+                    commitThreads = Integer.parseInt(optionValue(args, ++i));
+                    break;
+                case "--lock-wait-ms":
+                    lockWaitMs = Long.parseLong(optionValue(args, ++i));
+                    break;
+                case "--consensus":
+                    consensus = optionValue(args, ++i);
+                    if (!consensus.equals("2pc") && !consensus.equals("raft") && !consensus.equals("quorum")){
+                        throw new IllegalArgumentException("Consensus should be 2pc, raft or quorum.");
+                    }
+                    break;
+                case "--consistency":
+                    consistency = Consistency.valueOf(optionValue(args, ++i).toUpperCase());
+                    break;
+                case "--raft-pipeline":
+                    raftPipelineDepth = Integer.parseInt(optionValue(args, ++i));
+                    break;
+                case "--raft-snapshot-entries":
+                    raftSnapshotEntries = Long.parseLong(optionValue(args, ++i));
+                    break;
+                case "--transport":
+                    String transport = optionValue(args, ++i);
+                    if (!transport.equals("rmi") && !transport.equals("nio")){
+                        throw new IllegalArgumentException("Transport should be rmi or nio.");
+                    }
+                    nioTransport = transport.equals("nio");
+                    break;
+                case "--replication-factor":
+                    replicationFactor = Integer.parseInt(optionValue(args, ++i));
+                    break;
+                case "--virtual-nodes":
+                    virtualNodes = Integer.parseInt(optionValue(args, ++i));
+                    break;
+                case "--range-replication":
+                    String[] range = optionValue(args, ++i).split(",");
+                    if (range.length != 3){
+                        throw new IllegalArgumentException("Range replication should be <startKey>,<endKey>,<servers>.");
+                    }
+                    rangeReplication.add(range);
+                    break;
+                case "--rebalance-keys-per-sec":
+                    rebalanceKeysPerSec = Long.parseLong(optionValue(args, ++i));
+                    break;
+                case "--join":
+                    joinPort = Integer.parseInt(optionValue(args, ++i));
+                    break;
+                case "--anti-entropy-ms":
+                    antiEntropyMs = Long.parseLong(optionValue(args, ++i));
+                    break;
+                case "--max-transactions":
+                    maxTransactions = Integer.parseInt(optionValue(args, ++i));
+                    break;
+                case "--txn-timeout-ms":
+                    txnTimeoutMs = Long.parseLong(optionValue(args, ++i));
+                    break;
+                case "--dedup-entries":
+                    dedupEntries = Integer.parseInt(optionValue(args, ++i));
+                    break;
+                case "--dedup-window-ms":
+                    dedupWindowMs = Long.parseLong(optionValue(args, ++i));
+                    break;
+                case "--change-log-entries":
+                    changeLogEntries = Integer.parseInt(optionValue(args, ++i));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if (replicationFactor > 0 && consensus.equals("raft")){
+            throw new IllegalArgumentException("Partitioning needs 2pc or quorum consensus: Raft replicates every key on every server.");
+        }
+        if (joinPort > 0 && consensus.equals("raft")){
+            throw new IllegalArgumentException("Joining a cluster needs 2pc or quorum consensus: the Raft membership is fixed.");
+        }
+    }
+
+    private static String optionValue(String[] args, int i){
+        if (i >= args.length){
+            throw new IllegalArgumentException("Missing value of option " + args[i - 1]);
+        }
+        return args[i];
     }
 
     public static String currentTime(){
@@ -0,0 +1,116 @@
+package server;
+
+import java.util.List;
+
+/**
+ * TimingWheel is a hierarchical timing wheel that schedules key expirations.
+ * Level 0 has one slot per tick; each higher level has slots that are SLOTS times wider.
+ * When level 0 wraps around, the matching slot of the next level is cascaded down,
+ * so adding a key is O(1) and every key is touched at most once per level before it expires.
+ *
+ * Each scheduled key costs a single Entry node (key reference, expiration tick, next pointer).
+ * The wheel is not thread-safe on its own: every method is synchronized on the wheel.
+ */
+public class TimingWheel {
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+    // keys further away than this are parked in the last level and rescheduled when they come up.
+    private static final long MAX_TICKS = (1L << (BITS * LEVELS)) - 1;
+
+    private final long tickMs;
+    private final Entry[][] wheels = new Entry[LEVELS][SLOTS];
+    private long currentTick;
+
+    public TimingWheel(long tickMs, long startMs){
+        if (tickMs <= 0){
+            throw new IllegalArgumentException("Tick of the timing wheel should be positive.");
+        }
+        this.tickMs = tickMs;
+        this.currentTick = startMs / tickMs;
+    }
+
+    /**
+     * schedule adds a key to the wheel.
+     * @param key the key to expire.
+     * @param expireAt absolute expiration time in milliseconds.
+     */
+    public synchronized void schedule(String key, long expireAt){
+        // round up so that a key is never reported before its deadline.
+        long expireTick = (expireAt + tickMs - 1) / tickMs;
+        insert(new Entry(key, expireAt, Math.max(expireTick, currentTick)));
+    }
+
+    /**
+     * advance moves the wheel forward to the given time
+     * and collects every entry whose tick has been reached.
+     * @param nowMs current time in milliseconds.
+     * @param expired list the expired entries are appended to.
+     */
+    public synchronized void advance(long nowMs, List<Entry> expired){
+        long targetTick = nowMs / tickMs;
+        while (currentTick <= targetTick){
+            int index = (int) (currentTick & MASK);
+            if (index == 0){
+                cascade();
+            }
+            Entry e = wheels[0][index];
+            wheels[0][index] = null;
+            while (e != null){
+                Entry next = e.next;
+                e.next = null;
+                if (e.expireTick <= currentTick){
+                    expired.add(e);
+                } else{
+                    insert(e);
+                }
+                e = next;
+            }
+            currentTick++;
+        }
+    }
+
+    private void cascade(){
+        for (int level = 1; level < LEVELS; level++){
+            int index = (int) ((currentTick >>> (BITS * level)) & MASK);
+            Entry e = wheels[level][index];
+            wheels[level][index] = null;
+            while (e != null){
+                Entry next = e.next;
+                e.next = null;
+                insert(e);
+                e = next;
+            }
+            // higher levels only move when this one wrapped around as well.
+            if (index != 0){
+                return;
+            }
+        }
+    }
+
+    private void insert(Entry e){
+        long delta = Math.min(e.expireTick - currentTick, MAX_TICKS);
+        long tick = currentTick + delta;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= (1L << (BITS * (level + 1)))){
+            level++;
+        }
+        int index = (int) ((tick >>> (BITS * level)) & MASK);
+        e.next = wheels[level][index];
+        wheels[level][index] = e;
+    }
+
+    public static class Entry{
+        final String key;
+        final long expireAt;
+        final long expireTick;
+        Entry next;
+
+        Entry(String key, long expireAt, long expireTick){
+            this.key = key;
+            this.expireAt = expireAt;
+            this.expireTick = expireTick;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * TinyLfuCache is a cache bounded by an estimate of its size in bytes, using W-TinyLFU:
+ * (1) new entries go to a small LRU window (1% of the bytes),
+ * (2) entries evicted from the window are candidates for the main space, a segmented LRU
+ * made of a probation segment and a protected segment (80% of the main space),
+ * (3) a candidate is admitted only if the FrequencySketch says it was accessed more often
+ * than the probation entry it would evict. Otherwise the candidate is rejected.
+ * An entry hit in probation is promoted to protected.
+ *
+ * All methods are synchronized on the cache.
+ */
+public class TinyLfuCache {
+    // estimated heap bytes of an entry besides its characters: the entry object, two Strings and their arrays.
+    private static final int ENTRY_OVERHEAD = 96;
+    private static final int AVERAGE_ENTRY_BYTES = 128;
+
+    private final long maxBytes;
+    private final long windowMax;
+    private final long protectedMax;
+    private final FrequencySketch sketch;
+
+    // access-ordered, so that the first entry is the least recently used one.
+    private final LinkedHashMap<String, String> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, String> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, String> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    private long windowBytes;
+    private long probationBytes;
+    private long protectedBytes;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long admissionRejections;
+
+    public TinyLfuCache(long maxBytes){
+        if (maxBytes <= 0){
+            throw new IllegalArgumentException("Cache size should be positive.");
+        }
+        this.maxBytes = maxBytes;
+        this.windowMax = Math.max(1, maxBytes / 100);
+        this.protectedMax = (maxBytes - windowMax) * 8 / 10;
+        this.sketch = new FrequencySketch((int) Math.min(Integer.MAX_VALUE / 2, maxBytes / AVERAGE_ENTRY_BYTES));
+    }
+
+    /**
+     * get returns the cached value, or null on a miss.
+     */
+    public synchronized String get(String key){
+        sketch.increment(key);
+        String value = window.get(key);
+        if (value == null){
+            value = protectedSegment.get(key);
+        }
+        if (value == null){
+            value = probation.remove(key);
+            if (value != null){
+                probationBytes -= weight(key, value);
+                addProtected(key, value);
+            }
+        }
+        if (value == null){
+            misses++;
+        } else{
+            hits++;
+        }
+        return value;
+    }
+
+    /**
+     * peek returns the cached value without recording an access.
+     */
+    public synchronized String peek(String key){
+        String value = window.get(key);
+        if (value == null){
+            value = probation.get(key);
+        }
+        if (value == null){
+            value = protectedSegment.get(key);
+        }
+        return value;
+    }
+
+    /**
+     * put adds or replaces an entry. A new entry enters the window,
+     * and may push the window's least recently used entry to the admission test.
+     */
+    public synchronized void put(String key, String value){
+        long w = weight(key, value);
+        invalidate(key);
+        if (w > maxBytes){
+            return;
+        }
+        window.put(key, value);
+        windowBytes += w;
+        while (windowBytes > windowMax){
+            Map.Entry<String, String> lru = window.entrySet().iterator().next();
+            window.remove(lru.getKey());
+            windowBytes -= weight(lru.getKey(), lru.getValue());
+            admit(lru.getKey(), lru.getValue());
+        }
+    }
+
+    public synchronized void invalidate(String key){
+        String value = window.remove(key);
+        if (value != null){
+            windowBytes -= weight(key, value);
+            return;
+        }
+        value = probation.remove(key);
+        if (value != null){
+            probationBytes -= weight(key, value);
+            return;
+        }
+        value = protectedSegment.remove(key);
+        if (value != null){
+            protectedBytes -= weight(key, value);
+        }
+    }
+
+    public synchronized void addMetrics(Map<String, Number> metrics){
+        long requests = hits + misses;
+        metrics.put("cache.hits", hits);
+        metrics.put("cache.misses", misses);
+        metrics.put("cache.hitRatio", requests == 0 ? 0.0 : (double) hits / requests);
+        metrics.put("cache.evictions", evictions);
+        metrics.put("cache.admissionRejections", admissionRejections);
+        metrics.put("cache.bytes", windowBytes + probationBytes + protectedBytes);
+        metrics.put("cache.maxBytes", maxBytes);
+    }
+
+    /**
+     * admit moves a candidate evicted from the window into probation,
+     * evicting probation (then protected) victims that are accessed less often than the candidate.
+     */
+    private void admit(String key, String value){
+        long w = weight(key, value);
+        long mainMax = maxBytes - windowMax;
+        if (w > mainMax){
+            evictions++;
+            return;
+        }
+        int candidateFrequency = sketch.frequency(key);
+        while (probationBytes + protectedBytes + w > mainMax){
+            LinkedHashMap<String, String> segment = probation.isEmpty() ? protectedSegment : probation;
+            if (segment.isEmpty()){
+                break;
+            }
+            Iterator<Map.Entry<String, String>> it = segment.entrySet().iterator();
+            Map.Entry<String, String> victim = it.next();
+            if (candidateFrequency <= sketch.frequency(victim.getKey())){
+                admissionRejections++;
+                evictions++;
+                return;
+            }
+            long victimWeight = weight(victim.getKey(), victim.getValue());
+            it.remove();
+            if (segment == probation){
+                probationBytes -= victimWeight;
+            } else{
+                protectedBytes -= victimWeight;
+            }
+            evictions++;
+        }
+        probation.put(key, value);
+        probationBytes += w;
+    }
+
+    private void addProtected(String key, String value){
+        protectedSegment.put(key, value);
+        protectedBytes += weight(key, value);
+        // demote the least recently used protected entries back to probation.
+        while (protectedBytes > protectedMax && protectedSegment.size() > 1){
+            Iterator<Map.Entry<String, String>> it = protectedSegment.entrySet().iterator();
+            Map.Entry<String, String> lru = it.next();
+            it.remove();
+            long w = weight(lru.getKey(), lru.getValue());
+            protectedBytes -= w;
+            probation.put(lru.getKey(), lru.getValue());
+            probationBytes += w;
+        }
+    }
+
+    private static long weight(String key, String value){
+        return ENTRY_OVERHEAD + 2L * (key.length() + value.length());
+    }
+}
@@ -0,0 +1,203 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TransactionTable keeps the 2PC transactions of a server that are not over yet,
+ * whether the server coordinates them or only takes part in them.
+ *
+ * A transaction enters the table when its keys are locked at prepare, with a deadline, and leaves it
+ * exactly once, when it commits or aborts: the first of the go, the abort and the reaper to end it decides.
+ * Once it is over, only the id of a committed transaction is kept, for KEEP_COMMITTED deadlines, so that
+ * a go sent again because its reply was lost is still acknowledged, and a participant in doubt can ask.
+ * The table holds at most maxTransactions transactions in flight: a server with a full table votes no,
+ * and the coordinator backs off.
+ * A participant that did not vote yet once the deadline is past aborts on its own. One that voted yes
+ * is in doubt: the coordinator may have committed, so it keeps the keys locked and asks the coordinator
+ * for the outcome until it gets one. A coordinator that has neither the transaction in flight nor its
+ * commit answers that it aborted.
+ */
+class TransactionTable {
+    enum State { PREPARING, PREPARED, COMMITTING, COMMITTED, ABORTED }
+
+    // how many deadlines a commit is remembered: a participant asks once its deadline is past,
+    // and again while the coordinator is unreachable.
+    private static final int KEEP_COMMITTED = 4;
+
+    static final class Txn{
+        final UUID id;
+        final KeyValOp[] ops;
+        // true on the server that coordinates the transaction.
+        final boolean coordinator;
+        // the port of the server that coordinates the transaction.
+        final int coordinatedBy;
+        final long startedAt;
+        final long deadline;
+        volatile State state;
+        // ACKs of the participants, on the coordinator only.
+        volatile AckRound prepareAcks;
+        volatile AckRound goAcks;
+        // set while a participant in doubt asks the coordinator for the outcome.
+        final AtomicBoolean asking = new AtomicBoolean();
+
+        Txn(UUID id, KeyValOp[] ops, boolean coordinator, int coordinatedBy, long startedAt, long deadline){
+            this.id = id;
+            this.ops = ops;
+            this.coordinator = coordinator;
+            this.coordinatedBy = coordinatedBy;
+            this.startedAt = startedAt;
+            this.deadline = deadline;
+            // a participant is PREPARED once it votes yes.
+            this.state = State.PREPARING;
+        }
+    }
+
+    private final ConcurrentHashMap<UUID, Txn> txns = new ConcurrentHashMap<>();
+    // ids of the transactions committed recently, with the time until which they are kept.
+    private final ConcurrentHashMap<UUID, Long> recentlyCommitted = new ConcurrentHashMap<>();
+    private final int maxTransactions;
+    private final long timeoutMs;
+    private final AtomicLong committed = new AtomicLong();
+    private final AtomicLong aborted = new AtomicLong();
+    private final AtomicLong reaped = new AtomicLong();
+    private final AtomicLong refused = new AtomicLong();
+
+    /**
+     * @param maxTransactions most transactions in flight at a time.
+     * @param timeoutMs how long a transaction may stay in flight before the reaper aborts it, or asks its coordinator.
+     */
+    TransactionTable(int maxTransactions, long timeoutMs){
+        if (maxTransactions <= 0 || timeoutMs <= 0){
+            throw new IllegalArgumentException("Transaction limit and timeout should be positive.");
+        }
+        this.maxTransactions = maxTransactions;
+        this.timeoutMs = timeoutMs;
+    }
+
+    /**
+     * begin adds a transaction whose keys are locked. A prepare sent again returns the transaction already there.
+     * @param coordinatedBy the port of the coordinator, which a participant in doubt asks for the outcome.
+     * @return the transaction, or null if the table is full.
+     */
+    Txn begin(UUID id, KeyValOp[] ops, boolean coordinator, int coordinatedBy){
+        Txn txn = txns.get(id);
+        if (txn != null){
+            return txn;
+        }
+        if (txns.size() >= maxTransactions){
+            refused.incrementAndGet();
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        Txn added = new Txn(id, ops, coordinator, coordinatedBy, now, now + timeoutMs);
+        txn = txns.putIfAbsent(id, added);
+        return txn != null ? txn : added;
+    }
+
+    Txn get(UUID id){
+        return txns.get(id);
+    }
+
+    /**
+     * end takes a transaction out of the table with its outcome.
+     * @return the transaction, or null if it already ended: the caller must then not apply or unlock it.
+     */
+    Txn end(UUID id, State outcome){
+        Txn txn = txns.get(id);
+        if (txn == null){
+            return null;
+        }
+        if (outcome == State.COMMITTED && txn.coordinator){
+            // only its own round ends a coordinated transaction: the commit is recorded before the transaction
+            // leaves the table, so that a participant asking for the outcome never finds it in neither.
+            recentlyCommitted.put(id, System.currentTimeMillis() + KEEP_COMMITTED * timeoutMs);
+        }
+        if (!txns.remove(id, txn)){
+            return null;
+        }
+        txn.state = outcome;
+        if (outcome == State.COMMITTED){
+            recentlyCommitted.put(id, System.currentTimeMillis() + KEEP_COMMITTED * timeoutMs);
+            committed.incrementAndGet();
+        } else{
+            aborted.incrementAndGet();
+        }
+        return txn;
+    }
+
+    /**
+     * wasCommitted tells whether a transaction that is no longer in the table committed recently.
+     */
+    boolean wasCommitted(UUID id){
+        return recentlyCommitted.containsKey(id);
+    }
+
+    /**
+     * outcome answers a participant in doubt about a transaction this server coordinates.
+     * @return true if it committed, false if it aborted or is unknown, null if its round is still running.
+     */
+    Boolean outcome(UUID id){
+        if (recentlyCommitted.containsKey(id)){
+            return Boolean.TRUE;
+        }
+        Txn txn = txns.get(id);
+        if (txn != null && txn.coordinator){
+            return null;
+        }
+        // a commit is recorded before its transaction leaves the table.
+        return recentlyCommitted.containsKey(id);
+    }
+
+    /**
+     * reap aborts the participant transactions past their deadline that did not vote yet, and forgets
+     * the transactions committed too long ago. Coordinated transactions are always ended by their own round.
+     * @param inDoubt gets the participant transactions past their deadline that voted yes: the caller
+     *                asks their coordinator for the outcome.
+     * @return the aborted transactions, whose keys the caller must unlock.
+     */
+    List<Txn> reap(long now, List<Txn> inDoubt){
+        recentlyCommitted.values().removeIf(keptUntil -> keptUntil <= now);
+        List<Txn> expired = new ArrayList<>();
+        for (Txn txn : txns.values()){
+            if (txn.coordinator || txn.deadline > now){
+                continue;
+            }
+            if (txn.state == State.PREPARED){
+                inDoubt.add(txn);
+            } else if (end(txn.id, State.ABORTED) != null){
+                expired.add(txn);
+            }
+        }
+        reaped.addAndGet(expired.size());
+        return expired;
+    }
+
+    /**
+     * oldestStart returns when the oldest transaction in flight started, or Long.MAX_VALUE if there is none.
+     */
+    long oldestStart(){
+        long oldest = Long.MAX_VALUE;
+        for (Txn txn : txns.values()){
+            oldest = Math.min(oldest, txn.startedAt);
+        }
+        return oldest;
+    }
+
+    int size(){
+        return txns.size();
+    }
+
+    void addMetrics(Map<String, Number> metrics){
+        metrics.put("txn.inFlight", txns.size());
+        metrics.put("txn.committed", committed.get());
+        metrics.put("txn.aborted", aborted.get());
+        metrics.put("txn.reaped", reaped.get());
+        metrics.put("txn.refused", refused.get());
+    }
+}
@@ -0,0 +1,25 @@
+package server;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * ValueStore is where a Server keeps its committed key-value pairs.
+ * It is either the plain in-memory map (MemoryStore)
+ * or a bounded cache in front of a persistent tier (CachingStore).
+ * Writes are serialized by the server's ReadWriteLock; reads may run concurrently.
+ */
+public interface ValueStore {
+    String get(String key);
+    String putIfAbsent(String key, String value);
+    String put(String key, String value);
+    String remove(String key);
+    // the UTF-8 encoded key, shared with the store when it keeps encoded keys.
+    default byte[] internKey(String key){
+        return CompactKeys.encode(key);
+    }
+    // all the keys in the store, used to rebuild the ordered index at startup.
+    Set<String> keySet();
+    // the store's counters, reported by Server.getMetrics().
+    void addMetrics(Map<String, Number> metrics);
+}
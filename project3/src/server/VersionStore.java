@@ -0,0 +1,151 @@
+package server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * VersionStore keeps the older versions of recently written keys, so that reads at a snapshot
+ * see the store as it was when that snapshot was taken, without taking any lock.
+ *
+ * Every batch of operations applied by the server gets a commit timestamp.
+ * A write pushes the new version on the key's chain before the ValueStore is updated,
+ * and the timestamp becomes visible to new snapshots once the whole batch is applied.
+ * A read at snapshot ts walks the chain to the newest version with commitTs <= ts,
+ * or reads the ValueStore when the key has no chain (it was not written since the GC horizon).
+ *
+ * Snapshots are leased: a snapshot that is not closed is released after SNAPSHOT_LEASE_MS.
+ * gc() trims the versions no open snapshot can see and drops chains that only hold the current value.
+ */
+public class VersionStore {
+    private static final long SNAPSHOT_LEASE_MS = 60000;
+
+    private final ConcurrentHashMap<String, Version> chains = new ConcurrentHashMap<>();
+    // snapshot timestamp -> lease
+    private final ConcurrentHashMap<Long, Lease> snapshots = new ConcurrentHashMap<>();
+    private long lastCommitTs;
+    private volatile long visibleTs;
+
+    /**
+     * beginCommit returns the timestamp of the next batch. Batches are committed one at a time.
+     */
+    public synchronized long beginCommit(){
+        return ++lastCommitTs;
+    }
+
+    /**
+     * endCommit makes the batch visible to the snapshots opened from now on.
+     */
+    public void endCommit(long commitTs){
+        visibleTs = commitTs;
+    }
+
+    /**
+     * record adds a version of a key. It must be called before the ValueStore is updated.
+     * @param previous the value before the write, null if the key did not exist.
+     * @param value the new value, null for a delete.
+     */
+    public void record(String key, String previous, String value, long commitTs){
+        chains.compute(key, (k, head) -> {
+            if (head == null){
+                // the value before the write is what every open snapshot sees.
+                head = new Version(0, previous, null);
+            }
+            return new Version(commitTs, value, head);
+        });
+    }
+
+    /**
+     * read returns the value of a key at a snapshot, or null if the key did not exist.
+     * @param current reads the latest value from the ValueStore.
+     */
+    public String read(String key, long snapshotTs, Function<String, String> current){
+        // read the store before the chain: a write that is missed in the chain is also missed in the store.
+        String latest = current.apply(key);
+        Version v = chains.get(key);
+        if (v == null){
+            return latest;
+        }
+        while (v != null && v.commitTs > snapshotTs){
+            v = v.older;
+        }
+        return v == null ? null : v.value;
+    }
+
+    public long openSnapshot(){
+        synchronized (snapshots){
+            long ts = visibleTs;
+            snapshots.computeIfAbsent(ts, t -> new Lease()).acquire();
+            return ts;
+        }
+    }
+
+    public void closeSnapshot(long snapshotTs){
+        synchronized (snapshots){
+            Lease lease = snapshots.get(snapshotTs);
+            if (lease != null && lease.release()){
+                snapshots.remove(snapshotTs);
+            }
+        }
+    }
+
+    /**
+     * gc drops the versions older than what the oldest open snapshot can see.
+     */
+    public void gc(){
+        long horizon;
+        synchronized (snapshots){
+            long now = System.currentTimeMillis();
+            snapshots.values().removeIf(lease -> lease.expireAt < now);
+            horizon = visibleTs;
+            for (long ts : snapshots.keySet()){
+                horizon = Math.min(horizon, ts);
+            }
+        }
+        for (Map.Entry<String, Version> e : chains.entrySet()){
+            Version head = e.getValue();
+            if (head.commitTs <= horizon){
+                // every snapshot sees the current value: the ValueStore is enough.
+                chains.remove(e.getKey(), head);
+                continue;
+            }
+            Version v = head;
+            while (v.older != null && v.commitTs > horizon){
+                v = v.older;
+            }
+            v.older = null;
+        }
+    }
+
+    public void addMetrics(Map<String, Number> metrics){
+        metrics.put("mvcc.visibleTs", visibleTs);
+        metrics.put("mvcc.versionChains", chains.size());
+        metrics.put("mvcc.openSnapshots", snapshots.size());
+    }
+
+    private static class Version{
+        final long commitTs;
+        final String value;
+        volatile Version older;
+
+        Version(long commitTs, String value, Version older){
+            this.commitTs = commitTs;
+            this.value = value;
+            this.older = older;
+        }
+    }
+
+    private static class Lease{
+        int refs;
+        long expireAt;
+
+        void acquire(){
+            refs++;
+            expireAt = System.currentTimeMillis() + SNAPSHOT_LEASE_MS;
+        }
+
+        boolean release(){
+            return --refs <= 0;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package server;
+
+import java.io.Serializable;
+
+/**
+ * Versioned is a value with the version of the write that produced it, as kept by the quorum mode.
+ * Versions are ordered by timestamp, then by the port of the server that coordinated the write,
+ * so every replica picks the same winner between two concurrent writes (last writer wins).
+ * A delete is a version without value (a tombstone), so that it wins over the older puts during repair.
+ */
+public class Versioned implements Serializable {
+    private static final long serialVersionUID = 1L;
+    final String value;
+    final long timestamp;
+    final int origin;
+    final long expireAt;
+
+    Versioned(String value, long timestamp, int origin, long expireAt){
+        this.value = value;
+        this.timestamp = timestamp;
+        this.origin = origin;
+        this.expireAt = expireAt;
+    }
+
+    boolean newerThan(Versioned other){
+        if (other == null){
+            return true;
+        }
+        if (timestamp != other.timestamp){
+            return timestamp > other.timestamp;
+        }
+        return origin > other.origin;
+    }
+
+    /**
+     * @return true if the version holds a value that has not expired.
+     */
+    boolean isLive(long now){
+        return value != null && (expireAt == 0 || expireAt > now);
+    }
+
+    @Override
+    public String toString(){
+        return (value == null ? "<deleted>" : value) + "@" + timestamp + "." + origin;
+    }
+}